@@ -2,7 +2,7 @@ LOCAL_PATH:= $(call my-dir)
 
 include $(CLEAR_VARS)
 
-LOCAL_SRC_FILES := $(call all-subdir-java-files) \
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
 	src/com/motorola/android/fmradio/IFMRadioService.aidl \
 	src/com/motorola/android/fmradio/IFMRadioServiceCallback.aidl \
 	src/com/motorola/fmradio/IFMRadioPlayerService.aidl \
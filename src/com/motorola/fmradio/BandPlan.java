@@ -0,0 +1,151 @@
+package com.motorola.fmradio;
+
+import java.text.DecimalFormat;
+
+/**
+ * Frequency range and channel raster of a broadcast band. Every plan holds
+ * an immutable table of its channels and their labels, built once, so
+ * converting between channel index, frequency and label is a lookup.
+ */
+public final class BandPlan {
+    public static final int PLAN_US_EUROPE = 0;
+    public static final int PLAN_JAPAN = 1;
+    public static final int PLAN_OIRT = 2;
+    public static final int PLAN_FINE = 3;
+
+    /* band numbers of IFMRadioService.setBand(), -1 leaves the band chosen by the platform */
+    private static final int HARDWARE_BAND_DEFAULT = -1;
+    private static final int HARDWARE_BAND_JAPAN = 2;
+    private static final int HARDWARE_BAND_OIRT = 3;
+
+    private static final BandPlan[] PLANS = new BandPlan[] {
+        new BandPlan(PLAN_US_EUROPE, HARDWARE_BAND_DEFAULT, 87500, 108000, 100),
+        new BandPlan(PLAN_JAPAN, HARDWARE_BAND_JAPAN, 76000, 95000, 100),
+        new BandPlan(PLAN_OIRT, HARDWARE_BAND_OIRT, 65900, 74000, 30),
+        new BandPlan(PLAN_FINE, HARDWARE_BAND_DEFAULT, 87500, 108000, 50)
+    };
+
+    public static final BandPlan DEFAULT = PLANS[PLAN_US_EUROPE];
+
+    /* limits over all plans, for sizing arrays and checking stored frequencies */
+    public static final int MAX_CHANNELS;
+    public static final int LOWEST_FREQUENCY;
+    public static final int HIGHEST_FREQUENCY;
+
+    static {
+        int channels = 0, lowest = Integer.MAX_VALUE, highest = 0;
+        for (BandPlan plan : PLANS) {
+            channels = Math.max(channels, plan.getChannelCount());
+            lowest = Math.min(lowest, plan.min);
+            highest = Math.max(highest, plan.max);
+        }
+        MAX_CHANNELS = channels;
+        LOWEST_FREQUENCY = lowest;
+        HIGHEST_FREQUENCY = highest;
+    }
+
+    public final int id;
+    public final int hardwareBand;
+    public final int min;
+    public final int max;
+    public final int step;
+    /* digits shown after the decimal point */
+    public final int decimals;
+
+    private final int[] mFrequencies;
+    private final String[] mLabels;
+
+    private BandPlan(int id, int hardwareBand, int min, int max, int step) {
+        this.id = id;
+        this.hardwareBand = hardwareBand;
+        this.min = min;
+        this.max = max;
+        this.step = step;
+        this.decimals = step % 100 == 0 ? 1 : 2;
+
+        final int count = (max - min) / step + 1;
+        final DecimalFormat formatter = new DecimalFormat(decimals == 1 ? "0.0" : "0.00");
+        mFrequencies = new int[count];
+        mLabels = new String[count];
+        for (int i = 0; i < count; i++) {
+            mFrequencies[i] = min + i * step;
+            mLabels[i] = formatter.format(mFrequencies[i] / 1000.0);
+        }
+    }
+
+    /* returns the plan with the given id, or the default plan for unknown ids */
+    public static BandPlan get(int id) {
+        if (id < 0 || id >= PLANS.length) {
+            return DEFAULT;
+        }
+        return PLANS[id];
+    }
+
+    public int getChannelCount() {
+        return mFrequencies.length;
+    }
+
+    public int getFrequency(int index) {
+        return mFrequencies[Math.max(0, Math.min(mFrequencies.length - 1, index))];
+    }
+
+    /* returns the channel index of the frequency, or -1 if it isn't a channel of this plan */
+    public int getIndex(int frequency) {
+        final int index = (frequency - min) / step;
+        if (frequency < min || index >= mFrequencies.length || mFrequencies[index] != frequency) {
+            return -1;
+        }
+        return index;
+    }
+
+    /* returns the channel nearest to the frequency */
+    public int getNearestIndex(int frequency) {
+        final int index = (frequency - min + step / 2) / step;
+        return Math.max(0, Math.min(mFrequencies.length - 1, index));
+    }
+
+    public boolean contains(int frequency) {
+        return getIndex(frequency) >= 0;
+    }
+
+    /*
+     * Whether a radio tuning from radioMin to radioMax kHz in steps of
+     * radioStep kHz reaches every channel of this plan. Values the radio
+     * doesn't report (0 or less) aren't checked.
+     */
+    public boolean isTunable(int radioMin, int radioMax, int radioStep) {
+        if ((radioMin > 0 && min < radioMin) || (radioMax > 0 && max > radioMax)) {
+            return false;
+        }
+        if (radioStep > 0) {
+            if (step % radioStep != 0) {
+                return false;
+            }
+            if (radioMin > 0 && (min - radioMin) % radioStep != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* returns the neighbouring channel, wrapping around at the band edges */
+    public int getNext(int frequency, boolean upward) {
+        int index = getNearestIndex(frequency) + (upward ? 1 : -1);
+        if (index >= mFrequencies.length) {
+            index = 0;
+        } else if (index < 0) {
+            index = mFrequencies.length - 1;
+        }
+        return mFrequencies[index];
+    }
+
+    /* formatted frequency in MHz without unit, e.g. "87.5" */
+    public String getLabel(int frequency) {
+        final int index = getIndex(frequency);
+        if (index >= 0) {
+            return mLabels[index];
+        }
+        /* not on the raster, e.g. a preset stored under another plan */
+        return new DecimalFormat(frequency % 100 == 0 ? "0.0" : "0.00").format(frequency / 1000.0);
+    }
+}
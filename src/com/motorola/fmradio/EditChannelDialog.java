@@ -82,7 +82,7 @@ public class EditChannelDialog extends AlertDialog
 
             int frequency = cursor.getInt(FMUtil.CHANNEL_COLUMN_FREQ);
             if (frequency == 0) {
-                frequency = FMUtil.MIN_FREQUENCY;
+                frequency = Preferences.getBandPlan(context).min;
             }
 
             final String freqString = FMUtil.formatFrequency(context, frequency);
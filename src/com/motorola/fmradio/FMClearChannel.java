@@ -3,7 +3,6 @@ package com.motorola.fmradio;
 import android.app.ListActivity;
 import android.content.ContentValues;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.text.TextUtils.TruncateAt;
 import android.util.SparseBooleanArray;
@@ -32,6 +31,7 @@ public class FMClearChannel extends ListActivity implements View.OnClickListener
     private ListView mListView;
     private Button mDoneButton;
     private int mCount;
+    private int[] mPresetIds;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,19 +61,15 @@ public class FMClearChannel extends ListActivity implements View.OnClickListener
             }
         });
 
-        Cursor cursor = getContentResolver().query(Channels.CONTENT_URI, FMUtil.PROJECTION, null, null, null);
+        PresetSnapshot presets = PresetSnapshot.query(this);
         ArrayList<String> items = new ArrayList<String>();
         items.add(getString(R.string.all_presets));
 
-        mCount = 0;
-        if (cursor != null) {
-            cursor.moveToFirst();
-            while (!cursor.isAfterLast()) {
-                mCount++;
-                items.add(FMUtil.getPresetUiString(this, cursor, mCount));
-                cursor.moveToNext();
-            }
-            cursor.close();
+        mCount = presets.size();
+        mPresetIds = new int[mCount];
+        for (int i = 0; i < mCount; i++) {
+            mPresetIds[i] = presets.getId(i);
+            items.add(FMUtil.getPresetUiString(this, presets, i));
         }
 
         ArrayAdapter<String> adapter = new ArrayAdapter<String>(this,
@@ -141,7 +137,7 @@ public class FMClearChannel extends ListActivity implements View.OnClickListener
                 }
                 sb.append(Channels.ID);
                 sb.append("=");
-                sb.append(i);
+                sb.append(mPresetIds[i]);
                 count++;
             }
         }
@@ -6,41 +6,149 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Process;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+
 public class FMDataProvider extends ContentProvider {
     private static final String TAG = "FMDataProvider";
 
     private static final String AUTHORITY = "com.motorola.provider.fmradio";
     private static final String DATABASE_NAME = "fmradio.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 5;
 
     private static final String CHANNEL_TABLE = "channels";
-    private static final int CHANNEL_COUNT = 20;
+    private static final String BANK_TABLE = "banks";
+    private static final String PROPERTY_TABLE = "properties";
+    private static final String STATION_TABLE = "stations";
+    private static final String DELETION_TABLE = "deletions";
+
+    private static final String PROPERTY_ACTIVE_BANK = "active_bank";
+    private static final String PROPERTY_CHANGE_SEQUENCE = "change_seq";
+    private static final String PROPERTY_EXPORT_SEQUENCE = "export_seq";
+    private static final int DEFAULT_BANK = 0;
 
+    /*
+     * Presets are stored per bank and only exist while they hold a station;
+     * a preset is identified by its number inside the active bank. Setting
+     * the frequency of a preset to 0 removes it.
+     */
     public static class Channels {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/channels");
         public static final String ID = "_id";
+        public static final String BANK = "bank";
         public static final String FREQUENCY = "frequency";
         public static final String NAME = "name";
         public static final String RDS_NAME = "rds_name";
+        /* RDS PI code of the station, identifies it on any frequency; 0 if unknown */
+        public static final String PI = "pi";
+
+        /* upper limit of presets per bank, bounded by the three digit preset display */
+        public static final int MAX_PRESETS = 999;
+
+        /* methods for ContentResolver.call(), answered from a cached snapshot */
+        public static final String METHOD_LOOKUP_BY_FREQUENCY = "lookupByFrequency";
+        public static final String METHOD_GET_ALL_PRESETS = "getAllPresets";
+        public static final String METHOD_NEXT_PRESET = "nextPreset";
+        public static final String METHOD_GET_PRESET_INFO = "getPresetInfo";
+        public static final String METHOD_RESTORE_PRESETS = "restorePresets";
+
+        public static final String EXTRA_FREQUENCY = "frequency";
+        public static final String EXTRA_PRESET = "preset";
+        public static final String EXTRA_POSITION = "position";
+        public static final String EXTRA_UPWARD = "upward";
+        public static final String EXTRA_NAME = "name";
+        public static final String EXTRA_RDS_NAME = "rds_name";
+        public static final String EXTRA_PI = "pi";
+        public static final String EXTRA_COUNT = "count";
+        public static final String EXTRA_FIRST_EMPTY = "first_empty";
+
+        /* arguments and results of METHOD_RESTORE_PRESETS */
+        public static final String EXTRA_MERGE = "merge";
+        public static final String EXTRA_DRY_RUN = "dry_run";
+        public static final String EXTRA_ADDED = "added";
+        public static final String EXTRA_UPDATED = "updated";
+        public static final String EXTRA_REMOVED = "removed";
+        public static final String EXTRA_SKIPPED = "skipped";
+    };
+
+    public static class Banks {
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/banks");
+        public static final String ID = "_id";
+        public static final String NAME = "name";
+
+        public static final String METHOD_GET_ACTIVE_BANK = "getActiveBank";
+        public static final String METHOD_SELECT_BANK = "selectBank";
+
+        public static final String EXTRA_BANK = "bank";
+        public static final String EXTRA_NAME = "name";
+    };
+
+    /*
+     * Every station the tuner has locked onto, keyed by frequency. Rows are
+     * merged through bulkInsert(): RSSI and stereo keep their best value,
+     * RDS fields keep the last known value.
+     */
+    public static class Stations {
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/stations");
+        public static final String FREQUENCY = "frequency";
+        public static final String RSSI = "rssi";
+        public static final String PI = "pi";
+        public static final String PS = "ps";
+        public static final String PTY = "pty";
+        public static final String STEREO = "stereo";
+        public static final String FIRST_SEEN = "first_seen";
+        public static final String LAST_SEEN = "last_seen";
+    };
+
+    /*
+     * Export and import of the complete state: all banks with their presets,
+     * the station catalog and the settings. Every change to these tables
+     * bumps a change counter, so an incremental export only needs to write
+     * the rows (and deletions) recorded after the previous export.
+     */
+    public static class State {
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/state");
+
+        /* arg names the destination file in the backup directory, extras may carry EXTRA_INCREMENTAL */
+        public static final String METHOD_EXPORT = "exportState";
+        /* arg names the source file in the backup directory */
+        public static final String METHOD_IMPORT = "importState";
+
+        public static final String EXTRA_INCREMENTAL = "incremental";
+        public static final String EXTRA_BASE_SEQUENCE = "base_sequence";
+        public static final String EXTRA_SEQUENCE = "sequence";
     };
 
     private static final int CHANNELS = 1;
     private static final int CHANNELS_ID = 2;
+    private static final int BANKS = 3;
+    private static final int BANKS_ID = 4;
+    private static final int STATIONS = 5;
 
     private static final UriMatcher sUriMatcher = new UriMatcher(-1);
     static {
         sUriMatcher.addURI(AUTHORITY, "channels", CHANNELS);
         sUriMatcher.addURI(AUTHORITY, "channels/#", CHANNELS_ID);
+        sUriMatcher.addURI(AUTHORITY, "banks", BANKS);
+        sUriMatcher.addURI(AUTHORITY, "banks/#", BANKS_ID);
+        sUriMatcher.addURI(AUTHORITY, "stations", STATIONS);
     }
 
     private DatabaseHelper mOpenHelper;
+    private volatile PresetSnapshot mSnapshot;
+    private volatile int mActiveBank = -1;
 
     private class DatabaseHelper extends SQLiteOpenHelper {
         DatabaseHelper(Context context) {
@@ -50,16 +158,10 @@ public class FMDataProvider extends ContentProvider {
         @Override
         public void onCreate(SQLiteDatabase db) {
             try {
-                db.execSQL("CREATE TABLE channels ("
-                        + "_id INTEGER PRIMARY KEY,"
-                        + "frequency INT NOT NULL DEFAULT 0,"
-                        + "name TEXT,"
-                        + "rds_name TEXT"
-                        + ");");
-                for (int i = 0; i < CHANNEL_COUNT; i++) {
-                    db.execSQL("insert into channels (_id, frequency, name, rds_name) " +
-                            "values(\'" + i + "\', \'0\', \'\', \'\');");
-                }
+                createChannelTable(db);
+                createBankTables(db);
+                createStationTable(db);
+                createChangeTracking(db);
             } catch (SQLException e) {
                 Log.e(TAG, e.toString());
             }
@@ -67,9 +169,137 @@ public class FMDataProvider extends ContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                /* move the fixed preset slots into the default bank, dropping empty ones */
+                db.execSQL("ALTER TABLE channels RENAME TO channels_v1;");
+                createChannelTable(db);
+                createBankTables(db);
+                db.execSQL("INSERT INTO channels (bank, _id, frequency, name, rds_name) "
+                        + "SELECT " + DEFAULT_BANK + ", _id, frequency, name, rds_name "
+                        + "FROM channels_v1 WHERE frequency != 0;");
+                db.execSQL("DROP TABLE channels_v1;");
+            }
+            if (oldVersion < 3) {
+                createStationTable(db);
+            }
+            if (oldVersion < 4) {
+                /* existing rows keep sequence 0, the first export is always a full one */
+                if (oldVersion >= 2) {
+                    db.execSQL("ALTER TABLE channels ADD COLUMN change_seq INTEGER NOT NULL DEFAULT 0;");
+                    db.execSQL("ALTER TABLE banks ADD COLUMN change_seq INTEGER NOT NULL DEFAULT 0;");
+                }
+                if (oldVersion >= 3) {
+                    db.execSQL("ALTER TABLE stations ADD COLUMN change_seq INTEGER NOT NULL DEFAULT 0;");
+                }
+                createChangeTracking(db);
+            }
+            if (oldVersion < 5 && oldVersion >= 2) {
+                db.execSQL("ALTER TABLE channels ADD COLUMN pi INTEGER NOT NULL DEFAULT 0;");
+            }
+        }
+
+        private void createChannelTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE channels ("
+                    + "bank INTEGER NOT NULL DEFAULT 0,"
+                    + "_id INTEGER NOT NULL,"
+                    + "frequency INT NOT NULL DEFAULT 0,"
+                    + "name TEXT,"
+                    + "rds_name TEXT,"
+                    + "pi INTEGER NOT NULL DEFAULT 0,"
+                    + "change_seq INTEGER NOT NULL DEFAULT 0,"
+                    + "PRIMARY KEY (bank, _id)"
+                    + ");");
+            db.execSQL("CREATE INDEX channels_frequency ON channels (bank, frequency);");
+        }
+
+        private void createStationTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE stations ("
+                    + "frequency INTEGER PRIMARY KEY,"
+                    + "rssi INTEGER NOT NULL DEFAULT 0,"
+                    + "pi INTEGER,"
+                    + "ps TEXT,"
+                    + "pty INTEGER,"
+                    + "stereo INTEGER NOT NULL DEFAULT 0,"
+                    + "first_seen INTEGER NOT NULL,"
+                    + "last_seen INTEGER NOT NULL,"
+                    + "change_seq INTEGER NOT NULL DEFAULT 0"
+                    + ");");
+            db.execSQL("CREATE INDEX stations_pi ON stations (pi);");
+        }
+
+        private void createBankTables(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE banks ("
+                    + "_id INTEGER PRIMARY KEY,"
+                    + "name TEXT NOT NULL,"
+                    + "change_seq INTEGER NOT NULL DEFAULT 0"
+                    + ");");
+            db.execSQL("CREATE TABLE properties ("
+                    + "key TEXT PRIMARY KEY,"
+                    + "value INTEGER"
+                    + ");");
+
+            ContentValues cv = new ContentValues();
+            cv.put(Banks.ID, DEFAULT_BANK);
+            cv.put(Banks.NAME, getContext().getString(R.string.default_bank_name));
+            db.insert(BANK_TABLE, null, cv);
+            writeProperty(db, PROPERTY_ACTIVE_BANK, DEFAULT_BANK);
+        }
+
+        /*
+         * Triggers stamp every inserted or modified row with the next value
+         * of the change counter and leave a tombstone for deleted presets
+         * and banks, so incremental exports can find them.
+         */
+        private void createChangeTracking(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE deletions ("
+                    + "table_name TEXT NOT NULL,"
+                    + "bank INTEGER NOT NULL,"
+                    + "_id INTEGER NOT NULL,"
+                    + "change_seq INTEGER NOT NULL,"
+                    + "PRIMARY KEY (table_name, bank, _id)"
+                    + ");");
+            writeProperty(db, PROPERTY_CHANGE_SEQUENCE, 0);
+            writeProperty(db, PROPERTY_EXPORT_SEQUENCE, 0);
+
+            createStampTriggers(db, CHANNEL_TABLE, "frequency, name, rds_name",
+                    "bank=NEW.bank AND _id=NEW._id", "bank=NEW.bank AND _id=NEW._id");
+            createStampTriggers(db, BANK_TABLE, "name", "_id=NEW._id", "bank=0 AND _id=NEW._id");
+            createStampTriggers(db, STATION_TABLE, "rssi, pi, ps, pty, stereo, last_seen",
+                    "frequency=NEW.frequency", null);
+
+            db.execSQL("CREATE TRIGGER channels_deleted AFTER DELETE ON channels BEGIN "
+                    + NEXT_CHANGE_SEQUENCE
+                    + "INSERT OR REPLACE INTO deletions VALUES ('channels', OLD.bank, OLD._id, "
+                    + CURRENT_CHANGE_SEQUENCE + "); "
+                    + "END;");
+            db.execSQL("CREATE TRIGGER banks_deleted AFTER DELETE ON banks BEGIN "
+                    + NEXT_CHANGE_SEQUENCE
+                    + "INSERT OR REPLACE INTO deletions VALUES ('banks', 0, OLD._id, "
+                    + CURRENT_CHANGE_SEQUENCE + "); "
+                    + "END;");
+        }
+
+        /* a row inserted again replaces the tombstone left by its deletion */
+        private void createStampTriggers(SQLiteDatabase db, String table, String columns,
+                String key, String tombstoneKey) {
+            final String stamp = NEXT_CHANGE_SEQUENCE
+                    + "UPDATE " + table + " SET change_seq=" + CURRENT_CHANGE_SEQUENCE
+                    + " WHERE " + key + "; ";
+            final String clearTombstone = tombstoneKey == null ? "" : "DELETE FROM deletions "
+                    + "WHERE table_name='" + table + "' AND " + tombstoneKey + "; ";
+
+            db.execSQL("CREATE TRIGGER " + table + "_inserted AFTER INSERT ON " + table + " BEGIN "
+                    + stamp + clearTombstone + "END;");
+            db.execSQL("CREATE TRIGGER " + table + "_updated AFTER UPDATE OF " + columns
+                    + " ON " + table + " BEGIN " + stamp + "END;");
         }
     }
 
+    private static final String NEXT_CHANGE_SEQUENCE =
+            "UPDATE properties SET value=value+1 WHERE key='" + PROPERTY_CHANGE_SEQUENCE + "'; ";
+    private static final String CURRENT_CHANGE_SEQUENCE =
+            "(SELECT value FROM properties WHERE key='" + PROPERTY_CHANGE_SEQUENCE + "')";
+
     @Override
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(getContext());
@@ -88,19 +318,40 @@ public class FMDataProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
             case CHANNELS:
                 qb.setTables(CHANNEL_TABLE);
+                qb.appendWhere(Channels.BANK + "=" + getActiveBank());
                 break;
             case CHANNELS_ID: {
                 long id = ContentUris.parseId(uri);
                 qb.setTables(CHANNEL_TABLE);
                 selectionArgs = insertSelectionArg(selectionArgs, String.valueOf(id));
+                qb.appendWhere(Channels.BANK + "=" + getActiveBank() + " AND _id=?");
+                break;
+            }
+            case BANKS:
+                qb.setTables(BANK_TABLE);
+                break;
+            case BANKS_ID: {
+                long id = ContentUris.parseId(uri);
+                qb.setTables(BANK_TABLE);
+                selectionArgs = insertSelectionArg(selectionArgs, String.valueOf(id));
                 qb.appendWhere("_id=?");
                 break;
             }
+            case STATIONS:
+                qb.setTables(STATION_TABLE);
+                if (sortOrder == null) {
+                    sortOrder = Stations.FREQUENCY;
+                }
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, null);
+        if (sortOrder == null) {
+            sortOrder = "_id";
+        }
+
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
         if (c != null) {
             c.setNotificationUri(getContext().getContentResolver(), uri);
         }
@@ -109,7 +360,100 @@ public class FMDataProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
-        return null;
+        if (sUriMatcher.match(uri) != BANKS) {
+            return null;
+        }
+
+        String name = initialValues != null ? initialValues.getAsString(Banks.NAME) : null;
+        if (TextUtils.isEmpty(name)) {
+            return null;
+        }
+
+        ContentValues cv = new ContentValues();
+        cv.put(Banks.NAME, name);
+
+        long id = mOpenHelper.getWritableDatabase().insert(BANK_TABLE, null, cv);
+        if (id < 0) {
+            return null;
+        }
+
+        getContext().getContentResolver().notifyChange(Banks.CONTENT_URI, null);
+        return ContentUris.withAppendedId(Banks.CONTENT_URI, id);
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != STATIONS) {
+            return super.bulkInsert(uri, values);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = 0;
+
+        db.beginTransaction();
+        SQLiteStatement update = db.compileStatement("UPDATE stations SET "
+                + "last_seen=?, rssi=MAX(rssi, ?), stereo=MAX(stereo, ?), "
+                + "pi=COALESCE(?, pi), ps=COALESCE(?, ps), pty=COALESCE(?, pty) "
+                + "WHERE frequency=?");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO stations "
+                + "(last_seen, rssi, stereo, pi, ps, pty, frequency, first_seen) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        try {
+            for (ContentValues cv : values) {
+                Integer frequency = cv.getAsInteger(Stations.FREQUENCY);
+                if (frequency == null || frequency <= 0) {
+                    continue;
+                }
+
+                bindStation(update, cv, frequency);
+                if (update.executeUpdateDelete() == 0) {
+                    bindStation(insert, cv, frequency);
+                    Long firstSeen = cv.getAsLong(Stations.FIRST_SEEN);
+                    insert.bindLong(8, firstSeen != null ? firstSeen : System.currentTimeMillis());
+                    insert.executeInsert();
+                }
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            insert.close();
+        }
+
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return count;
+    }
+
+    /* binds the columns shared by the update and insert statements, in that order */
+    private static void bindStation(SQLiteStatement stmt, ContentValues cv, int frequency) {
+        Long lastSeen = cv.getAsLong(Stations.LAST_SEEN);
+        Integer rssi = cv.getAsInteger(Stations.RSSI);
+        Boolean stereo = cv.getAsBoolean(Stations.STEREO);
+
+        stmt.clearBindings();
+        stmt.bindLong(1, lastSeen != null ? lastSeen : System.currentTimeMillis());
+        stmt.bindLong(2, rssi != null ? rssi : 0);
+        stmt.bindLong(3, stereo != null && stereo ? 1 : 0);
+        bindNullable(stmt, 4, cv.getAsInteger(Stations.PI));
+        String ps = cv.getAsString(Stations.PS);
+        if (TextUtils.isEmpty(ps)) {
+            stmt.bindNull(5);
+        } else {
+            stmt.bindString(5, ps);
+        }
+        bindNullable(stmt, 6, cv.getAsInteger(Stations.PTY));
+        stmt.bindLong(7, frequency);
+    }
+
+    private static void bindNullable(SQLiteStatement stmt, int index, Integer value) {
+        if (value == null) {
+            stmt.bindNull(index);
+        } else {
+            stmt.bindLong(index, value);
+        }
     }
 
     @Override
@@ -119,19 +463,52 @@ public class FMDataProvider extends ContentProvider {
 
         switch (sUriMatcher.match(uri)) {
             case CHANNELS:
-                count = db.update(CHANNEL_TABLE, values, where, whereArgs);
+                if (isClearRequest(values)) {
+                    return delete(uri, where, whereArgs);
+                }
+                count = db.update(CHANNEL_TABLE, values, buildChannelWhere(where), whereArgs);
                 break;
             case CHANNELS_ID: {
                 long id = ContentUris.parseId(uri);
-                count = db.update(CHANNEL_TABLE, values, "_id=?", new String[] { String.valueOf(id) });
+                if (id < 0 || id >= Channels.MAX_PRESETS) {
+                    return 0;
+                }
+                if (isClearRequest(values)) {
+                    return delete(uri, null, null);
+                }
+                String bankWhere = buildChannelWhere("_id=?");
+                Integer frequency = values.getAsInteger(Channels.FREQUENCY);
+                if (frequency != null && !values.containsKey(Channels.PI)) {
+                    /* a preset moved to another frequency may hold another station */
+                    ContentValues cv = new ContentValues();
+                    cv.put(Channels.PI, 0);
+                    db.update(CHANNEL_TABLE, cv, bankWhere + " AND " + Channels.FREQUENCY + "!=?",
+                            new String[] { String.valueOf(id), String.valueOf(frequency) });
+                }
+                count = db.update(CHANNEL_TABLE, values, bankWhere, new String[] { String.valueOf(id) });
+                if (count == 0 && values.containsKey(Channels.FREQUENCY)) {
+                    ContentValues cv = new ContentValues(values);
+                    cv.put(Channels.BANK, getActiveBank());
+                    cv.put(Channels.ID, id);
+                    count = db.insert(CHANNEL_TABLE, null, cv) >= 0 ? 1 : 0;
+                }
                 break;
             }
+            case BANKS_ID: {
+                long id = ContentUris.parseId(uri);
+                count = db.update(BANK_TABLE, values, "_id=?", new String[] { String.valueOf(id) });
+                if (count > 0) {
+                    getContext().getContentResolver().notifyChange(Banks.CONTENT_URI, null);
+                }
+                return count;
+            }
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
 
         if (count > 0) {
+            invalidateSnapshot();
             getContext().getContentResolver().notifyChange(uri, null);
         }
         return count;
@@ -139,7 +516,500 @@ public class FMDataProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
-        return 0;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = 0;
+
+        switch (sUriMatcher.match(uri)) {
+            case CHANNELS:
+                count = db.delete(CHANNEL_TABLE, buildChannelWhere(where), whereArgs);
+                break;
+            case CHANNELS_ID: {
+                long id = ContentUris.parseId(uri);
+                count = db.delete(CHANNEL_TABLE, buildChannelWhere("_id=?"),
+                        new String[] { String.valueOf(id) });
+                break;
+            }
+            case BANKS_ID:
+                return deleteBank((int) ContentUris.parseId(uri));
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        if (count > 0) {
+            invalidateSnapshot();
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return count;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Banks.METHOD_GET_ACTIVE_BANK.equals(method)) {
+            return getActiveBankInfo();
+        } else if (Banks.METHOD_SELECT_BANK.equals(method)) {
+            if (extras == null || !selectBank(extras.getInt(Banks.EXTRA_BANK, -1))) {
+                return null;
+            }
+            return getActiveBankInfo();
+        } else if (Channels.METHOD_RESTORE_PRESETS.equals(method)) {
+            final PresetSnapshot backup = extras != null ? PresetSnapshot.fromBundle(extras) : null;
+            if (backup == null) {
+                Log.w(TAG, "Rejecting restore of malformed presets");
+                return null;
+            }
+            return restorePresets(backup,
+                    extras.getBoolean(Channels.EXTRA_MERGE), extras.getBoolean(Channels.EXTRA_DRY_RUN));
+        } else if (State.METHOD_EXPORT.equals(method) || State.METHOD_IMPORT.equals(method)) {
+            /* the state holds every setting, only the app itself may move it around */
+            if (Binder.getCallingUid() != Process.myUid()) {
+                Log.w(TAG, "Rejecting " + method + " from uid " + Binder.getCallingUid());
+                return null;
+            }
+            final File file = PresetBackupHelper.getStateFile(getContext(), arg);
+            if (file == null) {
+                Log.w(TAG, "Rejecting " + method + " of invalid state file " + arg);
+                return null;
+            }
+            if (State.METHOD_EXPORT.equals(method)) {
+                return exportState(file, extras != null && extras.getBoolean(State.EXTRA_INCREMENTAL));
+            }
+            return importState(file);
+        }
+
+        final PresetSnapshot snapshot = getSnapshot();
+
+        if (Channels.METHOD_GET_ALL_PRESETS.equals(method)) {
+            return snapshot.toBundle();
+        } else if (Channels.METHOD_GET_PRESET_INFO.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(Channels.EXTRA_COUNT, snapshot.size());
+            result.putInt(Channels.EXTRA_FIRST_EMPTY, snapshot.getFirstEmptyPreset(Channels.MAX_PRESETS));
+            return result;
+        } else if (Channels.METHOD_LOOKUP_BY_FREQUENCY.equals(method)) {
+            if (extras == null) {
+                return null;
+            }
+            int index = snapshot.indexOfFrequency(extras.getInt(Channels.EXTRA_FREQUENCY));
+            final int pi = extras.getInt(Channels.EXTRA_PI);
+            if (pi != 0 && (index < 0 || (snapshot.getPi(index) != 0 && snapshot.getPi(index) != pi))) {
+                /* the station may be stored with another of its transmitters */
+                final int piIndex = snapshot.indexOfPi(pi);
+                if (piIndex >= 0) {
+                    index = piIndex;
+                }
+            }
+            if (index < 0) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putInt(Channels.EXTRA_PRESET, snapshot.getId(index));
+            result.putInt(Channels.EXTRA_POSITION, index);
+            result.putInt(Channels.EXTRA_FREQUENCY, snapshot.getFrequency(index));
+            result.putInt(Channels.EXTRA_PI, snapshot.getPi(index));
+            result.putString(Channels.EXTRA_NAME, snapshot.getName(index));
+            result.putString(Channels.EXTRA_RDS_NAME, snapshot.getRdsName(index));
+            return result;
+        } else if (Channels.METHOD_NEXT_PRESET.equals(method)) {
+            if (extras == null) {
+                return null;
+            }
+            int index = snapshot.indexOfNextPreset(extras.getInt(Channels.EXTRA_PRESET),
+                    extras.getBoolean(Channels.EXTRA_UPWARD));
+            if (index < 0) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putInt(Channels.EXTRA_PRESET, snapshot.getId(index));
+            result.putInt(Channels.EXTRA_FREQUENCY, snapshot.getFrequency(index));
+            return result;
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    private synchronized void invalidateSnapshot() {
+        mSnapshot = null;
+    }
+
+    private PresetSnapshot getSnapshot() {
+        PresetSnapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = mSnapshot;
+                if (snapshot == null) {
+                    snapshot = loadSnapshot(mOpenHelper.getReadableDatabase());
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private PresetSnapshot loadSnapshot(SQLiteDatabase db) {
+        Cursor c = db.query(CHANNEL_TABLE, FMUtil.PROJECTION, Channels.BANK + "=" + getActiveBank(),
+                null, null, null, Channels.ID);
+        PresetSnapshot snapshot = PresetSnapshot.fromCursor(c);
+        if (c != null) {
+            c.close();
+        }
+        return snapshot;
+    }
+
+    /*
+     * Applies a preset backup to the active bank in one transaction with a
+     * single change notification. Replacing drops all presets not in the
+     * backup; merging only fills empty presets and renames presets already
+     * holding a frequency from the backup. A dry run only computes the diff.
+     */
+    private Bundle restorePresets(PresetSnapshot backup, boolean merge, boolean dryRun) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final int bank = getActiveBank();
+        int added = 0, updated = 0, removed = 0, skipped = 0;
+
+        db.beginTransaction();
+        try {
+            PresetSnapshot current = loadSnapshot(db);
+
+            if (!merge) {
+                for (int i = 0; i < current.size(); i++) {
+                    if (backup.indexOfPreset(current.getId(i)) < 0) {
+                        removed++;
+                    }
+                }
+                if (!dryRun) {
+                    db.delete(CHANNEL_TABLE, Channels.BANK + "=" + bank, null);
+                }
+            }
+
+            for (int i = 0; i < backup.size(); i++) {
+                final int preset = backup.getId(i);
+                final int frequency = backup.getFrequency(i);
+                final String name = backup.getName(i);
+                int existing;
+
+                if (merge && (existing = current.indexOfFrequency(frequency)) >= 0) {
+                    if (TextUtils.isEmpty(name) || TextUtils.equals(name, current.getName(existing))) {
+                        skipped++;
+                        continue;
+                    }
+                    updated++;
+                    if (!dryRun) {
+                        ContentValues cv = new ContentValues();
+                        cv.put(Channels.NAME, name);
+                        db.update(CHANNEL_TABLE, cv, Channels.BANK + "=" + bank + " AND _id=?",
+                                new String[] { String.valueOf(current.getId(existing)) });
+                    }
+                    continue;
+                }
+
+                existing = current.indexOfPreset(preset);
+                if (existing < 0) {
+                    added++;
+                } else if (merge) {
+                    skipped++;
+                    continue;
+                } else if (current.getFrequency(existing) == frequency
+                        && TextUtils.equals(current.getName(existing), name)) {
+                    skipped++;
+                } else {
+                    updated++;
+                }
+
+                if (!dryRun) {
+                    ContentValues cv = new ContentValues();
+                    cv.put(Channels.BANK, bank);
+                    cv.put(Channels.ID, preset);
+                    cv.put(Channels.FREQUENCY, frequency);
+                    cv.put(Channels.NAME, name);
+                    cv.put(Channels.RDS_NAME, backup.getRdsName(i));
+                    db.insert(CHANNEL_TABLE, null, cv);
+                }
+            }
+
+            if (!dryRun) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
+
+        if (!dryRun) {
+            invalidateSnapshot();
+            getContext().getContentResolver().notifyChange(Channels.CONTENT_URI, null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(Channels.EXTRA_ADDED, added);
+        result.putInt(Channels.EXTRA_UPDATED, updated);
+        result.putInt(Channels.EXTRA_REMOVED, removed);
+        result.putInt(Channels.EXTRA_SKIPPED, skipped);
+        return result;
+    }
+
+    /*
+     * Writes everything changed since the previous export, or everything
+     * for a full export. Reading all tables and advancing the export
+     * counter happen in one transaction, so no change can slip between two
+     * incremental exports.
+     */
+    private Bundle exportState(File destination, boolean incremental) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Cursor banks = null, channels = null, stations = null, deletions = null;
+        Bundle result = null;
+
+        db.beginTransaction();
+        try {
+            final int base = incremental ? readProperty(db, PROPERTY_EXPORT_SEQUENCE, 0) : 0;
+            final int sequence = readProperty(db, PROPERTY_CHANGE_SEQUENCE, 0);
+            final String changed = base > 0 ? "change_seq>" + base : null;
+
+            banks = db.query(BANK_TABLE, new String[] { Banks.ID, Banks.NAME },
+                    changed, null, null, null, Banks.ID);
+            channels = db.query(CHANNEL_TABLE, new String[] {
+                    Channels.BANK, Channels.ID, Channels.FREQUENCY, Channels.NAME, Channels.RDS_NAME
+                    }, changed, null, null, null, Channels.BANK + "," + Channels.ID);
+            stations = db.query(STATION_TABLE, SnapshotFile.STATION_PROJECTION,
+                    changed, null, null, null, Stations.FREQUENCY);
+            if (base > 0) {
+                deletions = db.query(DELETION_TABLE, new String[] { "table_name", "bank", "_id" },
+                        changed, null, null, null, null);
+            }
+
+            if (SnapshotFile.writeState(destination, base, sequence, getActiveBank(),
+                    banks, channels, stations, deletions, Preferences.getAllSettings(getContext()))) {
+                writeProperty(db, PROPERTY_EXPORT_SEQUENCE, sequence);
+                /* tombstones are only needed until an export has picked them up */
+                db.delete(DELETION_TABLE, "change_seq<=" + sequence, null);
+                db.setTransactionSuccessful();
+
+                result = new Bundle();
+                result.putInt(State.EXTRA_BASE_SEQUENCE, base);
+                result.putInt(State.EXTRA_SEQUENCE, sequence);
+            }
+        } finally {
+            db.endTransaction();
+            closeCursors(banks, channels, stations, deletions);
+        }
+
+        return result;
+    }
+
+    /*
+     * Applies a state export in one transaction. A full export replaces all
+     * banks, presets and the station catalog; an incremental one applies
+     * its deletions and then overwrites the rows it carries.
+     */
+    private Bundle importState(File source) {
+        SnapshotFile.Contents contents = SnapshotFile.read(source);
+        if (contents == null || !contents.state) {
+            return null;
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            if (contents.baseSequence == 0) {
+                db.delete(CHANNEL_TABLE, null, null);
+                db.delete(BANK_TABLE, null, null);
+                db.delete(STATION_TABLE, null, null);
+            } else if (contents.deletions != null) {
+                for (ContentValues cv : contents.deletions) {
+                    final String table = cv.getAsString("table_name");
+                    final String bank = cv.getAsString("bank");
+                    final String id = cv.getAsString("_id");
+                    if (TextUtils.equals(table, CHANNEL_TABLE)) {
+                        db.delete(CHANNEL_TABLE, "bank=? AND _id=?", new String[] { bank, id });
+                    } else if (TextUtils.equals(table, BANK_TABLE)) {
+                        db.delete(CHANNEL_TABLE, "bank=?", new String[] { id });
+                        db.delete(BANK_TABLE, "_id=?", new String[] { id });
+                    }
+                }
+            }
+
+            replaceAll(db, BANK_TABLE, contents.banks);
+            replaceAll(db, CHANNEL_TABLE, contents.channels);
+            replaceAll(db, STATION_TABLE, contents.stations);
+
+            if (DatabaseUtils.queryNumEntries(db, BANK_TABLE) == 0) {
+                ContentValues cv = new ContentValues();
+                cv.put(Banks.ID, DEFAULT_BANK);
+                cv.put(Banks.NAME, getContext().getString(R.string.default_bank_name));
+                db.insert(BANK_TABLE, null, cv);
+            }
+
+            int bank = contents.activeBank >= 0 ? contents.activeBank : getActiveBank();
+            if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM banks WHERE _id=?",
+                    new String[] { String.valueOf(bank) }) == 0) {
+                bank = (int) DatabaseUtils.longForQuery(db, "SELECT MIN(_id) FROM banks", null);
+            }
+            writeProperty(db, PROPERTY_ACTIVE_BANK, bank);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        synchronized (this) {
+            mActiveBank = -1;
+            mSnapshot = null;
+        }
+        if (contents.settings != null) {
+            Preferences.importSettings(getContext(), contents.settings);
+        }
+
+        getContext().getContentResolver().notifyChange(Channels.CONTENT_URI, null);
+        getContext().getContentResolver().notifyChange(Banks.CONTENT_URI, null);
+        getContext().getContentResolver().notifyChange(Stations.CONTENT_URI, null);
+
+        Bundle result = new Bundle();
+        result.putInt(State.EXTRA_BASE_SEQUENCE, contents.baseSequence);
+        result.putInt(State.EXTRA_SEQUENCE, contents.sequence);
+        return result;
+    }
+
+    private static void replaceAll(SQLiteDatabase db, String table, ContentValues[] rows) {
+        if (rows == null) {
+            return;
+        }
+        for (ContentValues cv : rows) {
+            db.replace(table, null, cv);
+        }
+    }
+
+    private static void closeCursors(Cursor... cursors) {
+        for (Cursor c : cursors) {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private int getActiveBank() {
+        int bank = mActiveBank;
+        if (bank < 0) {
+            bank = readProperty(mOpenHelper.getReadableDatabase(), PROPERTY_ACTIVE_BANK, DEFAULT_BANK);
+            mActiveBank = bank;
+        }
+        return bank;
+    }
+
+    private Bundle getActiveBankInfo() {
+        final int bank = getActiveBank();
+        Bundle result = new Bundle();
+        result.putInt(Banks.EXTRA_BANK, bank);
+
+        Cursor c = mOpenHelper.getReadableDatabase().query(BANK_TABLE,
+                new String[] { Banks.NAME }, "_id=" + bank, null, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                result.putString(Banks.EXTRA_NAME, c.getString(0));
+            }
+            c.close();
+        }
+        return result;
+    }
+
+    /* switching banks only swaps the bank id, the preset rows stay untouched */
+    private boolean selectBank(int bank) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        synchronized (this) {
+            if (bank == getActiveBank()) {
+                return true;
+            }
+            Cursor c = db.query(BANK_TABLE, new String[] { Banks.ID }, "_id=" + bank,
+                    null, null, null, null);
+            boolean exists = c != null && c.moveToFirst();
+            if (c != null) {
+                c.close();
+            }
+            if (!exists) {
+                return false;
+            }
+
+            writeProperty(db, PROPERTY_ACTIVE_BANK, bank);
+            mActiveBank = bank;
+            mSnapshot = null;
+        }
+
+        getContext().getContentResolver().notifyChange(Channels.CONTENT_URI, null);
+        getContext().getContentResolver().notifyChange(Banks.CONTENT_URI, null);
+        return true;
+    }
+
+    private int deleteBank(int bank) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int nextBank = -1;
+
+        Cursor c = db.query(BANK_TABLE, new String[] { Banks.ID }, "_id!=" + bank,
+                null, null, null, Banks.ID, "1");
+        if (c != null) {
+            if (c.moveToFirst()) {
+                nextBank = c.getInt(0);
+            }
+            c.close();
+        }
+        if (nextBank < 0) {
+            /* never remove the last bank */
+            return 0;
+        }
+        if (bank == getActiveBank()) {
+            selectBank(nextBank);
+        }
+
+        int count;
+        db.beginTransaction();
+        try {
+            db.delete(CHANNEL_TABLE, Channels.BANK + "=" + bank, null);
+            count = db.delete(BANK_TABLE, "_id=" + bank, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(Banks.CONTENT_URI, null);
+        }
+        return count;
+    }
+
+    private String buildChannelWhere(String where) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Channels.BANK);
+        sb.append("=");
+        sb.append(getActiveBank());
+        if (!TextUtils.isEmpty(where)) {
+            sb.append(" AND (");
+            sb.append(where);
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+
+    private static boolean isClearRequest(ContentValues values) {
+        Integer frequency = values.getAsInteger(Channels.FREQUENCY);
+        return frequency != null && frequency == 0;
+    }
+
+    private static int readProperty(SQLiteDatabase db, String key, int defaultValue) {
+        Cursor c = db.query(PROPERTY_TABLE, new String[] { "value" }, "key=?",
+                new String[] { key }, null, null, null);
+        int value = defaultValue;
+        if (c != null) {
+            if (c.moveToFirst()) {
+                value = c.getInt(0);
+            }
+            c.close();
+        }
+        return value;
+    }
+
+    private static void writeProperty(SQLiteDatabase db, String key, int value) {
+        ContentValues cv = new ContentValues();
+        cv.put("key", key);
+        cv.put("value", value);
+        db.replace(PROPERTY_TABLE, null, cv);
     }
 
     private String[] insertSelectionArg(String[] selectionArgs, String arg) {
@@ -40,6 +40,7 @@ import android.view.TouchDelegate;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
+import android.widget.EditText;
 import android.widget.FrameLayout;
 import android.widget.ImageButton;
 import android.widget.ImageSwitcher;
@@ -52,6 +53,7 @@ import android.widget.ResourceCursorAdapter;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
+import com.motorola.fmradio.FMDataProvider.Banks;
 import com.motorola.fmradio.FMDataProvider.Channels;
 
 import java.text.MessageFormat;
@@ -62,7 +64,6 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     private static final String TAG = "FMRadioMain";
 
     private static int LIGHT_ON_TIME = 90000;
-    private static int PRESET_NUM = 20;
 
     private static final int DIALOG_POWERON = 0;
     private static final int DIALOG_SCAN_PROGRESS = 1;
@@ -70,10 +71,13 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     private static final int DIALOG_IF_SCAN_NEXT = 3;
     private static final int DIALOG_SAVE_CHANNEL = 4;
     private static final int DIALOG_EDIT_CHANNEL = 5;
+    private static final int DIALOG_RESUME_SCAN = 6;
+    private static final int DIALOG_PTY_SEARCH = 7;
 
     private static final String ARG_FREQUENCY = "frequency";
     private static final String ARG_PRESET = "preset";
     private static final String ARG_NAME = "name";
+    private static final String ARG_PTY = "pty";
 
     public static final int PLAY_MENU_ID = 1;
     public static final int EDIT_MENU_ID = 2;
@@ -95,8 +99,6 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     private static final int MSG_CONTINUE_TUNE = 11;
     private static final int MSG_STOP_SCAN_ANIMATION = 12;
 
-    private int RANGE = 21000;
-    private int RANGE_START = 87000;
     private int RATE = 1000;
 
     public static final String RDS_TEXT_SEPARATOR = "..:";
@@ -176,15 +178,21 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     private String mRdsStationName;
     private String mRdsRadioText;
     private int mRdsPTYValue;
+    private int mRdsPi;
 
-    private int mCurFreq = FMUtil.MIN_FREQUENCY;
-    private int mPreFreq = FMUtil.MIN_FREQUENCY;
+    private BandPlan mBandPlan = BandPlan.DEFAULT;
+    private int mCurFreq = BandPlan.DEFAULT.min;
+    private int mPreFreq = BandPlan.DEFAULT.min;
     private boolean mRadioPowered = false;
     private boolean mSpeakerEnabled = false;
     private boolean mScanning = false;
     private boolean mTuning = false;
     private boolean mSeeking = false;
+    /* the running seek looks for a genre */
+    private boolean mPtySearching = false;
     private int mScannedStations = -1;
+    /* number of strongest stations kept by the running scan, 0 keeps all */
+    private int mScanPresetLimit = 0;
     private int mLongPressedButton = 0;
 
     private class ChannelListAdapter extends ResourceCursorAdapter {
@@ -294,6 +302,19 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         }
     };
 
+    /* the player service falls back to the default plan if the radio can't tune the configured one */
+    private final Preferences.OnConfigChangeListener mConfigListener = new Preferences.OnConfigChangeListener() {
+        @Override
+        public void onConfigChanged(Preferences.Config oldConfig, Preferences.Config newConfig) {
+            final BandPlan plan = BandPlan.get(newConfig.bandPlan);
+            if (plan != mBandPlan) {
+                mBandPlan = plan;
+                mSeekBar.setMax(mBandPlan.getChannelCount() - 1);
+                updateDisplayPanel();
+            }
+        }
+    };
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -329,15 +350,17 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
                 case MSG_STATION_SCANNED:
                     handleScannedStation(msg.arg1);
                     break;
-                case MSG_SCAN_FINISHED:
+                case MSG_SCAN_FINISHED: {
+                    int[] ghosts = (int[]) msg.obj;
                     mCurFreq = msg.arg1;
-                    handleScanFinished(false);
+                    handleScanFinished(false, ghosts[0], ghosts[1]);
                     break;
+                }
                 case MSG_SEEK_SCAN_ABORTED:
                     mCurFreq = msg.arg1;
                     if (mScannedStations >= 0) {
                         /* scan was aborted */
-                        handleScanFinished(true);
+                        handleScanFinished(true, 0, 0);
                     } else {
                         /* seek was aborted */
                         handleSeekFinished(true);
@@ -345,6 +368,9 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
                     break;
                 case MSG_SEEK_FINISHED:
                     mCurFreq = msg.arg1;
+                    if (mPtySearching && msg.arg2 == 0) {
+                        Toast.makeText(context, R.string.pty_search_none, Toast.LENGTH_SHORT).show();
+                    }
                     handleSeekFinished(false);
                     break;
                 case MSG_AUDIO_MODE_CHANGED:
@@ -358,17 +384,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
                     updateUI();
                     break;
                 case MSG_CONTINUE_TUNE:
-                    if (msg.arg1 != 0) {
-                        mCurFreq += FMUtil.STEP;
-                        if (mCurFreq > FMUtil.MAX_FREQUENCY) {
-                            mCurFreq = FMUtil.MIN_FREQUENCY;
-                        }
-                    } else {
-                        mCurFreq -= FMUtil.STEP;
-                        if (mCurFreq < FMUtil.MIN_FREQUENCY) {
-                            mCurFreq = FMUtil.MAX_FREQUENCY;
-                        }
-                    }
+                    mCurFreq = mBandPlan.getNext(mCurFreq, msg.arg1 != 0);
                     updatePresetSwitcher();
                     updateDisplayPanel();
                     mHandler.sendMessageDelayed(Message.obtain(msg), LONG_PRESS_TUNE_TIMEOUT);
@@ -421,8 +437,9 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         }
 
         @Override
-        public void onScanFinished(boolean success, int newFrequency) {
-            Message msg = Message.obtain(mHandler, MSG_SCAN_FINISHED, newFrequency, success ? 1 : 0, null);
+        public void onScanFinished(boolean success, int newFrequency, int merged, int discarded) {
+            Message msg = Message.obtain(mHandler, MSG_SCAN_FINISHED, newFrequency, success ? 1 : 0,
+                    new int[] { merged, discarded });
             mHandler.sendMessage(msg);
         }
 
@@ -438,7 +455,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         }
 
         @Override
-        public void onRdsDataChanged(final int frequency, final String stationName,
+        public void onRdsDataChanged(final int frequency, final int pi, final String stationName,
                 final String radioText, final int pty) {
             mHandler.post(new Runnable() {
                 @Override
@@ -447,6 +464,11 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
                     mRdsStationName = valid ? stationName : null;
                     mRdsRadioText = valid && radioText != null ? radioText.replaceAll("\n", " ") : null;
                     mRdsPTYValue = valid ? pty : 0;
+                    if (valid && pi != mRdsPi) {
+                        /* the station may be stored as preset on another frequency */
+                        mRdsPi = pi;
+                        updatePresetSwitcher();
+                    }
                     handleRdsDataChanged();
                 }
             });
@@ -493,6 +515,10 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     protected void onStart() {
         Log.d(TAG, "onStart()");
         super.onStart();
+        /* the band plan may have been changed in the settings */
+        mBandPlan = Preferences.getBandPlan(this);
+        mSeekBar.setMax(mBandPlan.getChannelCount() - 1);
+        Preferences.registerConfigListener(mConfigListener);
         mIsBound = bindToService();
         if (!mIsBound) {
             finish();
@@ -502,6 +528,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     @Override
     protected void onStop() {
         Log.d(TAG, "onStop()");
+        Preferences.unregisterConfigListener(mConfigListener);
         unbindService();
         super.onStop();
     }
@@ -520,7 +547,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     protected void onPrepareDialog(int id, Dialog dialog, Bundle args) {
         if (id == DIALOG_SAVE_CHANNEL) {
             SaveChannelDialog d = (SaveChannelDialog) dialog;
-            int frequency = args.getInt(ARG_FREQUENCY, FMUtil.MIN_FREQUENCY);
+            int frequency = args.getInt(ARG_FREQUENCY, mBandPlan.min);
             int preset = args.getInt(ARG_PRESET, 0);
             String name = args.getString(ARG_NAME);
 
@@ -535,6 +562,16 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
             final String message = MessageFormat.format(getString(R.string.scan_progress), mScannedStations);
 
             d.setMessage(message);
+        } else if (id == DIALOG_RESUME_SCAN) {
+            AlertDialog d = (AlertDialog) dialog;
+            int frequency = args.getInt(ARG_FREQUENCY, mBandPlan.min);
+
+            d.setMessage(getString(R.string.scan_resume_msg, FMUtil.formatFrequency(this, frequency)));
+        } else if (id == DIALOG_PTY_SEARCH) {
+            ProgressDialog d = (ProgressDialog) dialog;
+            int pty = args.getInt(ARG_PTY, 0);
+
+            d.setMessage(getString(R.string.pty_search_progress, getString(PTY_STRINGS[pty])));
         }
     }
 
@@ -545,8 +582,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
                 return new SaveChannelDialog(this, new SaveChannelDialog.OnSaveListener() {
                     @Override
                     public void onPresetSaved(int id) {
-                        updatePresetSwitcher(id + 1);
-                        setSelectedPreset(id);
+                        updatePresetSwitcher();
                         handleRdsDataChanged();
                     }
 
@@ -582,6 +618,17 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
                 });
                 return dialog;
             }
+            case DIALOG_PTY_SEARCH: {
+                ProgressDialog dialog = new ProgressDialog(this);
+                dialog.setIndeterminate(true);
+                dialog.setCancelable(true);
+                dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    public void onCancel(DialogInterface dialog) {
+                        cancelPtySearch();
+                    }
+                });
+                return dialog;
+            }
             case DIALOG_IF_SCAN_FIRST:
                 return new AlertDialog.Builder(this)
                         .setTitle(R.string.scan)
@@ -607,6 +654,24 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
                         })
                         .setNegativeButton(android.R.string.cancel, null)
                         .create();
+            case DIALOG_RESUME_SCAN:
+                return new AlertDialog.Builder(this)
+                        .setTitle(R.string.scan)
+                        .setMessage(R.string.scan_resume_msg)
+                        .setPositiveButton(R.string.scan_resume, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int whichButton) {
+                                resumeScanning();
+                            }
+                        })
+                        .setNeutralButton(R.string.scan_start_over, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int whichButton) {
+                                confirmNewScan();
+                            }
+                        })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .create();
         }
 
         return null;
@@ -648,6 +713,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         menu.findItem(R.id.menu_edit).setVisible(canEditPreset && mRadioPowered);
         menu.findItem(R.id.menu_save).setVisible(!canEditPreset && mRadioPowered);
         menu.findItem(R.id.menu_scan).setVisible(mRadioPowered);
+        menu.findItem(R.id.menu_find_genre).setVisible(mRadioPowered);
 
         return true;
     }
@@ -671,13 +737,28 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
             case R.id.menu_preferences:
                 startActivity(new Intent(this, SettingsActivity.class));
                 break;
-            case R.id.menu_scan:
-                if (isDBEmpty()) {
-                    startScanning();
+            case R.id.menu_banks:
+                showBankSelection();
+                break;
+            case R.id.menu_find_genre:
+                showGenreSelection();
+                break;
+            case R.id.menu_scan: {
+                int checkpoint = 0;
+                try {
+                    checkpoint = mService.getScanCheckpoint();
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Fetching scan checkpoint failed", e);
+                }
+                if (checkpoint > 0) {
+                    Bundle args = new Bundle();
+                    args.putInt(ARG_FREQUENCY, checkpoint);
+                    showDialog(DIALOG_RESUME_SCAN, args);
                 } else {
-                    showDialog(DIALOG_IF_SCAN_NEXT);
+                    confirmNewScan();
                 }
                 break;
+            }
             case R.id.menu_speaker:
                 int routing = mSpeakerEnabled
                         ? FMRadioPlayerService.FM_ROUTING_HEADSET
@@ -765,17 +846,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
                 break;
             case R.id.btn_reduce:
             case R.id.btn_add:
-                if (view.getId() == R.id.btn_reduce) {
-                    mCurFreq -= FMUtil.STEP;
-                    if (mCurFreq < FMUtil.MIN_FREQUENCY) {
-                        mCurFreq = FMUtil.MAX_FREQUENCY;
-                    }
-                } else {
-                    mCurFreq += FMUtil.STEP;
-                    if (mCurFreq > FMUtil.MAX_FREQUENCY) {
-                        mCurFreq = FMUtil.MIN_FREQUENCY;
-                    }
-                }
+                mCurFreq = mBandPlan.getNext(mCurFreq, view.getId() == R.id.btn_add);
                 updateFrequency();
                 break;
         }
@@ -849,16 +920,9 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     @Override
     public void onProgressChanged(SeekBar seekBar, int progress, boolean fromTouch) {
         if (fromTouch) {
-            int step = (progress / FMUtil.STEP) * FMUtil.STEP;
-            mCurFreq = RANGE_START + step;
+            /* the progress is the channel index */
+            mCurFreq = mBandPlan.getFrequency(progress);
             Log.d(TAG, "Changed frequency via progress change, now " + mCurFreq);
-            if (mCurFreq < FMUtil.MIN_FREQUENCY) {
-                setProgress(FMUtil.MIN_FREQUENCY - RANGE_START);
-                mCurFreq = FMUtil.MIN_FREQUENCY;
-            } else if (mCurFreq > FMUtil.MAX_FREQUENCY) {
-                setProgress(RANGE);
-                mCurFreq = FMUtil.MAX_FREQUENCY;
-            }
             updatePresetSwitcher();
             updateDisplayPanel();
         }
@@ -881,6 +945,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         mAdapter.swapCursor(cursor);
         updatePresetSwitcher();
+        updateBankTitle();
     }
 
     @Override
@@ -912,20 +977,22 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         mFrequencyPanel = findViewById(R.id.fm_panel_layout);
         mFrequencyPanel.setTouchDelegate(new TouchRedirector(mSeekBar));
 
-        mFreqDigits = new ImageSwitcher[5];
+        mFreqDigits = new ImageSwitcher[6];
         mFreqDigits[0] = (ImageSwitcher) findViewById(R.id.Img_switcher1);
         mFreqDigits[1] = (ImageSwitcher) findViewById(R.id.Img_switcher2);
         mFreqDigits[2] = (ImageSwitcher) findViewById(R.id.Img_switcher3);
         mFreqDigits[3] = (ImageSwitcher) findViewById(R.id.Img_switcher4);
         mFreqDigits[4] = (ImageSwitcher) findViewById(R.id.Img_switcher5);
+        mFreqDigits[5] = (ImageSwitcher) findViewById(R.id.Img_switcher6);
         for (ImageSwitcher switcher : mFreqDigits) {
             switcher.setFactory(this);
         }
 
         mPresetLayout = (LinearLayout) findViewById(R.id.preset_swt_layout);
-        mPresetDigits = new ImageSwitcher[2];
-        mPresetDigits[0] = (ImageSwitcher) findViewById(R.id.preset_swt1);
-        mPresetDigits[1] = (ImageSwitcher) findViewById(R.id.preset_swt2);
+        mPresetDigits = new ImageSwitcher[3];
+        mPresetDigits[0] = (ImageSwitcher) findViewById(R.id.preset_swt0);
+        mPresetDigits[1] = (ImageSwitcher) findViewById(R.id.preset_swt1);
+        mPresetDigits[2] = (ImageSwitcher) findViewById(R.id.preset_swt2);
         for (ImageSwitcher switcher : mPresetDigits) {
             switcher.setFactory(this);
         }
@@ -938,6 +1005,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         mChannelList = getListView();
         mAdapter = new ChannelListAdapter(this, null);
         mChannelList.setAdapter(mAdapter);
+        mChannelList.setFastScrollEnabled(true);
         getLoaderManager().initLoader(CHANNEL_LIST_LOADER, null, this);
         mChannelList.setOnCreateContextMenuListener(new View.OnCreateContextMenuListener() {
             @Override
@@ -973,7 +1041,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         mChannelList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                playClickPreset(position);
+                playClickPreset((int) id);
             }
         });
     }
@@ -1100,11 +1168,12 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         mRdsStationName = null;
         mRdsRadioText = null;
         mRdsPTYValue = 0;
+        mRdsPi = 0;
         mRdsMarqueeText.setText(null);
     }
 
-    private void playClickPreset(int position) {
-        Uri uri = Uri.withAppendedPath(Channels.CONTENT_URI, String.valueOf(position));
+    private void playClickPreset(int preset) {
+        Uri uri = Uri.withAppendedPath(Channels.CONTENT_URI, String.valueOf(preset));
         Cursor cursor = getContentResolver().query(uri, FMUtil.PROJECTION, null, null, null);
 
         if (cursor == null) {
@@ -1115,7 +1184,7 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
             int frequency = cursor.getInt(FMUtil.CHANNEL_COLUMN_FREQ);
             if (frequency == 0) {
                 Log.d(TAG, "Selected an empty channel, saving...");
-                saveChannel(position);
+                saveChannel(preset);
             } else {
                 mCurFreq = frequency;
                 updatePresetSwitcher();
@@ -1131,25 +1200,57 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
 
         if (mService != null) {
             try {
-                scanning = mService.scan();
+                scanning = Preferences.useSweepScan(this) ? mService.sweepScan() : mService.scan();
             } catch (RemoteException e) {
                 Log.e(TAG, "Initiating scan failed", e);
             }
         }
         if (scanning) {
-            Preferences.setScanned(FMRadioMain.this, true);
-            mCurFreq = FMUtil.MIN_FREQUENCY;
-            mWakeLock.acquire(LIGHT_ON_TIME);
-            mScanning = true;
-            mScannedStations = 0;
-            updateUI();
-            showDialog(DIALOG_SCAN_PROGRESS);
+            mCurFreq = mBandPlan.min;
+            handleScanStarted(0);
         } else {
             Log.d(TAG, "Scan request failed");
             FMUtil.showNoticeDialog(this, R.string.error_start_scan);
         }
     }
 
+    /* continues an interrupted scan, the stations it found are kept */
+    private void resumeScanning() {
+        int restored = -1;
+
+        if (mService != null) {
+            try {
+                restored = mService.resumeScan();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Resuming scan failed", e);
+            }
+        }
+        if (restored >= 0) {
+            handleScanStarted(restored);
+        } else {
+            Log.d(TAG, "Resume scan request failed");
+            FMUtil.showNoticeDialog(this, R.string.error_start_scan);
+        }
+    }
+
+    private void confirmNewScan() {
+        if (isDBEmpty()) {
+            startScanning();
+        } else {
+            showDialog(DIALOG_IF_SCAN_NEXT);
+        }
+    }
+
+    private void handleScanStarted(int stations) {
+        Preferences.setScanned(FMRadioMain.this, true);
+        mWakeLock.acquire(LIGHT_ON_TIME);
+        mScanning = true;
+        mScannedStations = stations;
+        mScanPresetLimit = Preferences.getScanPresetLimit(this);
+        updateUI();
+        showDialog(DIALOG_SCAN_PROGRESS);
+    }
+
     private void startSeek(int freq, boolean upward) {
         if (mService != null) {
             try {
@@ -1163,6 +1264,71 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         }
     }
 
+    private void showGenreSelection() {
+        boolean rbds = false;
+        try {
+            rbds = mService.isRbds();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not get RDS mode", e);
+        }
+
+        /* the RBDS program types follow the RDS ones */
+        final int first = rbds ? 33 : 1;
+        final int last = rbds ? PTY_STRINGS.length - 1 : 31;
+        final int[] ptys = new int[last - first + 1];
+        final CharSequence[] items = new CharSequence[ptys.length];
+        int checked = -1;
+        for (int i = 0; i < ptys.length; i++) {
+            ptys[i] = first + i;
+            items[i] = getString(PTY_STRINGS[ptys[i]]);
+            if (ptys[i] == mRdsPTYValue) {
+                checked = i;
+            }
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_find_genre)
+                .setSingleChoiceItems(items, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                        startPtySearch(ptys[which]);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create()
+                .show();
+    }
+
+    private void startPtySearch(int pty) {
+        if (mService == null) {
+            return;
+        }
+        try {
+            if (mService.seekPty(pty)) {
+                mSeeking = true;
+                mPtySearching = true;
+                clearRdsInfo();
+                updateUI();
+                Bundle args = new Bundle();
+                args.putInt(ARG_PTY, pty);
+                showDialog(DIALOG_PTY_SEARCH, args);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Genre search failed", e);
+        }
+    }
+
+    private void cancelPtySearch() {
+        if (mService != null) {
+            try {
+                mService.stopSeek();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Could not stop genre search", e);
+            }
+        }
+    }
+
     private void updateFrequency() {
         if (mService != null) {
             try {
@@ -1198,75 +1364,79 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     }
 
     private void updateDisplayPanel() {
-        mSeekBar.setProgress(mCurFreq - RANGE_START);
+        mSeekBar.setProgress(mBandPlan.getNearestIndex(mCurFreq));
         updateFrequencyDisplay();
     }
 
     private void updateFrequencyDisplay() {
-        if (mCurFreq < FMUtil.MIN_FREQUENCY || mCurFreq > FMUtil.MAX_FREQUENCY) {
+        if (mCurFreq < mBandPlan.min || mCurFreq > mBandPlan.max) {
             return;
         }
 
-        int digit1, digit2, digit3, digit4, freq = mCurFreq;
-
-        digit1 = freq / 100000;
-        freq -= digit1 * 100000;
-        digit2 = freq / 10000;
-        freq -= digit2 * 10000;
-        digit3 = freq / 1000;
-        freq -= digit3 * 1000;
-        digit4 = freq / 100;
-
-        Log.v(TAG, "FMRadio updateDisplay: currentFreq " + mCurFreq + " -> digits " +
-                digit1 + " " + digit2 + " " + digit3 + " " + digit4);
+        /* digits around the decimal point: hundreds, tens, ones, point, tenths, hundredths */
+        final String label = mBandPlan.getLabel(mCurFreq);
+        final int point = label.length() - mBandPlan.decimals - 1;
+        Log.v(TAG, "FMRadio updateDisplay: currentFreq " + mCurFreq + " -> " + label);
 
         int[] numbers = mRadioPowered ? NUMBER_IMAGES : NUMBER_IMAGES_DISABLED;
         int dot = mRadioPowered ? R.drawable.fm_number_point : R.drawable.fm_number_disabled_point;
 
-        mFreqDigits[0].setImageResource(numbers[digit1]);
-        mFreqDigits[0].setVisibility(digit1 == 0 ? View.GONE : View.VISIBLE);
-        mFreqDigits[1].setImageResource(numbers[digit2]);
-        mFreqDigits[2].setImageResource(numbers[digit3]);
-        mFreqDigits[3].setImageResource(dot);
-        mFreqDigits[4].setImageResource(numbers[digit4]);
+        for (int i = 0; i < mFreqDigits.length; i++) {
+            final int pos = point - 3 + i;
+            if (i == 3) {
+                mFreqDigits[i].setImageResource(dot);
+            } else if (pos < 0 || pos >= label.length()) {
+                mFreqDigits[i].setVisibility(View.GONE);
+            } else {
+                mFreqDigits[i].setImageResource(numbers[Character.digit(label.charAt(pos), 10)]);
+                mFreqDigits[i].setVisibility(View.VISIBLE);
+            }
+        }
     }
 
     private void clearPresetSwitcher() {
         mPresetLayout.setBackgroundDrawable(null);
-        mPresetDigits[0].setImageDrawable(null);
-        mPresetDigits[1].setImageDrawable(null);
+        for (ImageSwitcher switcher : mPresetDigits) {
+            switcher.setImageDrawable(null);
+        }
+        mPresetDigits[0].setVisibility(View.GONE);
     }
 
     private void updatePresetSwitcher(int index) {
-        if (index <= 0 || index > PRESET_NUM) {
+        if (index <= 0 || index > Channels.MAX_PRESETS) {
             return;
         }
-        int index1 = index / 10;
-        int index2 = index - (index1 * 10);
+        int index0 = index / 100;
+        int index1 = (index / 10) % 10;
+        int index2 = index % 10;
         mPresetLayout.setBackgroundDrawable(getResources()
                 .getDrawable(R.drawable.fm_playing_list_bg));
-        mPresetDigits[0].setImageResource(NUMBER_IMAGES_PRESET[index1]);
-        mPresetDigits[1].setImageResource(NUMBER_IMAGES_PRESET[index2]);
+        mPresetDigits[0].setImageResource(NUMBER_IMAGES_PRESET[index0]);
+        mPresetDigits[0].setVisibility(index0 == 0 ? View.GONE : View.VISIBLE);
+        mPresetDigits[1].setImageResource(NUMBER_IMAGES_PRESET[index1]);
+        mPresetDigits[2].setImageResource(NUMBER_IMAGES_PRESET[index2]);
     }
 
     private boolean updatePresetSwitcher() {
         int index = -1;
+        int position = -1;
 
         if (mRadioPowered && mCurFreq > 0) {
-            Cursor cursor = getContentResolver().query(Channels.CONTENT_URI, FMUtil.PROJECTION,
-                    Channels.FREQUENCY + "=?", new String[] { String.valueOf(mCurFreq) }, null);
-
-            if (cursor != null) {
-                if (cursor.moveToFirst()) {
-                    index = cursor.getInt(FMUtil.CHANNEL_COLUMN_ID);
-                }
-                cursor.close();
+            Bundle args = new Bundle();
+            args.putInt(Channels.EXTRA_FREQUENCY, mCurFreq);
+            args.putInt(Channels.EXTRA_PI, mRdsPi);
+
+            Bundle result = getContentResolver().call(Channels.CONTENT_URI,
+                    Channels.METHOD_LOOKUP_BY_FREQUENCY, null, args);
+            if (result != null) {
+                index = result.getInt(Channels.EXTRA_PRESET, -1);
+                position = result.getInt(Channels.EXTRA_POSITION, -1);
             }
         }
 
-        if (index >= 0 && index < PRESET_NUM) {
+        if (index >= 0 && index < Channels.MAX_PRESETS) {
             updatePresetSwitcher(index + 1);
-            setSelectedPreset(index);
+            setSelectedPreset(position);
         } else {
             clearPresetSwitcher();
             setSelectedPreset(-1);
@@ -1275,12 +1445,12 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         return index >= 0;
     }
 
-    private void setSelectedPreset(int preset) {
-        mChannelList.setSelection(preset);
-        if (preset < 0) {
+    private void setSelectedPreset(int position) {
+        mChannelList.setSelection(position);
+        if (position < 0) {
             mChannelList.clearChoices();
         } else {
-            mChannelList.setItemChecked(preset, true);
+            mChannelList.setItemChecked(position, true);
         }
         mChannelList.invalidateViews();
         invalidateOptionsMenu();
@@ -1295,25 +1465,9 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     }
 
     private int getIndexOfEmptyItem() {
-        Cursor cursor = getContentResolver().query(Channels.CONTENT_URI, FMUtil.PROJECTION, null, null, null);
-        int count = 0;
-
-        if (cursor != null) {
-            cursor.moveToFirst();
-            while (!cursor.isAfterLast()) {
-                if (cursor.getInt(FMUtil.CHANNEL_COLUMN_FREQ) == 0) {
-                    break;
-                }
-                count++;
-                cursor.moveToNext();
-            }
-            if (cursor.isAfterLast()) {
-                count = -1;
-            }
-            cursor.close();
-        }
-
-        return count;
+        Bundle info = getContentResolver().call(Channels.CONTENT_URI,
+                Channels.METHOD_GET_PRESET_INFO, null, null);
+        return info != null ? info.getInt(Channels.EXTRA_FIRST_EMPTY, -1) : -1;
     }
 
     public void clearDB() {
@@ -1327,21 +1481,9 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     }
 
     public boolean isDBEmpty() {
-        Cursor cursor = getContentResolver().query(Channels.CONTENT_URI, FMUtil.PROJECTION, null, null, null);
-        boolean empty = true;
-
-        if (cursor != null) {
-            cursor.moveToFirst();
-            while (!cursor.isAfterLast()) {
-                if (cursor.getInt(FMUtil.CHANNEL_COLUMN_FREQ) != 0) {
-                    empty = false;
-                    break;
-                }
-                cursor.moveToNext();
-            }
-            cursor.close();
-        }
-        return empty;
+        Bundle info = getContentResolver().call(Channels.CONTENT_URI,
+                Channels.METHOD_GET_PRESET_INFO, null, null);
+        return info == null || info.getInt(Channels.EXTRA_COUNT, 0) == 0;
     }
 
     private void saveStationToDB(int id, int freq, String name, String rdsName) {
@@ -1373,6 +1515,126 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         showDialog(DIALOG_EDIT_CHANNEL, args);
     }
 
+    private void updateBankTitle() {
+        Bundle bank = getContentResolver().call(Banks.CONTENT_URI,
+                Banks.METHOD_GET_ACTIVE_BANK, null, null);
+        if (mActionBar != null && bank != null) {
+            mActionBar.setSubtitle(bank.getString(Banks.EXTRA_NAME));
+        }
+    }
+
+    private void showBankSelection() {
+        Cursor cursor = getContentResolver().query(Banks.CONTENT_URI,
+                new String[] { Banks.ID, Banks.NAME }, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        final int count = cursor.getCount();
+        final int[] bankIds = new int[count];
+        final CharSequence[] items = new CharSequence[count + 1];
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            bankIds[i] = cursor.getInt(0);
+            items[i] = cursor.getString(1);
+        }
+        items[count] = getString(R.string.new_bank);
+        cursor.close();
+
+        Bundle active = getContentResolver().call(Banks.CONTENT_URI,
+                Banks.METHOD_GET_ACTIVE_BANK, null, null);
+        final int activeBank = active != null ? active.getInt(Banks.EXTRA_BANK, -1) : -1;
+        int checked = -1;
+        for (int i = 0; i < count; i++) {
+            if (bankIds[i] == activeBank) {
+                checked = i;
+            }
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_banks)
+                .setSingleChoiceItems(items, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                        if (which == count) {
+                            showNewBankDialog();
+                        } else {
+                            selectBank(bankIds[which]);
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null);
+        /* there must always be a bank to store presets in */
+        if (count > 1 && checked >= 0) {
+            final CharSequence activeName = items[checked];
+            builder.setNeutralButton(R.string.delete_bank, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    confirmDeleteBank(activeBank, activeName);
+                }
+            });
+        }
+        builder.create().show();
+    }
+
+    private void confirmDeleteBank(final int bank, CharSequence name) {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.delete_bank)
+                .setMessage(getString(R.string.delete_bank_confirm, name))
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Uri uri = Uri.withAppendedPath(Banks.CONTENT_URI, String.valueOf(bank));
+                        if (getContentResolver().delete(uri, null, null) > 0) {
+                            updateBankTitle();
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create()
+                .show();
+    }
+
+    private void showNewBankDialog() {
+        final EditText nameField = new EditText(this);
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.new_bank_title)
+                .setView(nameField)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String name = nameField.getText().toString().trim();
+                        if (TextUtils.isEmpty(name)) {
+                            return;
+                        }
+                        ContentValues cv = new ContentValues();
+                        cv.put(Banks.NAME, name);
+                        Uri uri = getContentResolver().insert(Banks.CONTENT_URI, cv);
+                        if (uri != null) {
+                            selectBank(Integer.parseInt(uri.getLastPathSegment()));
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create()
+                .show();
+    }
+
+    private void selectBank(int bank) {
+        Bundle args = new Bundle();
+        args.putInt(Banks.EXTRA_BANK, bank);
+        Bundle result = getContentResolver().call(Banks.CONTENT_URI,
+                Banks.METHOD_SELECT_BANK, null, args);
+        if (result == null) {
+            Log.w(TAG, "Selecting preset bank " + bank + " failed");
+            return;
+        }
+        if (mActionBar != null) {
+            mActionBar.setSubtitle(result.getString(Banks.EXTRA_NAME));
+        }
+    }
+
     private void handleRdsDataChanged() {
         Log.v(TAG, "RDS data changed, station " + mRdsStationName + " radio text " +
                 mRdsRadioText + " pty " + mRdsPTYValue);
@@ -1417,16 +1679,26 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
         updateUI();
     }
 
-    private void handleScanFinished(boolean canceled) {
+    private void handleScanFinished(boolean canceled, int merged, int discarded) {
         if (!canceled) {
             dismissDialog(DIALOG_SCAN_PROGRESS);
         }
         StringBuilder sb = new StringBuilder();
-        if (canceled && mScannedStations < PRESET_NUM) {
+        if (canceled) {
             sb.append(getString(R.string.fmradio_save_canceled));
             sb.append("\n");
         }
-        sb.append(MessageFormat.format(getString(R.string.scan_result), mScannedStations));
+        /* the presets are rewritten from the service's results, which lack the ghosts */
+        final int saved = mScannedStations > 0 ? saveStrongestStations() : 0;
+        sb.append(MessageFormat.format(getString(R.string.scan_result), mScannedStations - discarded));
+        if (discarded > 0) {
+            sb.append("\n");
+            sb.append(getString(R.string.scan_ghosts_dropped, discarded, merged));
+        }
+        if (mScanPresetLimit > 0 && saved > 0) {
+            sb.append("\n");
+            sb.append(getString(R.string.scan_saved_strongest, saved));
+        }
 
         Toast.makeText(FMRadioMain.this, sb.toString(), Toast.LENGTH_SHORT).show();
 
@@ -1447,17 +1719,42 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
             return;
         }
 
-        if (mScannedStations < PRESET_NUM) {
-            saveStationToDB(mScannedStations, frequency, "", "");
-            mScannedStations++;
-            showDialog(DIALOG_SCAN_PROGRESS);
+        /* the presets are saved in one batch once the scan is finished */
+        mScannedStations++;
+        showDialog(DIALOG_SCAN_PROGRESS);
+        updateUI();
+    }
+
+    /*
+     * Replaces the presets with the stations of the last scan in one batch,
+     * all of them or only the strongest depending on the scan mode. If the
+     * bank can't hold all stations, the strongest are kept in both modes.
+     */
+    private int saveStrongestStations() {
+        final int limit = mScanPresetLimit > 0
+                ? Math.min(mScanPresetLimit, Channels.MAX_PRESETS) : Channels.MAX_PRESETS;
+        int[] frequencies = null;
+
+        if (mService != null) {
+            try {
+                frequencies = mService.getStrongestScanResults(limit);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Fetching scan results failed", e);
+            }
+        }
+        if (frequencies == null || frequencies.length == 0) {
+            return 0;
         }
 
-        if (mScannedStations >= PRESET_NUM) {
-            cancelScan();
+        int[] ids = new int[frequencies.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
         }
 
-        updateUI();
+        Bundle args = PresetSnapshot.fromArrays(ids, frequencies, new String[ids.length]).toBundle();
+        args.putBoolean(Channels.EXTRA_MERGE, false);
+        getContentResolver().call(Channels.CONTENT_URI, Channels.METHOD_RESTORE_PRESETS, null, args);
+        return frequencies.length;
     }
 
     private void cancelScan() {
@@ -1475,6 +1772,10 @@ public class FMRadioMain extends ListActivity implements SeekBar.OnSeekBarChange
     }
 
     private void handleSeekFinished(boolean aborted) {
+        if (mPtySearching) {
+            mPtySearching = false;
+            dismissDialog(DIALOG_PTY_SEARCH);
+        }
         mPreFreq = mCurFreq;
         mSeeking = false;
         clearRdsInfo();
@@ -5,21 +5,24 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.media.MediaMetadataRetriever;
 import android.media.RemoteControlClient;
+import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
@@ -27,6 +30,7 @@ import android.widget.RemoteViews;
 
 import com.motorola.android.fmradio.IFMRadioService;
 import com.motorola.android.fmradio.IFMRadioServiceCallback;
+import com.motorola.fmradio.FMDataProvider.Banks;
 import com.motorola.fmradio.FMDataProvider.Channels;
 
 public class FMRadioPlayerService extends Service {
@@ -72,8 +76,71 @@ public class FMRadioPlayerService extends Service {
     private static final int MSG_RESTORE_AUDIO_AFTER_FOCUS_LOSS = 12;
     private static final int MSG_SET_ROUTING = 13;
     private static final int MSG_SHUTDOWN = 14;
+    private static final int MSG_RSSI_UPDATE = 15;
+    private static final int MSG_FINISH_SCAN = 16;
+    private static final int MSG_INSTANT_SEEK_TIMEOUT = 17;
+    private static final int MSG_RESUME_SCAN = 18;
+    private static final int MSG_START_SWEEP = 19;
+    private static final int MSG_STOP_SWEEP = 20;
+    private static final int MSG_SWEEP_TIMEOUT = 21;
+    private static final int MSG_CHECK_NOISE_FLOOR = 22;
+    private static final int MSG_CALIBRATION_TIMEOUT = 23;
+    private static final int MSG_SMART_SEEK_CHECK = 24;
+    private static final int MSG_STOP_SMART_SEEK = 25;
+    private static final int MSG_RDS_RTPLUS_UPDATE = 26;
+    private static final int MSG_CONFIRM_RDS_TEXT = 27;
+    private static final int MSG_AF_MONITOR = 28;
+    private static final int MSG_AF_TIMEOUT = 29;
+    private static final int MSG_AF_VERIFY = 30;
+    private static final int MSG_SEEK_PTY = 31;
+    private static final int MSG_PTY_SWEEP_CHECK = 32;
+    private static final int MSG_STOP_PTY_SWEEP = 33;
+    private static final int MSG_SCAN_STARTED = 34;
+    private static final int MSG_RSSI_FAILED = 35;
 
     private static final int IDLE_DELAY = 10 * 1000;
+    /* how long a finished scan waits for outstanding RSSI replies */
+    private static final int SCAN_RSSI_TIMEOUT = 500;
+    /* how long an instant seek waits for the signal check before falling back to a real seek */
+    private static final int INSTANT_SEEK_RSSI_TIMEOUT = 300;
+    /* a channel whose RSSI doesn't arrive within this time counts as empty */
+    private static final int SWEEP_RSSI_TIMEOUT = 300;
+    /* empty channels measured when calibrating the automatic seek threshold */
+    private static final int CALIBRATION_CHANNELS = 8;
+    /* channels this close (kHz) to a known station aren't used for calibration */
+    private static final int CALIBRATION_SPACING = 200;
+    /* how long a due calibration waits for the tuner to become free */
+    private static final int CALIBRATION_RETRY_DELAY = 5 * 1000;
+    /* how long a smart seek watches a stop for RDS before judging its signal */
+    private static final int SMART_SEEK_CHECK_WINDOW = 400;
+    /* once a smart seek ran this long, the next stop is reported as it is */
+    private static final int SMART_SEEK_BUDGET = 4000;
+    /* largest RSSI change between two samples of a steady signal */
+    private static final int SMART_SEEK_RSSI_JITTER = 4;
+    /* times a received PS or RT character must be confirmed before the text is shown */
+    private static final int RDS_TEXT_CONFIRMATIONS = 2;
+    private static final int RDS_PS_LENGTH = 8;
+    private static final int RDS_RT_LENGTH = 64;
+    /* the tuner may report a text once only, it is read again for confirmation */
+    private static final int RDS_CONFIRM_DELAY = 250;
+    private static final int RDS_CONFIRM_READS = 4;
+    /* how often the signal is checked for alternative frequency following, and once it got weak */
+    private static final int AF_MONITOR_INTERVAL = 5000;
+    private static final int AF_DEGRADED_INTERVAL = 1000;
+    /* weak samples in a row before alternative frequencies are tried */
+    private static final int AF_WEAK_SAMPLES = 2;
+    /* a sample this far above the seek threshold ends a weak spell */
+    private static final int AF_HYSTERESIS = 3;
+    /* RSSI an alternative frequency must gain over the current one to be switched to */
+    private static final int AF_MIN_GAIN = 6;
+    /* alternative frequencies are tried at most this often */
+    private static final int AF_RETRY_INTERVAL = 30 * 1000;
+    private static final int AF_MAX_CANDIDATES = 5;
+    /* the PI code is checked after switching, RDS takes a moment to sync */
+    private static final int AF_VERIFY_DELAY = 300;
+    private static final int AF_VERIFY_READS = 8;
+    /* how long a genre sweep waits for the program type at a stop, RDS needs about a second to sync */
+    private static final int PTY_SWEEP_CHECK_WINDOW = 1500;
 
     private IFMRadioService mIFMRadioService = null;
     private IFMRadioPlayerServiceCallbacks mCallbacks = null;
@@ -96,6 +163,30 @@ public class FMRadioPlayerService extends Service {
 
     private State mState = State.POWERDOWN;
 
+    /*
+     * What the tuner is used for. An engine claims the tuner when it starts
+     * and releases it when done; tune and seek completions are dispatched
+     * to the owner, and the tuner is busy as long as it has one.
+     */
+    private static enum TunerOwner {
+        IDLE,
+        SEEK,
+        INSTANT_SEEK,
+        SCAN,
+        SCAN_RESUME,
+        SWEEP,
+        SWEEP_RETURN,
+        CALIBRATION,
+        CALIBRATION_RETURN,
+        AF_SEARCH,
+        AF_RETURN,
+        AF_VERIFY,
+        PTY_SWEEP,
+        PTY_TUNE
+    };
+
+    private volatile TunerOwner mTunerOwner = TunerOwner.IDLE;
+
     /* flag indicating the current mute state */
     private boolean mMuted = false;
     /* flag indicating whether any client is bound to the service */
@@ -106,6 +197,10 @@ public class FMRadioPlayerService extends Service {
     private boolean mLostAudioFocus = false;
     /* flag indicating whether we're on the US band (important for handling RDS data) */
     private boolean mUSBand = false;
+    private BandPlan mBandPlan = BandPlan.DEFAULT;
+    private boolean mBandPlanApplied = false;
+    /* band selected by the platform, restored for plans that don't pick one */
+    private int mPlatformBand = -1;
 
     private int mServiceStartId = -1;
 
@@ -122,9 +217,87 @@ public class FMRadioPlayerService extends Service {
     private String mRdsStationName;
     private String mRdsRadioText;
     private int mRdsPTYValue;
+    /* PI code of the station, 0 until it came with a name or programme type */
+    private int mRdsPi;
+    /* the RDS data above was restored from the cache, nothing was received yet */
+    private boolean mRdsStale;
+    private final RdsCache mRdsCache = new RdsCache();
+    private final RdsTextStabilizer mPsStabilizer =
+            new RdsTextStabilizer(RDS_PS_LENGTH, RDS_TEXT_CONFIRMATIONS);
+    private final RdsTextStabilizer mRtStabilizer =
+            new RdsTextStabilizer(RDS_RT_LENGTH, RDS_TEXT_CONFIRMATIONS);
+    private int mRdsConfirmReads;
+    /* last RT+ tags reported by the tuner and the song they describe */
+    private String mRdsRtPlusTags;
+    private final RadioTextPlus mRadioTextPlus = new RadioTextPlus();
+    /* metadata last handed to the remote control client */
+    private String mRemoteControlArtist;
+    private String mRemoteControlTitle;
+    private boolean mRemoteControlActive;
+    private boolean mRemoteControlValid;
 
     private BroadcastReceiver mReceiver = null;
+    /* settings handed over by the app's other process, protected by PERMISSION_SETTINGS */
+    private BroadcastReceiver mSettingsReceiver = null;
     private ContentObserver mObserver = null;
+    private StationCatalog mStationCatalog;
+    private final ScanResults mScanResults = new ScanResults();
+    private boolean mScanSucceeded;
+    private ScanCheckpoint mScanCheckpoint;
+    /* the running software sweep, if any; muted until the tune to its first station completes */
+    private SpectrumSweep mSweep;
+    private int mSweepReported;
+    private boolean mSweepWasMuted;
+    private NoiseFloor mNoiseFloor;
+    /* channels measured by a running noise floor calibration; muted until the tuner is back */
+    private int[] mCalibrationChannels;
+    private int mCalibrationIndex;
+    private int mCalibrationReturn;
+    private boolean mCalibrationWasMuted;
+    /* the radio was powered on but didn't get to its first frequency yet, calibration must wait */
+    private boolean mPowerOnTunePending;
+    /* seek direction (as passed to the tuner) while an instant seek is verified */
+    private int mInstantSeekDirection = -1;
+    /* seek direction while a smart seek runs, -1 for a plain seek */
+    private int mSmartSeekDirection = -1;
+    private int mSmartSeekStart;
+    private long mSmartSeekDeadline;
+    /* a seek stop is being checked; its first RSSI sample, -1 until that arrived */
+    private boolean mSmartSeekChecking;
+    private int mSmartSeekRssi;
+
+    private final RssiRequests mRssiRequests = new RssiRequests();
+    /* id of the RSSI request the running engine waits for, 0 if none */
+    private int mRssiAwaited;
+
+    /* alternative frequency following: weak signal samples in a row, and when frequencies were last tried */
+    private int mAfWeakSamples;
+    private long mAfLastAttempt;
+    /* a signal sample of the monitor is outstanding */
+    private boolean mAfSampling;
+    /* alternative frequencies being measured, muted */
+    private int[] mAfCandidates;
+    private int mAfIndex;
+    private int mAfOrigin;
+    private int mAfOriginRssi;
+    private int mAfBest;
+    private int mAfBestRssi;
+    private int mAfPi;
+    private boolean mAfWasMuted;
+    /* frequency switched to and remaining PI checks there, muted until they're done */
+    private int mAfTarget;
+    private int mAfVerifyReads;
+
+    /* program type looked for by a running genre sweep */
+    private int mPtySweep = -1;
+    private int mPtySweepStart;
+    private int mPtySweepLast;
+    private boolean mPtySweepWrapped;
+    private boolean mPtySweepWasMuted;
+    /* a sweep stop waits for its program type */
+    private boolean mPtySweepChecking;
+    /* whether the genre search result being tuned to is a station of the genre */
+    private boolean mPtyFound;
 
     protected ServiceConnection mConnection = new ServiceConnection() {
         @Override
@@ -203,8 +376,12 @@ public class FMRadioPlayerService extends Service {
                     mHandler.sendMessage(msg);
                     break;
                 }
-                case 8:
+                case 8: {
+                    String tags = mIFMRadioService.getRdsRTPLUS();
+                    Message msg = Message.obtain(mHandler, MSG_RDS_RTPLUS_UPDATE, tags);
+                    mHandler.sendMessage(msg);
                     break;
+                }
                 case 9:
                     if (status == 0) {
                         notifyEnableChangeComplete(true, false);
@@ -220,7 +397,7 @@ public class FMRadioPlayerService extends Service {
                     if (!mState.isInitializing()) {
                         break;
                     }
-                    if (setSeekSensitivity(Preferences.getSeekSensitivityThreshold(context))) {
+                    if (setSeekSensitivity(getSeekThreshold())) {
                         break;
                     }
                     /* otherwise fall-through intended, failure to set RSSI is non-fatal */
@@ -238,6 +415,10 @@ public class FMRadioPlayerService extends Service {
                         audioPrepare(mAudioRouting);
                         transitionToState(State.PLAYING);
                         notifyEnableChangeComplete(true, true);
+                        if (!mPowerOnTunePending) {
+                            mHandler.sendEmptyMessage(MSG_CHECK_NOISE_FLOOR);
+                        }
+                        mHandler.sendEmptyMessageDelayed(MSG_AF_MONITOR, AF_MONITOR_INTERVAL);
                     }
                     break;
                 case 24: {
@@ -250,6 +431,16 @@ public class FMRadioPlayerService extends Service {
                     mHandler.sendMessage(msg);
                     break;
                 }
+                case 22:
+                    /* completion of getRSSI(), value carries the signal level */
+                    if (status != 0) {
+                        Message msg = Message.obtain(mHandler, MSG_RSSI_UPDATE, Integer.parseInt(value), 0, null);
+                        mHandler.sendMessage(msg);
+                    } else {
+                        /* the failure still answers the oldest request */
+                        mHandler.sendEmptyMessage(MSG_RSSI_FAILED);
+                    }
+                    break;
                 case 11:
                 case 12:
                 case 13:
@@ -259,7 +450,6 @@ public class FMRadioPlayerService extends Service {
                 case 18:
                 case 19:
                 case 21:
-                case 22:
                     if (status == 0 && mCallbacks != null) {
                         try {
                             mCallbacks.onError();
@@ -307,6 +497,9 @@ public class FMRadioPlayerService extends Service {
                 return true;
             }
 
+            /* settings may have been changed while we were not listening */
+            Preferences.reloadConfig(FMRadioPlayerService.this);
+
             boolean inAirplaneMode = Settings.System.getInt(
                     getContentResolver(), Settings.System.AIRPLANE_MODE_ON, 0) == 1;
 
@@ -342,15 +535,56 @@ public class FMRadioPlayerService extends Service {
         public boolean scan() {
             Log.d(TAG, "Got scan request");
             if (mState.isActive()) {
+                mScanCheckpoint.clear();
+                mScanResults.start();
+                /* handled before the first hit is reported */
+                mHandler.sendEmptyMessage(MSG_SCAN_STARTED);
                 try {
-                    return mIFMRadioService.scan();
+                    if (mIFMRadioService.scan()) {
+                        return true;
+                    }
                 } catch (RemoteException e) {
                     Log.e(TAG, "Initiating scan failed", e);
                 }
+                mScanResults.stop();
+            }
+            return false;
+        }
+
+        @Override
+        public boolean sweepScan() {
+            Log.d(TAG, "Got sweep scan request");
+            if (mState.isActive()) {
+                mHandler.sendEmptyMessage(MSG_START_SWEEP);
+                return true;
             }
             return false;
         }
 
+        @Override
+        public int getScanCheckpoint() {
+            return mScanCheckpoint.getFrequency();
+        }
+
+        @Override
+        public int resumeScan() {
+            Log.d(TAG, "Got resume scan request");
+            if (mState.isActive()) {
+                final int frequency = mScanCheckpoint.restore(mScanResults);
+                if (frequency > 0) {
+                    Message msg = Message.obtain(mHandler, MSG_RESUME_SCAN, frequency, 0, null);
+                    mHandler.sendMessage(msg);
+                    return mScanResults.getCount();
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int[] getStrongestScanResults(int count) {
+            return mScanResults.getStrongest(count);
+        }
+
         @Override
         public boolean isPowered() {
             return !mState.isIdle();
@@ -367,6 +601,22 @@ public class FMRadioPlayerService extends Service {
             return false;
         }
 
+        @Override
+        public boolean seekPty(int pty) {
+            Log.d(TAG, "Got genre search request, program type " + pty);
+            if (mState.isActive()) {
+                Message msg = Message.obtain(mHandler, MSG_SEEK_PTY, pty, 0, null);
+                mHandler.sendMessage(msg);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isRbds() {
+            return mUSBand;
+        }
+
         @Override
         public void setAudioRouting(int routing) {
             Log.d(TAG, "Got request for setting audio routing to " + routing);
@@ -377,8 +627,15 @@ public class FMRadioPlayerService extends Service {
         @Override
         public boolean stopScan() {
             Log.d(TAG, "Got stop scan request");
+            if (mState.isActive() && mTunerOwner == TunerOwner.SWEEP) {
+                mHandler.sendEmptyMessage(MSG_STOP_SWEEP);
+                return true;
+            }
             if (mState.isActive()) {
                 try {
+                    if (mTunerOwner == TunerOwner.SCAN_RESUME) {
+                        return mIFMRadioService.stopSeek();
+                    }
                     return mIFMRadioService.stopScan();
                 } catch (RemoteException e) {
                     Log.e(TAG, "Stopping scan failed", e);
@@ -390,6 +647,15 @@ public class FMRadioPlayerService extends Service {
         @Override
         public boolean stopSeek() {
             Log.d(TAG, "Got stop seek request");
+            if (mTunerOwner == TunerOwner.SEEK) {
+                /* the tuner may be idle while a stop is checked */
+                mHandler.sendEmptyMessage(MSG_STOP_SMART_SEEK);
+                return true;
+            }
+            if (mTunerOwner == TunerOwner.PTY_SWEEP) {
+                mHandler.sendEmptyMessage(MSG_STOP_PTY_SWEEP);
+                return true;
+            }
             if (mState.isActive()) {
                 try {
                     return mIFMRadioService.stopSeek();
@@ -417,56 +683,218 @@ public class FMRadioPlayerService extends Service {
             final Context context = FMRadioPlayerService.this;
 
             switch (msg.what) {
-                case MSG_SEEK_CHANNEL:
-                    try {
-                        mIFMRadioService.seek(msg.arg1);
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Seeking failed", e);
+                case MSG_SEEK_CHANNEL: {
+                    if (isTunerBusy()) {
+                        Log.v(TAG, "Ignoring seek request, tuner busy");
+                        break;
+                    }
+                    /* jump straight to a station received recently, the hardware seek is slow */
+                    int target = mStationCatalog.getNextRecent(mCurFreq, msg.arg1 == 0,
+                            getSeekThreshold(), mBandPlan);
+                    if (target > 0 && setFMFrequency(target)) {
+                        Log.v(TAG, "Instant seek to " + target);
+                        claimTuner(TunerOwner.INSTANT_SEEK);
+                        mInstantSeekDirection = msg.arg1;
+                    } else if (!startSeek(msg.arg1)) {
                         notifySeekResult(false);
                     }
                     break;
+                }
                 case MSG_SHOW_NOTICE:
                     FMUtil.showNoticeDialog(context, msg.arg1);
                     break;
                 case MSG_TUNE_COMPLETE:
-                    handleTuneComplete(msg.arg1 != 0, msg.arg2);
+                    switch (mTunerOwner) {
+                        case CALIBRATION:
+                            if (msg.arg1 != 0) {
+                                requestRssi(RssiRequests.CALIBRATION);
+                                mHandler.sendEmptyMessageDelayed(MSG_CALIBRATION_TIMEOUT, SWEEP_RSSI_TIMEOUT);
+                            } else {
+                                handleCalibrationSample(-1);
+                            }
+                            break;
+                        case CALIBRATION_RETURN:
+                            releaseTuner(TunerOwner.CALIBRATION_RETURN);
+                            handleTuneComplete(msg.arg1 != 0, msg.arg2);
+                            setFMMuteState(mCalibrationWasMuted);
+                            break;
+                        case SWEEP:
+                            updateCurrentFrequency(msg.arg2);
+                            if (msg.arg1 != 0) {
+                                requestRssi(RssiRequests.SWEEP);
+                                mHandler.sendEmptyMessageDelayed(MSG_SWEEP_TIMEOUT, SWEEP_RSSI_TIMEOUT);
+                            } else {
+                                handleSweepSample(0);
+                            }
+                            break;
+                        case SWEEP_RETURN:
+                            releaseTuner(TunerOwner.SWEEP_RETURN);
+                            handleTuneComplete(msg.arg1 != 0, msg.arg2);
+                            setFMMuteState(mSweepWasMuted);
+                            break;
+                        case SCAN_RESUME:
+                            updateCurrentFrequency(msg.arg2);
+                            continueResumedScan(msg.arg1 != 0);
+                            break;
+                        case AF_SEARCH:
+                            if (msg.arg1 != 0) {
+                                requestRssi(RssiRequests.AF_CANDIDATE);
+                                mHandler.sendEmptyMessageDelayed(MSG_AF_TIMEOUT, SWEEP_RSSI_TIMEOUT);
+                            } else {
+                                handleAfCandidateRssi(-1);
+                            }
+                            break;
+                        case AF_RETURN:
+                            releaseTuner(TunerOwner.AF_RETURN);
+                            completeAfSearch(msg.arg1 != 0, msg.arg2);
+                            break;
+                        case PTY_TUNE:
+                            releaseTuner(TunerOwner.PTY_TUNE);
+                            handlePtySeekTuned(msg.arg1 != 0, msg.arg2);
+                            break;
+                        case INSTANT_SEEK:
+                            handleInstantSeekTuned(msg.arg1 != 0, msg.arg2);
+                            break;
+                        default:
+                            handleTuneComplete(msg.arg1 != 0, msg.arg2);
+                            break;
+                    }
                     break;
-                case MSG_SCAN_UPDATE:
-                    updateCurrentFrequency(msg.arg1);
-                    resetRDSData();
-                    updateStateIndicators();
-                    if (mCallbacks != null) {
-                        try {
-                            mCallbacks.onScanUpdate(mCurFreq);
-                        } catch (RemoteException e) {
-                            Log.e(TAG, "Could not report scan update", e);
-                        }
+                case MSG_INSTANT_SEEK_TIMEOUT:
+                    Log.v(TAG, "No RSSI reply for instant seek to " + mCurFreq);
+                    mRssiAwaited = 0;
+                    finishInstantSeek(false);
+                    break;
+                case MSG_RESUME_SCAN:
+                    Log.d(TAG, "Resuming scan at " + msg.arg1 + " with " + mScanResults.getCount() + " stations");
+                    takeOverTuner(TunerOwner.SCAN_RESUME);
+                    if (!setFMFrequency(msg.arg1)) {
+                        releaseTuner(TunerOwner.SCAN_RESUME);
+                        handleScanComplete(false);
                     }
                     break;
-                case MSG_SCAN_COMPLETE:
-                    if (msg.arg1 != 0) {
-                        resetRDSData();
+                case MSG_CHECK_NOISE_FLOOR:
+                    if (mPowerOnTunePending) {
+                        /* checked again once the first tune completed */
+                        break;
                     }
-                    if (mCallbacks != null) {
-                        try {
-                            mCallbacks.onScanFinished(msg.arg1 != 0, mCurFreq);
-                        } catch (RemoteException e) {
-                            Log.e(TAG, "Could not report scan result", e);
+                    updateNoiseProfile();
+                    if (isSeekSensitivityAuto() && mNoiseFloor.needsCalibration()) {
+                        if (isTunerBusy()) {
+                            mHandler.sendEmptyMessageDelayed(MSG_CHECK_NOISE_FLOOR, CALIBRATION_RETRY_DELAY);
+                        } else {
+                            startCalibration();
                         }
                     }
                     break;
+                case MSG_CALIBRATION_TIMEOUT:
+                    mRssiAwaited = 0;
+                    handleCalibrationSample(-1);
+                    break;
+                case MSG_SMART_SEEK_CHECK:
+                    mRssiAwaited = 0;
+                    handleSmartSeekCheck(msg.arg1 != 0);
+                    break;
+                case MSG_STOP_SMART_SEEK:
+                    stopSmartSeek();
+                    break;
+                case MSG_AF_MONITOR:
+                    sampleAfSignal();
+                    break;
+                case MSG_AF_TIMEOUT:
+                    mRssiAwaited = 0;
+                    handleAfCandidateRssi(-1);
+                    break;
+                case MSG_AF_VERIFY:
+                    verifyAfPi();
+                    break;
+                case MSG_SEEK_PTY:
+                    if (isTunerBusy()) {
+                        Log.v(TAG, "Ignoring genre search request, tuner busy");
+                        break;
+                    }
+                    seekPty(msg.arg1);
+                    break;
+                case MSG_PTY_SWEEP_CHECK:
+                    continuePtySweep();
+                    break;
+                case MSG_SCAN_STARTED:
+                    takeOverTuner(TunerOwner.SCAN);
+                    break;
+                case MSG_STOP_PTY_SWEEP:
+                    stopPtySweep();
+                    break;
+                case MSG_START_SWEEP:
+                    if (mTunerOwner == TunerOwner.CALIBRATION || mTunerOwner == TunerOwner.CALIBRATION_RETURN) {
+                        /* the calibration takes a moment only */
+                        mHandler.sendEmptyMessageDelayed(MSG_START_SWEEP, SWEEP_RSSI_TIMEOUT);
+                        break;
+                    }
+                    startSweep();
+                    break;
+                case MSG_STOP_SWEEP:
+                    if (mTunerOwner == TunerOwner.SWEEP) {
+                        finishSweep();
+                        /* handled like an aborted hardware scan */
+                        Message abort = Message.obtain(mHandler, MSG_ABORT_COMPLETE, 1, mCurFreq, null);
+                        mHandler.sendMessage(abort);
+                    }
+                    break;
+                case MSG_SWEEP_TIMEOUT:
+                    Log.v(TAG, "No RSSI reply for sweep at " + mCurFreq);
+                    mRssiAwaited = 0;
+                    handleSweepSample(0);
+                    break;
+                case MSG_SCAN_UPDATE:
+                    handleScanHit(msg.arg1);
+                    break;
+                case MSG_SCAN_COMPLETE:
+                    handleScanComplete(msg.arg1 != 0);
+                    break;
+                case MSG_FINISH_SCAN:
+                    finishScan();
+                    break;
                 case MSG_SEEK_COMPLETE:
+                    if (mTunerOwner == TunerOwner.SCAN_RESUME) {
+                        handleResumedScanSeek(msg.arg1 != 0, msg.arg2);
+                        break;
+                    }
+                    if (mTunerOwner == TunerOwner.PTY_SWEEP) {
+                        handlePtySweepStop(msg.arg1 != 0, msg.arg2);
+                        break;
+                    }
                     int preFreq = mCurFreq;
                     updateCurrentFrequency(msg.arg2);
                     Log.v(TAG, "Seek completed, success " + (msg.arg1 != 0) + " frequency " + mCurFreq);
                     resetRDSData();
-                    notifySeekResult(true);
                     if (preFreq != mCurFreq) {
                         updateStateIndicators();
                     }
+                    if (mSmartSeekDirection >= 0 && msg.arg1 != 0 && startSmartSeekCheck()) {
+                        break;
+                    }
+                    mSmartSeekDirection = -1;
+                    releaseTuner(TunerOwner.SEEK);
+                    if (msg.arg1 != 0) {
+                        recordStationLock();
+                    }
+                    notifySeekResult(true);
+                    restoreCachedRds();
                     break;
                 case MSG_ABORT_COMPLETE:
                     updateCurrentFrequency(msg.arg2);
+                    mSmartSeekDirection = -1;
+                    /* an abort ends a seek or scan */
+                    releaseTuner(TunerOwner.SEEK);
+                    releaseTuner(TunerOwner.SCAN);
+                    releaseTuner(TunerOwner.SCAN_RESUME);
+                    if (mScanResults.isActive()) {
+                        /* scan was stopped, keep what was found so far and where it got to */
+                        mScanResults.setReached(msg.arg2);
+                        mScanCheckpoint.save(mScanResults);
+                        mScanResults.suppressGhosts(Preferences.getGhostSpacing(context),
+                                mStationCatalog.getPiCodes());
+                    }
                     if (msg.arg1 == 0) {
                         notifyTuneResult(false);
                     } else if (mCallbacks != null) {
@@ -479,6 +907,9 @@ public class FMRadioPlayerService extends Service {
                     break;
                 case MSG_UPDATE_AUDIOMODE:
                     mAudioMode = msg.arg1;
+                    if (mState.isActive()) {
+                        mStationCatalog.recordStereo(mCurFreq, mAudioMode != 0);
+                    }
                     if (mCallbacks != null) {
                         try {
                             mCallbacks.onAudioModeChanged(mAudioMode != 0);
@@ -487,27 +918,42 @@ public class FMRadioPlayerService extends Service {
                         }
                     }
                     break;
-                case MSG_RDS_PS_UPDATE:
-                    String newPs = (String) msg.obj;
-                    if (!TextUtils.equals(mRdsStationName, newPs)) {
-                        mRdsStationName = newPs;
-                        updateStateIndicators();
-                        notifyRdsUpdate();
+                case MSG_RDS_PS_UPDATE: {
+                    String receivedPs = (String) msg.obj;
+                    if (mSmartSeekChecking && !TextUtils.isEmpty(receivedPs)) {
+                        /* any RDS proves a station, even if the name isn't confirmed yet */
+                        finishSmartSeekCheck(true);
                     }
+                    handleRdsStationName(receivedPs);
                     break;
+                }
                 case MSG_RDS_RT_UPDATE:
-                    String newRt = (String) msg.obj;
-                    if (!TextUtils.equals(mRdsRadioText, newRt)) {
-                        mRdsRadioText = newRt;
-                        notifyRdsUpdate();
-                    }
+                    handleRdsRadioText((String) msg.obj);
+                    break;
+                case MSG_CONFIRM_RDS_TEXT:
+                    confirmRdsText();
+                    break;
+                case MSG_RDS_RTPLUS_UPDATE:
+                    mRdsRtPlusTags = (String) msg.obj;
+                    updateRadioTextPlus();
                     break;
                 case MSG_RDS_PTY_UPDATE:
                     if (mRdsPTYValue != msg.arg1) {
                         mRdsPTYValue = msg.arg1;
                         notifyRdsUpdate();
+                        recordStationRds();
+                    }
+                    if (mPtySweepChecking && mRdsPTYValue > 0) {
+                        /* indexed by now, on to the next stop */
+                        continuePtySweep();
                     }
                     break;
+                case MSG_RSSI_UPDATE:
+                    handleRssiReply(msg.arg1);
+                    break;
+                case MSG_RSSI_FAILED:
+                    handleRssiFailure();
+                    break;
                 case MSG_RESTORE_AUDIO_AFTER_FOCUS_LOSS:
                     setFMMuteState(false);
                     audioPrepare(mAudioRouting == FM_ROUTING_HEADSET
@@ -535,6 +981,29 @@ public class FMRadioPlayerService extends Service {
         }
     };
 
+    private Preferences.OnConfigChangeListener mConfigListener = new Preferences.OnConfigChangeListener() {
+        @Override
+        public void onConfigChanged(Preferences.Config oldConfig, Preferences.Config newConfig) {
+            boolean sensitivityChanged = oldConfig == null
+                    || oldConfig.seekSensitivity != newConfig.seekSensitivity;
+            if (mState.isActive() && mBandPlanApplied && BandPlan.get(newConfig.bandPlan) != mBandPlan) {
+                applyBandPlan();
+                if (!mBandPlan.contains(mCurFreq)) {
+                    setFMFrequency(mBandPlan.getFrequency(mBandPlan.getNearestIndex(mCurFreq)));
+                }
+            }
+            if (mState.isActive() && sensitivityChanged) {
+                setSeekSensitivity(getSeekThreshold());
+                if (isSeekSensitivityAuto()) {
+                    mHandler.sendEmptyMessage(MSG_CHECK_NOISE_FLOOR);
+                }
+            }
+            if (oldConfig != null && oldConfig.afFollowing != newConfig.afFollowing) {
+                scheduleAfMonitor();
+            }
+        }
+    };
+
     private OnAudioFocusChangeListener mAudioFocusListener = new OnAudioFocusChangeListener() {
         @Override
         public void onAudioFocusChange(int focusChange) {
@@ -573,6 +1042,9 @@ public class FMRadioPlayerService extends Service {
         super.onCreate();
 
         mAM = (AudioManager) getSystemService(AUDIO_SERVICE);
+        mStationCatalog = new StationCatalog(this, mHandler);
+        mScanCheckpoint = new ScanCheckpoint(this);
+        mNoiseFloor = new NoiseFloor(this);
         mAudioRouting = Preferences.useSpeakerAsOutput(this) ? FM_ROUTING_SPEAKER : FM_ROUTING_HEADSET;
 
         scheduleShutdown();
@@ -611,6 +1083,8 @@ public class FMRadioPlayerService extends Service {
         shutdownFM();
         restoreAudioRoute();
         mHandler.removeCallbacksAndMessages(null);
+        mStationCatalog.flush();
+        Preferences.flush(this);
     }
 
     @Override
@@ -690,7 +1164,10 @@ public class FMRadioPlayerService extends Service {
             return false;
         }
 
+        Preferences.registerConfigListener(mConfigListener);
+
         transitionToState(State.POWERING_UP);
+        mPowerOnTunePending = true;
         mAM.requestAudioFocus(mAudioFocusListener, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
         setMediaButtonReceiverEnabled(true);
         registerBroadcastReceiver();
@@ -701,6 +1178,27 @@ public class FMRadioPlayerService extends Service {
 
     private void shutdownFM() {
         Log.d(TAG, "Shutting down FM radio");
+        mHandler.removeMessages(MSG_INSTANT_SEEK_TIMEOUT);
+        mInstantSeekDirection = -1;
+        mRssiRequests.clear();
+        mRssiAwaited = 0;
+        cancelSmartSeek();
+        cancelAfFollowing();
+        mHandler.removeMessages(MSG_PTY_SWEEP_CHECK);
+        mPtySweep = -1;
+        mPtySweepChecking = false;
+        mHandler.removeMessages(MSG_SWEEP_TIMEOUT);
+        mHandler.removeMessages(MSG_CALIBRATION_TIMEOUT);
+        mSweep = null;
+        mCalibrationChannels = null;
+        mTunerOwner = TunerOwner.IDLE;
+        mPowerOnTunePending = false;
+        mHandler.removeMessages(MSG_CHECK_NOISE_FLOOR);
+        mBandPlanApplied = false;
+        if (mScanResults.isActive()) {
+            mScanResults.stop();
+            mScanCheckpoint.save(mScanResults);
+        }
         if (mBound) {
             unbindService(mConnection);
             mBound = false;
@@ -709,9 +1207,14 @@ public class FMRadioPlayerService extends Service {
             unregisterReceiver(mReceiver);
             mReceiver = null;
         }
+        if (mSettingsReceiver != null) {
+            unregisterReceiver(mSettingsReceiver);
+            mSettingsReceiver = null;
+        }
         if (mObserver != null) {
             getContentResolver().unregisterContentObserver(mObserver);
         }
+        Preferences.unregisterConfigListener(mConfigListener);
         setMediaButtonReceiverEnabled(false);
         mAM.abandonAudioFocus(mAudioFocusListener);
 
@@ -724,6 +1227,8 @@ public class FMRadioPlayerService extends Service {
         updateFmStateBroadcast(false);
         updateRemoteControl(null, null, false);
         notifyEnableChangeComplete(false, true);
+        mStationCatalog.flush();
+        Preferences.flush(this);
         scheduleShutdown();
     }
 
@@ -744,6 +1249,10 @@ public class FMRadioPlayerService extends Service {
                 if (mCurFreq != 0) {
                     updateStateIndicators();
                 }
+                /* switching banks may change the location profile */
+                if (mState.isActive()) {
+                    updateNoiseProfile();
+                }
             }
         };
 
@@ -784,8 +1293,6 @@ public class FMRadioPlayerService extends Service {
                         Preferences.setVolume(FMRadioPlayerService.this, volume);
                         setFMVolume(volume);
                     }
-                } else if (mState.isActive() && action.equals(SettingsActivity.ACTION_RSSI_UPDATED)) {
-                    setSeekSensitivity(intent.getIntExtra(SettingsActivity.EXTRA_RSSI, -1));
                 }
             }
         };
@@ -797,8 +1304,27 @@ public class FMRadioPlayerService extends Service {
         filter.addAction(ACTION_AUDIOPATH_FREE);
         filter.addAction(ACTION_AUDIOPATH_BUSY);
         filter.addAction(Intent.ACTION_HEADSET_PLUG);
-        filter.addAction(SettingsActivity.ACTION_RSSI_UPDATED);
         registerReceiver(mReceiver, filter);
+
+        /* the settings are trusted as they are, so only the app itself may send them */
+        mSettingsReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (Preferences.ACTION_FLUSH_SETTINGS.equals(intent.getAction())) {
+                    Preferences.flush(FMRadioPlayerService.this);
+                    return;
+                }
+                String[] reloaded = intent.getStringArrayExtra(Preferences.EXTRA_RELOAD);
+                if (reloaded != null) {
+                    Preferences.reloadSettings(FMRadioPlayerService.this, reloaded);
+                } else {
+                    Preferences.updateConfig(Preferences.Config.fromIntent(intent));
+                }
+            }
+        };
+        IntentFilter settingsFilter = new IntentFilter(SettingsActivity.ACTION_CONFIG_CHANGED);
+        settingsFilter.addAction(Preferences.ACTION_FLUSH_SETTINGS);
+        registerReceiver(mSettingsReceiver, settingsFilter, SettingsActivity.PERMISSION_SETTINGS, null);
     }
 
     private void setMediaButtonReceiverEnabled(boolean enable) {
@@ -814,16 +1340,972 @@ public class FMRadioPlayerService extends Service {
             Log.d(TAG, "register media button receiver " + component);
             mAM.registerMediaButtonEventReceiver(component);
             mAM.registerRemoteControlClient(mRemoteControl);
+            /* a newly registered client starts without metadata */
+            mRemoteControlValid = false;
         } else {
             mAM.unregisterRemoteControlClient(mRemoteControl);
             mAM.unregisterMediaButtonEventReceiver(component);
         }
     }
 
+    private void finishScan() {
+        mScanResults.suppressGhosts(Preferences.getGhostSpacing(this), mStationCatalog.getPiCodes());
+        Log.d(TAG, "Scan finished, " + mScanResults.getCount() + " stations, "
+                + mScanResults.getDiscardedCount() + " ghosts dropped");
+        if (mCallbacks != null) {
+            try {
+                mCallbacks.onScanFinished(mScanSucceeded, mCurFreq,
+                        mScanResults.getMergedCount(), mScanResults.getDiscardedCount());
+            } catch (RemoteException e) {
+                Log.e(TAG, "Could not report scan result", e);
+            }
+        }
+    }
+
+    private boolean hardwareSeek(int direction) {
+        try {
+            mIFMRadioService.seek(direction);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Seeking failed", e);
+        }
+        return false;
+    }
+
+    /* starts a seek requested by the user, checking its stops if smart seek is enabled */
+    private boolean startSeek(int direction) {
+        claimTuner(TunerOwner.SEEK);
+        if (Preferences.useSmartSeek(this)) {
+            mSmartSeekDirection = direction;
+            mSmartSeekStart = mCurFreq;
+            mSmartSeekDeadline = SystemClock.uptimeMillis() + SMART_SEEK_BUDGET;
+        }
+        if (!hardwareSeek(direction)) {
+            mSmartSeekDirection = -1;
+            releaseTuner(TunerOwner.SEEK);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Noise and intermodulation make the tuner stop where there is no
+     * station. Such stops neither carry RDS nor hold a steady signal, so a
+     * stop is watched briefly and the seek continues if it looks false.
+     * Returns false if the stop is to be reported as it is.
+     */
+    private boolean startSmartSeekCheck() {
+        if (mCurFreq == mSmartSeekStart || SystemClock.uptimeMillis() >= mSmartSeekDeadline) {
+            return false;
+        }
+        mSmartSeekChecking = true;
+        mSmartSeekRssi = -1;
+        requestRssi(RssiRequests.SMART_SEEK);
+        mHandler.sendEmptyMessageDelayed(MSG_SMART_SEEK_CHECK, SMART_SEEK_CHECK_WINDOW);
+        return true;
+    }
+
+    private void handleSmartSeekRssi(int rssi) {
+        if (mSmartSeekRssi < 0) {
+            mSmartSeekRssi = rssi;
+            if (rssi < getSeekThreshold()) {
+                finishSmartSeekCheck(false);
+            } else if (hasRdsPi()) {
+                finishSmartSeekCheck(true);
+            }
+            return;
+        }
+        final boolean steady = rssi >= getSeekThreshold()
+                && Math.abs(rssi - mSmartSeekRssi) <= SMART_SEEK_RSSI_JITTER;
+        Log.v(TAG, "Seek stop " + mCurFreq + " RSSI " + mSmartSeekRssi + " -> " + rssi);
+        finishSmartSeekCheck(steady);
+    }
+
+    /* sampling is true if the second RSSI sample didn't arrive in time */
+    private void handleSmartSeekCheck(boolean sampling) {
+        if (!mSmartSeekChecking) {
+            return;
+        }
+        if (hasRdsPi()) {
+            finishSmartSeekCheck(true);
+        } else if (!sampling && mSmartSeekRssi >= 0) {
+            /* no RDS (yet), judge the signal by a second sample */
+            requestRssi(RssiRequests.SMART_SEEK);
+            Message msg = Message.obtain(mHandler, MSG_SMART_SEEK_CHECK, 1, 0, null);
+            mHandler.sendMessageDelayed(msg, INSTANT_SEEK_RSSI_TIMEOUT);
+        } else {
+            /* the tuner doesn't answer, there's nothing to judge the stop by */
+            finishSmartSeekCheck(true);
+        }
+    }
+
+    private void finishSmartSeekCheck(boolean station) {
+        mSmartSeekChecking = false;
+        mHandler.removeMessages(MSG_SMART_SEEK_CHECK);
+        if (!station && SystemClock.uptimeMillis() < mSmartSeekDeadline) {
+            Log.v(TAG, "Seek stop " + mCurFreq + " looks false, seeking on");
+            if (hardwareSeek(mSmartSeekDirection)) {
+                return;
+            }
+        }
+        mSmartSeekDirection = -1;
+        releaseTuner(TunerOwner.SEEK);
+        recordStationLock();
+        notifySeekResult(true);
+        restoreCachedRds();
+    }
+
+    /* stops a seek requested by the user, smart or not */
+    private void stopSmartSeek() {
+        if (mTunerOwner != TunerOwner.SEEK) {
+            return;
+        }
+        if (!mSmartSeekChecking) {
+            /* a hardware seek is running, its abort completes the seek */
+            mSmartSeekDirection = -1;
+            try {
+                mIFMRadioService.stopSeek();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Stopping seek failed", e);
+            }
+            return;
+        }
+        cancelSmartSeek();
+        /* handled like an aborted hardware seek */
+        Message abort = Message.obtain(mHandler, MSG_ABORT_COMPLETE, 1, mCurFreq, null);
+        mHandler.sendMessage(abort);
+    }
+
+    private void cancelSmartSeek() {
+        mSmartSeekDirection = -1;
+        if (mSmartSeekChecking) {
+            /* no hardware seek is running while a stop is checked */
+            mSmartSeekChecking = false;
+            releaseTuner(TunerOwner.SEEK);
+        }
+        mHandler.removeMessages(MSG_SMART_SEEK_CHECK);
+    }
+
+    private boolean hasRdsPi() {
+        try {
+            return mIFMRadioService.getRdsPI() != 0;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not read RDS PI code", e);
+        }
+        return false;
+    }
+
+    private boolean isTunerBusy() {
+        return mTunerOwner != TunerOwner.IDLE;
+    }
+
+    /* the engine takes the tuner, superseding whatever used it */
+    private void claimTuner(TunerOwner owner) {
+        mTunerOwner = owner;
+    }
+
+    /* gives the tuner back, unless another engine took it over meanwhile */
+    private void releaseTuner(TunerOwner owner) {
+        if (mTunerOwner == owner) {
+            mTunerOwner = TunerOwner.IDLE;
+        }
+    }
+
+    private void scheduleAfMonitor() {
+        mHandler.removeMessages(MSG_AF_MONITOR);
+        if (mState.isActive() && Preferences.useAfFollowing(this)) {
+            mHandler.sendEmptyMessageDelayed(MSG_AF_MONITOR,
+                    mAfWeakSamples > 0 ? AF_DEGRADED_INTERVAL : AF_MONITOR_INTERVAL);
+        }
+    }
+
+    /*
+     * Alternative frequency following: while playing, the signal is sampled
+     * at a low rate. Once it stays below the seek threshold, the frequencies
+     * the station was received on before are measured and the strongest is
+     * switched to. The tuner doesn't report the RDS AF list, so the station
+     * catalog, which knows the PI code of every frequency heard, stands in.
+     */
+    private void sampleAfSignal() {
+        if (!mState.isActive() || !Preferences.useAfFollowing(this)) {
+            return;
+        }
+        if (mRdsPi != 0 && !isTunerBusy()) {
+            mAfSampling = true;
+            requestRssi(RssiRequests.AF_SAMPLE);
+        } else {
+            /* nothing to follow, or the tuner is busy elsewhere */
+            mAfWeakSamples = 0;
+        }
+        scheduleAfMonitor();
+    }
+
+    private void handleAfSample(int rssi) {
+        if (mRdsPi == 0 || isTunerBusy()) {
+            return;
+        }
+        final int threshold = getSeekThreshold();
+        if (rssi >= threshold + AF_HYSTERESIS) {
+            mAfWeakSamples = 0;
+        } else if (rssi < threshold) {
+            mAfWeakSamples++;
+        }
+        if (mAfWeakSamples >= AF_WEAK_SAMPLES
+                && SystemClock.uptimeMillis() - mAfLastAttempt >= AF_RETRY_INTERVAL) {
+            startAfSearch(rssi);
+        }
+        scheduleAfMonitor();
+    }
+
+    private void startAfSearch(int rssi) {
+        mAfLastAttempt = SystemClock.uptimeMillis();
+        mAfWeakSamples = 0;
+
+        int[] frequencies = mStationCatalog.getAlternativeFrequencies(mRdsPi, mCurFreq,
+                AF_MAX_CANDIDATES);
+        int count = 0;
+        for (int i = 0; i < frequencies.length; i++) {
+            if (mBandPlan.contains(frequencies[i])) {
+                frequencies[count++] = frequencies[i];
+            }
+        }
+        if (count == 0) {
+            Log.v(TAG, "Signal on " + mCurFreq + " is weak, no alternative frequency known");
+            return;
+        }
+
+        Log.d(TAG, "Signal on " + mCurFreq + " is weak (" + rssi + "), trying "
+                + count + " alternative frequencies");
+        mAfCandidates = new int[count];
+        System.arraycopy(frequencies, 0, mAfCandidates, 0, count);
+        mAfIndex = 0;
+        mAfOrigin = mCurFreq;
+        mAfOriginRssi = rssi;
+        mAfBest = mCurFreq;
+        mAfBestRssi = rssi;
+        mAfPi = mRdsPi;
+        mAfWasMuted = mMuted;
+        takeOverTuner(TunerOwner.AF_SEARCH);
+        setFMMuteState(true);
+        if (!setFMFrequency(mAfCandidates[0])) {
+            finishAfSearch();
+        }
+    }
+
+    /* rssi is negative if the candidate couldn't be measured */
+    private void handleAfCandidateRssi(int rssi) {
+        if (mTunerOwner != TunerOwner.AF_SEARCH) {
+            return;
+        }
+        mHandler.removeMessages(MSG_AF_TIMEOUT);
+        final int frequency = mAfCandidates[mAfIndex];
+        if (rssi >= 0) {
+            Log.v(TAG, "Alternative frequency " + frequency + " RSSI " + rssi);
+            mStationCatalog.recordRssi(frequency, rssi);
+            if (rssi >= mAfOriginRssi + AF_MIN_GAIN && rssi > mAfBestRssi) {
+                mAfBest = frequency;
+                mAfBestRssi = rssi;
+            }
+        }
+        mAfIndex++;
+        /* candidates come strongest first, a good one ends the search to keep the mute short */
+        final boolean good = mAfBest != mAfOrigin
+                && mAfBestRssi >= getSeekThreshold() + AF_HYSTERESIS;
+        if (good || mAfIndex >= mAfCandidates.length
+                || !setFMFrequency(mAfCandidates[mAfIndex])) {
+            finishAfSearch();
+        }
+    }
+
+    private void finishAfSearch() {
+        /* the tuner is still on the last candidate it reached */
+        final boolean tuned = mAfIndex > 0 && mAfCandidates[mAfIndex - 1] == mAfBest;
+        mAfCandidates = null;
+        releaseTuner(TunerOwner.AF_SEARCH);
+        mHandler.removeMessages(MSG_AF_TIMEOUT);
+        if (mAfBest != mAfOrigin) {
+            Log.d(TAG, "Following station " + Integer.toHexString(mAfPi) + " from "
+                    + mAfOrigin + " to " + mAfBest + ", RSSI " + mAfBestRssi);
+        }
+        if (tuned) {
+            completeAfSearch(true, mAfBest);
+            return;
+        }
+        claimTuner(TunerOwner.AF_RETURN);
+        if (!setFMFrequency(mAfBest)) {
+            releaseTuner(TunerOwner.AF_RETURN);
+            setFMMuteState(mAfWasMuted);
+        }
+    }
+
+    private void completeAfSearch(boolean success, int frequency) {
+        /* completes like a regular tune, which updates the UI */
+        handleTuneComplete(success, frequency);
+        if (success && frequency != mAfOrigin) {
+            /* stays muted, another station may be heard otherwise */
+            mAfTarget = frequency;
+            mAfVerifyReads = AF_VERIFY_READS;
+            claimTuner(TunerOwner.AF_VERIFY);
+            mHandler.sendEmptyMessageDelayed(MSG_AF_VERIFY, AF_VERIFY_DELAY);
+        } else {
+            setFMMuteState(mAfWasMuted);
+        }
+    }
+
+    /* another station may use the frequency by now, so its PI code must match */
+    private void verifyAfPi() {
+        if (mTunerOwner != TunerOwner.AF_VERIFY) {
+            return;
+        }
+        if (mCurFreq != mAfTarget) {
+            endAfVerification();
+            return;
+        }
+        int pi = 0;
+        try {
+            pi = mIFMRadioService.getRdsPI();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not read RDS PI code", e);
+        }
+        if (pi == 0 && --mAfVerifyReads > 0) {
+            mHandler.sendEmptyMessageDelayed(MSG_AF_VERIFY, AF_VERIFY_DELAY);
+            return;
+        }
+        releaseTuner(TunerOwner.AF_VERIFY);
+        if (pi == mAfPi) {
+            Log.v(TAG, "Followed station confirmed on " + mCurFreq);
+            setFMMuteState(mAfWasMuted);
+            return;
+        }
+        Log.d(TAG, "Alternative frequency " + mCurFreq + " carries PI " + Integer.toHexString(pi)
+                + ", returning to " + mAfOrigin);
+        /* unmuted once back, like after a search that found nothing better */
+        claimTuner(TunerOwner.AF_RETURN);
+        if (!setFMFrequency(mAfOrigin)) {
+            releaseTuner(TunerOwner.AF_RETURN);
+            setFMMuteState(mAfWasMuted);
+        }
+    }
+
+    /* the tuner is used for something else, which is to be heard as usual */
+    private void endAfVerification() {
+        mHandler.removeMessages(MSG_AF_VERIFY);
+        if (mTunerOwner == TunerOwner.AF_VERIFY) {
+            releaseTuner(TunerOwner.AF_VERIFY);
+            setFMMuteState(mAfWasMuted);
+        }
+    }
+
+    private void cancelAfFollowing() {
+        mHandler.removeMessages(MSG_AF_MONITOR);
+        mHandler.removeMessages(MSG_AF_TIMEOUT);
+        mHandler.removeMessages(MSG_AF_VERIFY);
+        mAfCandidates = null;
+        mAfSampling = false;
+        mAfWeakSamples = 0;
+    }
+
+    /*
+     * Finds the next station of a genre. The stations heard are indexed by
+     * program type, so repeated searches step through the known stations
+     * strongest first without tuning around. Only if none is known, the
+     * band is swept for it.
+     */
+    private void seekPty(int pty) {
+        final int[] stations = mStationCatalog.getStationsByPty(pty, getSeekThreshold(), mBandPlan);
+        int next = 0;
+        for (int i = 0; i < stations.length && next == 0; i++) {
+            if (stations[i] == mCurFreq) {
+                next = stations[(i + 1) % stations.length];
+            }
+        }
+        if (next == 0 && stations.length > 0) {
+            next = stations[0];
+        }
+        if (next != 0 && next != mCurFreq) {
+            Log.v(TAG, "Station of program type " + pty + " known at " + next);
+            tunePtyResult(next, true);
+        } else {
+            startPtySweep(pty);
+        }
+    }
+
+    private void tunePtyResult(int frequency, boolean found) {
+        claimTuner(TunerOwner.PTY_TUNE);
+        mPtyFound = found;
+        if (!setFMFrequency(frequency)) {
+            releaseTuner(TunerOwner.PTY_TUNE);
+            notifySeekResult(false);
+        }
+    }
+
+    private void handlePtySeekTuned(boolean success, int frequency) {
+        updateCurrentFrequency(frequency);
+        resetRDSData();
+        if (success) {
+            recordStationLock();
+        }
+        updateStateIndicators();
+        notifySeekResult(success && mPtyFound);
+        restoreCachedRds();
+    }
+
+    /*
+     * Seeks through the whole band, muted, and waits at every stop until its
+     * program type is received. Stops are indexed as they are checked, so the
+     * sweep ends with a lookup, which ranks what it found by signal strength.
+     */
+    private void startPtySweep(int pty) {
+        Log.d(TAG, "No station of program type " + pty + " known, sweeping");
+        claimTuner(TunerOwner.PTY_SWEEP);
+        mPtySweep = pty;
+        mPtySweepStart = mCurFreq;
+        mPtySweepLast = mCurFreq;
+        mPtySweepWrapped = false;
+        mPtySweepWasMuted = mMuted;
+        setFMMuteState(true);
+        if (!hardwareSeek(0)) {
+            finishPtySweep();
+        }
+    }
+
+    private void handlePtySweepStop(boolean success, int frequency) {
+        updateCurrentFrequency(frequency);
+        resetRDSData();
+        if (frequency <= mPtySweepLast) {
+            mPtySweepWrapped = true;
+        }
+        mPtySweepLast = frequency;
+        if (!success || (mPtySweepWrapped && frequency >= mPtySweepStart)) {
+            /* back where the sweep started */
+            finishPtySweep();
+            return;
+        }
+        mPtySweepChecking = true;
+        recordStationLock();
+        mHandler.sendEmptyMessageDelayed(MSG_PTY_SWEEP_CHECK, PTY_SWEEP_CHECK_WINDOW);
+    }
+
+    private void continuePtySweep() {
+        if (!mPtySweepChecking) {
+            return;
+        }
+        mPtySweepChecking = false;
+        mHandler.removeMessages(MSG_PTY_SWEEP_CHECK);
+        if (!hardwareSeek(0)) {
+            finishPtySweep();
+        }
+    }
+
+    private void finishPtySweep() {
+        final int pty = mPtySweep;
+        cancelPtySweep();
+        final int[] stations = mStationCatalog.getStationsByPty(pty, getSeekThreshold(), mBandPlan);
+        Log.d(TAG, "Sweep for program type " + pty + " found " + stations.length + " stations");
+        if (stations.length > 0) {
+            tunePtyResult(stations[0], true);
+        } else {
+            tunePtyResult(mPtySweepStart, false);
+        }
+    }
+
+    private void stopPtySweep() {
+        if (mTunerOwner != TunerOwner.PTY_SWEEP) {
+            return;
+        }
+        final boolean checking = mPtySweepChecking;
+        cancelPtySweep();
+        if (!checking) {
+            /* a hardware seek is running, its abort completes the search */
+            try {
+                mIFMRadioService.stopSeek();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Stopping seek failed", e);
+            }
+            return;
+        }
+        /* handled like an aborted hardware seek */
+        Message abort = Message.obtain(mHandler, MSG_ABORT_COMPLETE, 1, mCurFreq, null);
+        mHandler.sendMessage(abort);
+    }
+
+    private void cancelPtySweep() {
+        releaseTuner(TunerOwner.PTY_SWEEP);
+        mPtySweep = -1;
+        mPtySweepChecking = false;
+        mHandler.removeMessages(MSG_PTY_SWEEP_CHECK);
+        setFMMuteState(mPtySweepWasMuted);
+    }
+
+    private void handleInstantSeekTuned(boolean success, int frequency) {
+        updateCurrentFrequency(frequency);
+        resetRDSData();
+        if (!success) {
+            finishInstantSeek(false);
+            return;
+        }
+        /* the station may have gone since it was last seen, check the signal before reporting it */
+        mStationCatalog.recordLock(mCurFreq);
+        requestRssi(RssiRequests.INSTANT_SEEK);
+        mHandler.sendEmptyMessageDelayed(MSG_INSTANT_SEEK_TIMEOUT, INSTANT_SEEK_RSSI_TIMEOUT);
+    }
+
+    private void finishInstantSeek(boolean received) {
+        final int direction = mInstantSeekDirection;
+        mInstantSeekDirection = -1;
+        releaseTuner(TunerOwner.INSTANT_SEEK);
+        if (received) {
+            notifySeekResult(true);
+            updateStateIndicators();
+            restoreCachedRds();
+        } else {
+            /* continue with a regular seek from where we are */
+            Log.v(TAG, "Instant seek target " + mCurFreq + " not received, seeking");
+            mStationCatalog.forgetRecent(mCurFreq);
+            if (!startSeek(direction)) {
+                notifySeekResult(false);
+            }
+        }
+    }
+
+    private void handleScanHit(int frequency) {
+        updateCurrentFrequency(frequency);
+        mStationCatalog.recordLock(mCurFreq);
+        if (mScanResults.addHit(mCurFreq)) {
+            requestRssi(RssiRequests.SCAN_HIT);
+            /* the service may be killed before the scan ends */
+            mScanCheckpoint.save(mScanResults);
+        }
+        resetRDSData();
+        updateStateIndicators();
+        notifyScanUpdate(mCurFreq);
+    }
+
+    private void notifyScanUpdate(int frequency) {
+        if (mCallbacks != null) {
+            try {
+                mCallbacks.onScanUpdate(frequency);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Could not report scan update", e);
+            }
+        }
+    }
+
+    private void handleScanComplete(boolean success) {
+        if (success) {
+            resetRDSData();
+            mScanCheckpoint.clear();
+        } else {
+            mScanCheckpoint.save(mScanResults);
+        }
+        mScanResults.stop();
+        releaseTuner(TunerOwner.SCAN);
+        mScanSucceeded = success;
+        if (mScanResults.hasPendingRssi()) {
+            /* ghosts can only be told apart once the strength of every hit is known */
+            mHandler.sendEmptyMessageDelayed(MSG_FINISH_SCAN, SCAN_RSSI_TIMEOUT);
+        } else {
+            finishScan();
+        }
+    }
+
+    private void startSweep() {
+        if (mTunerOwner == TunerOwner.SWEEP) {
+            return;
+        }
+        takeOverTuner(TunerOwner.SWEEP);
+        mScanCheckpoint.clear();
+        mScanResults.start();
+        mSweep = new SpectrumSweep(mBandPlan);
+        mSweepReported = 0;
+        /* don't play every channel of the band */
+        mSweepWasMuted = mMuted;
+        setFMMuteState(true);
+        if (!setFMFrequency(mSweep.getNextFrequency())) {
+            finishSweep();
+            handleScanComplete(false);
+        }
+    }
+
+    /*
+     * Records the strength of the channel the tuner is on. The tuner is
+     * sent to the next channel before the sample is evaluated, so the
+     * evaluation overlaps with the tuning.
+     */
+    private void handleSweepSample(int rssi) {
+        if (mTunerOwner != TunerOwner.SWEEP) {
+            return;
+        }
+        final SpectrumSweep sweep = mSweep;
+        mHandler.removeMessages(MSG_SWEEP_TIMEOUT);
+
+        sweep.record(rssi);
+        final int next = sweep.getNextFrequency();
+        final boolean tuned = next > 0 && setFMFrequency(next);
+
+        sweep.detect(!tuned);
+        while (mSweepReported < sweep.getPeakCount()) {
+            final int frequency = sweep.getPeak(mSweepReported++);
+            final int strength = sweep.getSample(frequency);
+            if (mScanResults.addMeasuredHit(frequency, strength)) {
+                mStationCatalog.recordLock(frequency);
+                mStationCatalog.recordRssi(frequency, strength);
+                mScanCheckpoint.save(mScanResults);
+                notifyScanUpdate(frequency);
+            }
+        }
+
+        if (!tuned) {
+            Log.d(TAG, "Sweep finished at " + mCurFreq + ", noise floor " + sweep.getNoiseFloor()
+                    + ", " + sweep.getPeakCount() + " stations");
+            if (next == 0) {
+                /* a complete sweep is the best calibration there is */
+                int[] noise = new int[sweep.getSampleCount()];
+                final int count = sweep.getNoise(noise);
+                for (int i = 0; i < count; i++) {
+                    mNoiseFloor.addSample(noise[i]);
+                }
+                mNoiseFloor.save();
+                if (isSeekSensitivityAuto()) {
+                    setSeekSensitivity(getSeekThreshold());
+                }
+            }
+            mSweep = null;
+            mHandler.removeMessages(MSG_SWEEP_TIMEOUT);
+            handleScanComplete(next == 0);
+            /* end up on the first station, like after filling the presets in band order */
+            claimTuner(TunerOwner.SWEEP_RETURN);
+            if (mScanResults.getCount() == 0 || !setFMFrequency(mScanResults.getFrequency(0))) {
+                releaseTuner(TunerOwner.SWEEP_RETURN);
+                setFMMuteState(mSweepWasMuted);
+            }
+        }
+    }
+
+    private void finishSweep() {
+        mSweep = null;
+        releaseTuner(TunerOwner.SWEEP);
+        mHandler.removeMessages(MSG_SWEEP_TIMEOUT);
+        setFMMuteState(mSweepWasMuted);
+    }
+
+    /* called once the tuner is back at the frequency an interrupted scan got to, or moved beyond it */
+    private void continueResumedScan(boolean locked) {
+        if (locked && !hardwareSeek(0)) {
+            locked = false;
+        }
+        if (!locked) {
+            releaseTuner(TunerOwner.SCAN_RESUME);
+            handleScanComplete(false);
+        }
+    }
+
+    private void handleResumedScanSeek(boolean success, int frequency) {
+        if (!success || frequency <= mCurFreq) {
+            /* the seek wrapped around, the rest of the band was scanned before */
+            releaseTuner(TunerOwner.SCAN_RESUME);
+            updateCurrentFrequency(frequency);
+            handleScanComplete(true);
+            return;
+        }
+        handleScanHit(frequency);
+        continueResumedScan(true);
+    }
+
+    private void recordStationLock() {
+        mStationCatalog.recordLock(mCurFreq);
+        requestRssi(RssiRequests.STATION);
+    }
+
+    /* requests the signal strength on the current frequency, engines then wait for this reply only */
+    private void requestRssi(int owner) {
+        final int id = mRssiRequests.add(owner, mCurFreq, SystemClock.uptimeMillis());
+        if (RssiRequests.isEngine(owner)) {
+            mRssiAwaited = id;
+        }
+        try {
+            if (mIFMRadioService.getRSSI()) {
+                return;
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not request RSSI", e);
+        }
+        /* no reply will come, the engine's timeout takes over */
+        mRssiRequests.removeLast();
+    }
+
+    /*
+     * Hands an RSSI reply to whoever requested it. Replies to requests of
+     * engines that were superseded, or that the engine stopped waiting for,
+     * are dropped instead of being taken for another measurement.
+     */
+    private void handleRssiReply(int rssi) {
+        if (!mRssiRequests.poll(SystemClock.uptimeMillis())) {
+            Log.v(TAG, "Dropping unrequested RSSI reply " + rssi);
+            return;
+        }
+        final int owner = mRssiRequests.getOwner();
+        final int frequency = mRssiRequests.getFrequency();
+        if (RssiRequests.isEngine(owner)) {
+            if (mRssiRequests.getId() != mRssiAwaited) {
+                Log.v(TAG, "Dropping late RSSI reply " + rssi + " for " + frequency);
+                return;
+            }
+            mRssiAwaited = 0;
+        }
+
+        switch (owner) {
+            case RssiRequests.STALE:
+                Log.v(TAG, "Dropping stale RSSI reply " + rssi + " for " + frequency);
+                break;
+            case RssiRequests.CALIBRATION:
+                handleCalibrationSample(rssi);
+                break;
+            case RssiRequests.SWEEP:
+                handleSweepSample(rssi);
+                break;
+            case RssiRequests.SMART_SEEK:
+                if (mSmartSeekChecking) {
+                    handleSmartSeekRssi(rssi);
+                }
+                break;
+            case RssiRequests.AF_CANDIDATE:
+                handleAfCandidateRssi(rssi);
+                break;
+            default:
+                Log.v(TAG, "RSSI on frequency " + frequency + " is " + rssi);
+                mStationCatalog.recordRssi(frequency, rssi);
+                if (owner == RssiRequests.SCAN_HIT) {
+                    mScanResults.onRssi(frequency, rssi);
+                    if (mHandler.hasMessages(MSG_FINISH_SCAN) && !mScanResults.hasPendingRssi()) {
+                        mHandler.removeMessages(MSG_FINISH_SCAN);
+                        finishScan();
+                    }
+                } else if (owner == RssiRequests.INSTANT_SEEK) {
+                    if (mHandler.hasMessages(MSG_INSTANT_SEEK_TIMEOUT)) {
+                        mHandler.removeMessages(MSG_INSTANT_SEEK_TIMEOUT);
+                        finishInstantSeek(rssi >= getSeekThreshold());
+                    }
+                } else if (owner == RssiRequests.AF_SAMPLE && mAfSampling) {
+                    mAfSampling = false;
+                    handleAfSample(rssi);
+                }
+                break;
+        }
+    }
+
+    /*
+     * Takes a failed measurement as the reply to the oldest request, so the
+     * replies after it are still matched correctly. An engine waiting for it
+     * goes on as if it timed out. Only failed requests made for the user are
+     * reported, background samples are simply taken again later.
+     */
+    private void handleRssiFailure() {
+        if (!mRssiRequests.poll(SystemClock.uptimeMillis())) {
+            Log.v(TAG, "Dropping unrequested RSSI failure");
+            return;
+        }
+        final int owner = mRssiRequests.getOwner();
+        Log.v(TAG, "Could not measure RSSI on " + mRssiRequests.getFrequency());
+        if (RssiRequests.isEngine(owner)) {
+            if (mRssiRequests.getId() != mRssiAwaited) {
+                return;
+            }
+            mRssiAwaited = 0;
+        }
+
+        switch (owner) {
+            case RssiRequests.CALIBRATION:
+                handleCalibrationSample(-1);
+                break;
+            case RssiRequests.SWEEP:
+                handleSweepSample(0);
+                break;
+            case RssiRequests.SMART_SEEK:
+                if (mSmartSeekChecking) {
+                    mHandler.removeMessages(MSG_SMART_SEEK_CHECK);
+                    handleSmartSeekCheck(true);
+                }
+                break;
+            case RssiRequests.INSTANT_SEEK:
+                if (mHandler.hasMessages(MSG_INSTANT_SEEK_TIMEOUT)) {
+                    mHandler.removeMessages(MSG_INSTANT_SEEK_TIMEOUT);
+                    finishInstantSeek(false);
+                }
+                break;
+            case RssiRequests.AF_CANDIDATE:
+                handleAfCandidateRssi(-1);
+                break;
+            case RssiRequests.AF_SAMPLE:
+                mAfSampling = false;
+                break;
+            case RssiRequests.STATION:
+            case RssiRequests.SCAN_HIT:
+                if (mCallbacks != null) {
+                    try {
+                        mCallbacks.onError();
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Could not report error", e);
+                    }
+                }
+                break;
+        }
+    }
+
+    /*
+     * Called when a sweep, calibration, scan or AF search starts and claims
+     * the tuner. Replies to what ran before are of no use to it, and an
+     * instant seek or signal sample still waiting for one is given up.
+     */
+    private void takeOverTuner(TunerOwner owner) {
+        mRssiRequests.invalidate();
+        mRssiAwaited = 0;
+        mAfSampling = false;
+        mHandler.removeMessages(MSG_INSTANT_SEEK_TIMEOUT);
+        mInstantSeekDirection = -1;
+        endAfVerification();
+        claimTuner(owner);
+    }
+
+    private void recordStationRds() {
+        int pi = 0;
+        try {
+            pi = mIFMRadioService.getRdsPI();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not read RDS PI code", e);
+        }
+        /* a cached name is only shown, it wasn't received */
+        final String ps = mRdsStale ? null : mRdsStationName;
+        mStationCatalog.recordRds(mCurFreq, pi, ps, mRdsPTYValue);
+        mRdsCache.put(mCurFreq, pi, ps, mRdsPTYValue);
+        updateRdsPi(pi);
+    }
+
+    private void updateRdsPi(int pi) {
+        if (pi == 0 || pi == mRdsPi) {
+            return;
+        }
+        mRdsPi = pi;
+        Log.v(TAG, "RDS PI on " + mCurFreq + " is " + Integer.toHexString(pi));
+
+        /* the preset on this frequency holds this station from now on */
+        Bundle preset = getCurrentPreset();
+        if (preset != null && preset.getInt(Channels.EXTRA_FREQUENCY) == mCurFreq
+                && preset.getInt(Channels.EXTRA_PI) != pi) {
+            Uri uri = Uri.withAppendedPath(Channels.CONTENT_URI,
+                    String.valueOf(preset.getInt(Channels.EXTRA_PRESET)));
+            ContentValues cv = new ContentValues();
+            cv.put(Channels.PI, pi);
+            getContentResolver().update(uri, cv, null, null);
+        }
+        updateStateIndicators();
+        notifyRdsUpdate();
+    }
+
     private void resetRDSData() {
         mRdsStationName = null;
         mRdsPTYValue = 0;
         mRdsRadioText = null;
+        mRdsPi = 0;
+        mRdsStale = false;
+        mRdsRtPlusTags = null;
+        mRadioTextPlus.reset();
+        mPsStabilizer.reset();
+        mRtStabilizer.reset();
+        mRdsConfirmReads = 0;
+        mHandler.removeMessages(MSG_CONFIRM_RDS_TEXT);
+    }
+
+    private void handleRdsStationName(String receivedPs) {
+        final boolean changed = mPsStabilizer.add(receivedPs);
+        scheduleRdsTextConfirmation();
+        if (!changed) {
+            return;
+        }
+        final String newPs = mPsStabilizer.getText();
+        boolean psChanged = !TextUtils.equals(mRdsStationName, newPs);
+        if (mRdsStale && psChanged) {
+            /* not the cached name, so the cached text may not be current either */
+            mRdsRadioText = null;
+        }
+        if (psChanged) {
+            mRdsStationName = newPs;
+            updateStateIndicators();
+            notifyRdsUpdate();
+        }
+        if (psChanged || mRdsStale) {
+            mRdsStale = false;
+            recordStationRds();
+        }
+    }
+
+    private void handleRdsRadioText(String receivedRt) {
+        final boolean changed = mRtStabilizer.add(receivedRt);
+        scheduleRdsTextConfirmation();
+        if (!changed) {
+            return;
+        }
+        final String newRt = mRtStabilizer.getText();
+        if (!TextUtils.equals(mRdsRadioText, newRt)) {
+            mRdsRadioText = newRt;
+            mRdsCache.putRadioText(mCurFreq, newRt);
+            notifyRdsUpdate();
+            updateRadioTextPlus();
+        }
+    }
+
+    private void scheduleRdsTextConfirmation() {
+        if (!mPsStabilizer.isPending() && !mRtStabilizer.isPending()) {
+            /* settled, the next text change may be read again as often */
+            mRdsConfirmReads = 0;
+        } else if (mRdsConfirmReads < RDS_CONFIRM_READS
+                && !mHandler.hasMessages(MSG_CONFIRM_RDS_TEXT)) {
+            mHandler.sendEmptyMessageDelayed(MSG_CONFIRM_RDS_TEXT, RDS_CONFIRM_DELAY);
+        }
+    }
+
+    /* reads the texts still waiting for confirmation once more */
+    private void confirmRdsText() {
+        if (!mState.isActive()) {
+            return;
+        }
+        mRdsConfirmReads++;
+        try {
+            if (mPsStabilizer.isPending()) {
+                handleRdsStationName(mUSBand
+                        ? mIFMRadioService.getRDSStationName() : mIFMRadioService.getRdsPS());
+            }
+            if (mRtStabilizer.isPending()) {
+                handleRdsRadioText(mIFMRadioService.getRdsRT());
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not read RDS text", e);
+        }
+    }
+
+    private void updateRadioTextPlus() {
+        if (mRadioTextPlus.update(mRdsRadioText, mRdsRtPlusTags)) {
+            Log.v(TAG, "RT+ artist " + mRadioTextPlus.getArtist() + " title " + mRadioTextPlus.getTitle());
+            updateStateIndicators();
+        }
+    }
+
+    /*
+     * Shows the last RDS data received on the current frequency until live
+     * data arrives. Call after the tune or seek result was reported, as
+     * that clears the RDS data shown by the activity.
+     */
+    private void restoreCachedRds() {
+        RdsCache.Data cached = mRdsCache.get(mCurFreq);
+        if (cached == null || mRdsStationName != null || mRdsRadioText != null) {
+            return;
+        }
+        mRdsStationName = cached.stationName;
+        mRdsRadioText = cached.radioText;
+        mRdsPTYValue = cached.pty;
+        mRdsStale = true;
+        updateStateIndicators();
+        notifyRdsUpdate();
     }
 
     private void setFMVolume(int volume) {
@@ -854,60 +2336,25 @@ public class FMRadioPlayerService extends Service {
         return false;
     }
 
-    private Cursor getCurrentPresetCursor() {
-        Cursor cursor = getContentResolver().query(Channels.CONTENT_URI, FMUtil.PROJECTION,
-                Channels.FREQUENCY + "=?", new String[] { String.valueOf(mCurFreq) }, null);
-
-        if (cursor == null) {
-            return null;
-        }
-        if (!cursor.moveToFirst()) {
-            cursor.close();
-            return null;
-        }
-
-        return cursor;
+    private Bundle getCurrentPreset() {
+        Bundle args = new Bundle();
+        args.putInt(Channels.EXTRA_FREQUENCY, mCurFreq);
+        args.putInt(Channels.EXTRA_PI, mRdsPi);
+        return getContentResolver().call(Channels.CONTENT_URI,
+                Channels.METHOD_LOOKUP_BY_FREQUENCY, null, args);
     }
 
     private int getNextPresetFrequency(int preset, boolean searchUpward) {
-        Cursor cursor = getContentResolver().query(Channels.CONTENT_URI, FMUtil.PROJECTION, null, null, null);
-        int bestFrequency = -1, bestPreset = searchUpward ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        Bundle args = new Bundle();
+        args.putInt(Channels.EXTRA_PRESET, preset);
+        args.putBoolean(Channels.EXTRA_UPWARD, searchUpward);
 
-        if (cursor == null) {
+        Bundle result = getContentResolver().call(Channels.CONTENT_URI,
+                Channels.METHOD_NEXT_PRESET, null, args);
+        if (result == null) {
             return -1;
         }
-
-        int count = cursor.getCount();
-
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            int currFreq = cursor.getInt(FMUtil.CHANNEL_COLUMN_FREQ);
-            int currPreset = cursor.getInt(FMUtil.CHANNEL_COLUMN_ID);
-
-            if (currFreq == 0 || currPreset == preset) {
-                cursor.moveToNext();
-                continue;
-            }
-
-            if (searchUpward && currPreset < preset) {
-                currPreset += count;
-            } else if (!searchUpward && currPreset > preset) {
-                currPreset -= count;
-            }
-
-            int diff = Math.abs(currPreset - preset);
-            int bestDiff = Math.abs(bestPreset - preset);
-            boolean better = diff < bestDiff;
-
-            if (better) {
-                bestFrequency = currFreq;
-                bestPreset = currPreset;
-            }
-            cursor.moveToNext();
-        }
-
-        cursor.close();
-        return bestFrequency;
+        return result.getInt(Channels.EXTRA_FREQUENCY, -1);
     }
 
     private void updateStateIndicators() {
@@ -917,18 +2364,17 @@ public class FMRadioPlayerService extends Service {
 
         final String frequencyString = FMUtil.formatFrequency(this, mCurFreq);
         String stationName = null;
-        Cursor cursor = getCurrentPresetCursor();
+        Bundle preset = getCurrentPreset();
 
-        if (cursor != null) {
-            String name = cursor.getString(FMUtil.CHANNEL_COLUMN_NAME);
-            String rdsName = cursor.getString(FMUtil.CHANNEL_COLUMN_RDSNAME);
+        if (preset != null) {
+            String name = preset.getString(Channels.EXTRA_NAME);
+            String rdsName = preset.getString(Channels.EXTRA_RDS_NAME);
 
             if (!TextUtils.isEmpty(name)) {
                 stationName = name;
             } else if (!TextUtils.isEmpty(rdsName)) {
                 stationName = rdsName;
             }
-            cursor.close();
         }
 
         if (stationName == null && !TextUtils.isEmpty(mRdsStationName)) {
@@ -946,7 +2392,14 @@ public class FMRadioPlayerService extends Service {
         updateFmStateBroadcast(true);
 
         /* fake a music state change to make the FM state appear on the lockscreen */
-        if (mState.isActive() && !mMuted) {
+        if (mState.isActive() && !mMuted && mRadioTextPlus.getTitle() != null) {
+            /* the song currently played, as tagged by RT+ */
+            String artist = mRadioTextPlus.getArtist();
+            if (artist == null) {
+                artist = stationName != null ? stationName : frequencyString;
+            }
+            updateRemoteControl(artist, mRadioTextPlus.getTitle(), true);
+        } else if (mState.isActive() && !mMuted) {
             StringBuilder sb = new StringBuilder();
             if (stationName != null) {
                 sb.append(stationName);
@@ -963,6 +2416,16 @@ public class FMRadioPlayerService extends Service {
     }
 
     private void updateRemoteControl(String artist, String title, boolean active) {
+        if (mRemoteControlValid && active == mRemoteControlActive
+                && TextUtils.equals(artist, mRemoteControlArtist)
+                && TextUtils.equals(title, mRemoteControlTitle)) {
+            return;
+        }
+        mRemoteControlValid = true;
+        mRemoteControlActive = active;
+        mRemoteControlArtist = artist;
+        mRemoteControlTitle = title;
+
         mRemoteControl.setPlaybackState(active
                 ? RemoteControlClient.PLAYSTATE_PLAYING
                 : RemoteControlClient.PLAYSTATE_PAUSED);
@@ -1024,11 +2487,10 @@ public class FMRadioPlayerService extends Service {
         boolean shouldSeek = !Preferences.mediaButtonPrevNextSwitchesPresets(this);
 
         if (!shouldSeek) {
-            Cursor cursor = getCurrentPresetCursor();
-            if (cursor != null) {
-                int currentPreset = cursor.getInt(FMUtil.CHANNEL_COLUMN_ID);
+            Bundle preset = getCurrentPreset();
+            if (preset != null) {
+                int currentPreset = preset.getInt(Channels.EXTRA_PRESET);
                 int nextPresetFreq = getNextPresetFrequency(currentPreset, next);
-                cursor.close();
 
                 if (nextPresetFreq >= 0) {
                     setFMFrequency(nextPresetFreq);
@@ -1048,14 +2510,25 @@ public class FMRadioPlayerService extends Service {
 
     private void handleTuneComplete(boolean success, int frequency) {
         Log.v(TAG, "FM tune complete, success " + success + " frequency " + frequency);
+        /* tuning elsewhere ends a smart seek, and the PI check of a followed station */
+        cancelSmartSeek();
+        endAfVerification();
         updateCurrentFrequency(frequency);
         resetRDSData();
         if (!success) {
             notifyTuneResult(false);
         } else if (mState.isInitializing()) {
+            if (!mBandPlanApplied) {
+                applyBandPlan();
+                mBandPlanApplied = true;
+            }
             int lastFreq = Preferences.getLastFrequency(FMRadioPlayerService.this);
+            if (!mBandPlan.contains(lastFreq)) {
+                lastFreq = mBandPlan.getFrequency(mBandPlan.getNearestIndex(lastFreq));
+            }
             if (mCurFreq == lastFreq) {
                 Log.v(TAG, "Finished first tuning, initializing volume");
+                mPowerOnTunePending = false;
                 try {
                     mIFMRadioService.getAudioMode();
                 } catch (RemoteException e) {
@@ -1072,8 +2545,15 @@ public class FMRadioPlayerService extends Service {
                 }
             }
         } else {
+            recordStationLock();
             updateStateIndicators();
             notifyTuneResult(true);
+            restoreCachedRds();
+            if (mPowerOnTunePending) {
+                /* the radio reported being on before it got to its first frequency */
+                mPowerOnTunePending = false;
+                mHandler.sendEmptyMessage(MSG_CHECK_NOISE_FLOOR);
+            }
         }
     }
 
@@ -1134,7 +2614,7 @@ public class FMRadioPlayerService extends Service {
     private void notifyRdsUpdate() {
         if (mCallbacks != null) {
             try {
-                mCallbacks.onRdsDataChanged(mCurFreq, mRdsStationName, mRdsRadioText, mRdsPTYValue);
+                mCallbacks.onRdsDataChanged(mCurFreq, mRdsPi, mRdsStationName, mRdsRadioText, mRdsPTYValue);
             } catch (RemoteException e) {
                 Log.e(TAG, "Could not report RDS change", e);
             }
@@ -1160,6 +2640,139 @@ public class FMRadioPlayerService extends Service {
         return result;
     }
 
+    /*
+     * Switches the radio to the band of the configured plan. If the radio
+     * refuses it or can't tune all of its channels, e.g. the 30 kHz raster
+     * of OIRT, the default plan is used and the setting is reset to it.
+     */
+    private void applyBandPlan() {
+        final BandPlan plan = Preferences.getBandPlan(this);
+        if (selectBand(plan) || plan == BandPlan.DEFAULT) {
+            mBandPlan = plan;
+            return;
+        }
+
+        Log.w(TAG, "Radio doesn't support band plan " + plan.id + ", falling back to the default");
+        selectBand(BandPlan.DEFAULT);
+        /* set before the setting changes, so the change doesn't apply the plan again */
+        mBandPlan = BandPlan.DEFAULT;
+        Preferences.setBandPlan(this, BandPlan.DEFAULT.id);
+    }
+
+    /* returns false if the radio can't tune the plan */
+    private boolean selectBand(BandPlan plan) {
+        try {
+            final int current = mIFMRadioService.getBand();
+            if (mPlatformBand < 0) {
+                mPlatformBand = current;
+            }
+            final int band = plan.hardwareBand >= 0 ? plan.hardwareBand : mPlatformBand;
+            if (band != current && !mIFMRadioService.setBand(band)) {
+                Log.w(TAG, "Radio refused band " + band + " for band plan " + plan.id);
+                return false;
+            }
+            final int min = mIFMRadioService.getMinFrequence();
+            final int max = mIFMRadioService.getMaxFrequence();
+            final int step = mIFMRadioService.getStepUnit();
+            Log.v(TAG, "Band plan " + plan.id + ", radio range " + min + "-" + max + " step " + step);
+            return plan.isTunable(min, max, step);
+        } catch (RemoteException e) {
+            /* can't tell, keep what the user chose */
+            Log.e(TAG, "Could not select band", e);
+            return true;
+        }
+    }
+
+    private boolean isSeekSensitivityAuto() {
+        return Preferences.getSeekSensitivityThreshold(this) == Preferences.SEEK_SENSITIVITY_AUTO;
+    }
+
+    /* the RSSI level seeks stop at, either chosen by the user or calibrated */
+    private int getSeekThreshold() {
+        final int configured = Preferences.getSeekSensitivityThreshold(this);
+        if (configured != Preferences.SEEK_SENSITIVITY_AUTO) {
+            return configured;
+        }
+        return mNoiseFloor.getThreshold(Preferences.DEFAULT_SENSITIVITY);
+    }
+
+    private void updateNoiseProfile() {
+        Bundle bank = getContentResolver().call(Banks.CONTENT_URI,
+                Banks.METHOD_GET_ACTIVE_BANK, null, null);
+        if (bank != null && mNoiseFloor.setProfile(bank.getInt(Banks.EXTRA_BANK))
+                && isSeekSensitivityAuto()) {
+            setSeekSensitivity(getSeekThreshold());
+        }
+    }
+
+    /*
+     * Measures a few channels away from known stations to calibrate the
+     * automatic seek threshold. Muted, and the tuner returns to the current
+     * frequency afterwards.
+     */
+    private void startCalibration() {
+        final int stride = mBandPlan.getChannelCount() / CALIBRATION_CHANNELS;
+        int[] selected = new int[CALIBRATION_CHANNELS];
+        int count = 0;
+
+        /* spread over the band, moving up a channel where a station is too close */
+        for (int i = 0; i < CALIBRATION_CHANNELS; i++) {
+            for (int offset = 0; offset < stride; offset++) {
+                final int frequency = mBandPlan.getFrequency(i * stride + offset);
+                if (!mStationCatalog.isNearRecent(frequency, CALIBRATION_SPACING)) {
+                    selected[count++] = frequency;
+                    break;
+                }
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        Log.d(TAG, "Calibrating noise floor on " + count + " channels");
+        takeOverTuner(TunerOwner.CALIBRATION);
+        mCalibrationChannels = new int[count];
+        System.arraycopy(selected, 0, mCalibrationChannels, 0, count);
+        mCalibrationIndex = 0;
+        mCalibrationReturn = mCurFreq;
+        mCalibrationWasMuted = mMuted;
+        setFMMuteState(true);
+        if (!setFMFrequency(mCalibrationChannels[0])) {
+            finishCalibration();
+        }
+    }
+
+    /* rssi is negative if the channel couldn't be measured */
+    private void handleCalibrationSample(int rssi) {
+        if (mTunerOwner != TunerOwner.CALIBRATION) {
+            return;
+        }
+        mHandler.removeMessages(MSG_CALIBRATION_TIMEOUT);
+        if (rssi >= 0) {
+            mNoiseFloor.addSample(rssi);
+        }
+        mCalibrationIndex++;
+        if (mCalibrationIndex >= mCalibrationChannels.length
+                || !setFMFrequency(mCalibrationChannels[mCalibrationIndex])) {
+            finishCalibration();
+        }
+    }
+
+    private void finishCalibration() {
+        mCalibrationChannels = null;
+        mHandler.removeMessages(MSG_CALIBRATION_TIMEOUT);
+        mNoiseFloor.save();
+        final int threshold = getSeekThreshold();
+        Log.d(TAG, "Noise floor calibrated, seek threshold " + threshold);
+        setSeekSensitivity(threshold);
+        /* completes like a regular tune, which updates the UI; muted until the tuner is back */
+        claimTuner(TunerOwner.CALIBRATION_RETURN);
+        if (!setFMFrequency(mCalibrationReturn)) {
+            releaseTuner(TunerOwner.CALIBRATION_RETURN);
+            setFMMuteState(mCalibrationWasMuted);
+        }
+    }
+
     private boolean setSeekSensitivity(int value) {
         if (value < 0) {
             return false;
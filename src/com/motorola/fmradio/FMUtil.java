@@ -6,23 +6,19 @@ import android.database.Cursor;
 import android.text.TextUtils;
 import android.widget.Toast;
 
-import java.text.DecimalFormat;
-
 public class FMUtil {
     public static final String EMPTY = "";
 
-    public static final int MIN_FREQUENCY = 87500;
-    public static final int MAX_FREQUENCY = 108000;
-    public static final int STEP = 100;
-
     public static final String[] PROJECTION = new String[] {
         FMDataProvider.Channels.ID, FMDataProvider.Channels.FREQUENCY,
-        FMDataProvider.Channels.NAME, FMDataProvider.Channels.RDS_NAME
+        FMDataProvider.Channels.NAME, FMDataProvider.Channels.RDS_NAME,
+        FMDataProvider.Channels.PI
     };
     public static  final int CHANNEL_COLUMN_ID = 0;
     public static  final int CHANNEL_COLUMN_FREQ = 1;
     public static  final int CHANNEL_COLUMN_NAME = 2;
     public static  final int CHANNEL_COLUMN_RDSNAME = 3;
+    public static  final int CHANNEL_COLUMN_PI = 4;
 
     public static final int FREQ_RATE = 1000;
 
@@ -50,8 +46,16 @@ public class FMUtil {
     }
 
     public static String getPresetUiString(Context context, Cursor cursor, int index) {
-        int frequency = cursor.getInt(CHANNEL_COLUMN_FREQ);
-        String chName = cursor.getString(CHANNEL_COLUMN_NAME);
+        return getPresetUiString(context, cursor.getInt(CHANNEL_COLUMN_FREQ),
+                cursor.getString(CHANNEL_COLUMN_NAME), index);
+    }
+
+    public static String getPresetUiString(Context context, PresetSnapshot presets, int index) {
+        return getPresetUiString(context, presets.getFrequency(index), presets.getName(index),
+                presets.getId(index) + 1);
+    }
+
+    static String getPresetUiString(Context context, int frequency, String chName, int index) {
         Resources res = context.getResources();
         StringBuilder sb = new StringBuilder();
 
@@ -82,8 +86,6 @@ public class FMUtil {
     }
 
     public static String formatFrequency(Context context, int frequency) {
-        float freq = (float) frequency / 1000.0F;
-        DecimalFormat formatter = new DecimalFormat(".0");
-        return formatter.format(freq) + context.getString(R.string.mhz);
+        return Preferences.getBandPlan(context).getLabel(frequency) + context.getString(R.string.mhz);
     }
 }
@@ -0,0 +1,136 @@
+package com.motorola.fmradio;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Noise floor estimate per location profile (a preset bank), built from the
+ * signal strength measured on channels without a station. Old samples fade
+ * out as new ones come in, so the estimate follows the surroundings. The
+ * seek threshold is derived from it: low in quiet rural areas, so weak
+ * stations aren't skipped, and high in noisy cities, so seeks don't stop on
+ * noise. Accessed from the service handler and from binder threads.
+ */
+public class NoiseFloor {
+    private static final String TAG = "NoiseFloor";
+
+    private static final String PREFS_NAME = "noise_floor";
+    private static final String KEY_HISTOGRAM = "histogram_";
+    private static final String KEY_CALIBRATED = "calibrated_";
+
+    /* anything stronger is a station, not noise; also the range of the manual settings */
+    private static final int MIN_THRESHOLD = 6;
+    private static final int MAX_THRESHOLD = 18;
+    private static final int MIN_SAMPLES = 8;
+    /* when reached, all counts are halved */
+    private static final int MAX_SAMPLES = 256;
+    /* the level most noise stays below, in percent of the samples */
+    private static final int NOISE_PERCENTILE = 75;
+    private static final int MARGIN = 3;
+    private static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    private final SharedPreferences mPrefs;
+    private final int[] mHistogram = new int[MAX_THRESHOLD + 1];
+    private int mTotal;
+    private long mCalibrated;
+    private int mProfile = -1;
+
+    public NoiseFloor(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /* returns false if the profile was already selected */
+    public synchronized boolean setProfile(int profile) {
+        if (profile == mProfile) {
+            return false;
+        }
+        mProfile = profile;
+        mTotal = 0;
+        for (int i = 0; i < mHistogram.length; i++) {
+            mHistogram[i] = 0;
+        }
+
+        mCalibrated = mPrefs.getLong(KEY_CALIBRATED + profile, 0);
+        final String stored = mPrefs.getString(KEY_HISTOGRAM + profile, null);
+        if (TextUtils.isEmpty(stored)) {
+            return true;
+        }
+        try {
+            for (String bin : TextUtils.split(stored, ",")) {
+                final int separator = bin.indexOf(':');
+                final int rssi = Integer.parseInt(bin.substring(0, separator));
+                final int count = Integer.parseInt(bin.substring(separator + 1));
+                if (rssi >= 0 && rssi <= MAX_THRESHOLD && count > 0) {
+                    mHistogram[rssi] += count;
+                    mTotal += count;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Dropping invalid noise floor of profile " + profile, e);
+            mTotal = 0;
+            for (int i = 0; i < mHistogram.length; i++) {
+                mHistogram[i] = 0;
+            }
+        }
+        return true;
+    }
+
+    /* adds the strength of a channel believed to be empty */
+    public synchronized void addSample(int rssi) {
+        if (mProfile < 0 || rssi > MAX_THRESHOLD) {
+            return;
+        }
+        if (mTotal >= MAX_SAMPLES) {
+            mTotal = 0;
+            for (int i = 0; i < mHistogram.length; i++) {
+                mHistogram[i] /= 2;
+                mTotal += mHistogram[i];
+            }
+        }
+        mHistogram[Math.max(0, rssi)]++;
+        mTotal++;
+    }
+
+    /* true if there are too few samples or they are too old */
+    public synchronized boolean needsCalibration() {
+        final long age = System.currentTimeMillis() - mCalibrated;
+        return mProfile >= 0 && (mTotal < MIN_SAMPLES || age < 0 || age > MAX_AGE);
+    }
+
+    /* returns the seek threshold for the current profile, or fallback while there is no estimate */
+    public synchronized int getThreshold(int fallback) {
+        if (mTotal < MIN_SAMPLES) {
+            return fallback;
+        }
+        int remaining = mTotal * NOISE_PERCENTILE / 100;
+        int rssi = 0;
+        while (rssi < MAX_THRESHOLD && remaining >= mHistogram[rssi]) {
+            remaining -= mHistogram[rssi];
+            rssi++;
+        }
+        return Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, rssi + MARGIN));
+    }
+
+    /* stores the samples of the current profile, marking it as freshly calibrated */
+    public synchronized void save() {
+        if (mProfile < 0) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int rssi = 0; rssi < mHistogram.length; rssi++) {
+            if (mHistogram[rssi] > 0) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(rssi).append(':').append(mHistogram[rssi]);
+            }
+        }
+        mCalibrated = System.currentTimeMillis();
+        mPrefs.edit()
+                .putString(KEY_HISTOGRAM + mProfile, sb.toString())
+                .putLong(KEY_CALIBRATED + mProfile, mCalibrated)
+                .apply();
+    }
+}
@@ -1,11 +1,32 @@
 package com.motorola.fmradio;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class Preferences {
+    private static final String TAG = "Preferences";
+
+    /* asks the player service process to write the values it holds back */
+    public static final String ACTION_FLUSH_SETTINGS = "com.motorola.fmradio.action.FLUSH_SETTINGS";
+    /* asks the main process to re-read the settings listed in EXTRA_RELOAD */
+    public static final String ACTION_RELOAD_SETTINGS = "com.motorola.fmradio.action.RELOAD_SETTINGS";
+    /* keys of the settings replaced on disk, set on ACTION_CONFIG_CHANGED if they need to be re-read */
+    public static final String EXTRA_RELOAD = "reload";
+
     private static final String KEY_VOLUME = "volume";
     private static final String KEY_LAST_FREQUENCY = "last_frequency";
     private static final String KEY_LAST_CHANNEL = "last_channel";
@@ -14,27 +35,162 @@ public class Preferences {
     private static final String KEY_IGNORE_AIRPLANE_MODE = "ignore_airplane_mode";
     private static final String KEY_IGNORE_NO_HEADSET = "ignore_no_headset";
     private static final String KEY_SEEK_SENSITIVITY = "seek_sensitivity";
+    private static final String KEY_SMART_SEEK = "smart_seek";
+    private static final String KEY_AF_FOLLOWING = "af_following";
     private static final String KEY_MEDIA_BUTTON_BEHAVIOUR = "media_button_behaviour";
     private static final String KEY_HIDE_ACTIONBAR = "hide_actionbar";
     private static final String KEY_USE_LOUDSPEAKER = "use_loudspeaker";
+    private static final String KEY_SCAN_MODE = "scan_mode";
+    private static final String KEY_SWEEP_SCAN = "sweep_scan";
+    private static final String KEY_GHOST_SPACING = "ghost_spacing";
+    private static final String KEY_BAND_PLAN = "band_plan";
 
     private static final int DEFAULT_VOLUME = 0;
-    private static final int DEFAULT_FREQUENCY = FMUtil.MIN_FREQUENCY;
-    private static final int DEFAULT_SENSITIVITY = 12;
+    private static final int DEFAULT_FREQUENCY = BandPlan.DEFAULT.min;
+    public static final int DEFAULT_SENSITIVITY = 12;
+    /* seek sensitivity value selecting the threshold calibrated from the noise floor */
+    public static final int SEEK_SENSITIVITY_AUTO = 0;
+    private static final int DEFAULT_SCAN_PRESET_LIMIT = 20;
+    private static final int DEFAULT_GHOST_SPACING = 100;
+
+    /* delay after the last write before pending values are flushed to disk */
+    private static final int WRITE_BEHIND_DELAY = 3000;
+    /* longest a value is held back while writes keep coming in */
+    private static final int MAX_WRITE_BEHIND_DELAY = 10000;
+    /* longest a state export waits for the player service to flush */
+    private static final int REMOTE_FLUSH_TIMEOUT = 2000;
+
+    private static final String EXTRA_CONFIG_PREFIX = "config.";
+
+    /**
+     * Immutable, already parsed copy of the user settings. A new instance
+     * replaces the current one whenever one of the settings changes, so hot
+     * paths only need a volatile read.
+     */
+    public static final class Config {
+        public final int seekSensitivity;
+        /* seek stops without RDS or a steady signal are skipped */
+        public final boolean smartSeek;
+        /* switch to another transmitter of the station when reception degrades */
+        public final boolean afFollowing;
+        public final boolean airplaneModeIgnored;
+        public final boolean headsetRequired;
+        public final boolean prevNextSwitchesPresets;
+        /* scan hits this close (kHz) to a stronger one are dropped as ghosts, 0 keeps them */
+        public final int ghostSpacing;
+        public final int bandPlan;
+
+        private Config(SharedPreferences prefs) {
+            seekSensitivity = parseInt(prefs.getString(KEY_SEEK_SENSITIVITY, null), DEFAULT_SENSITIVITY);
+            ghostSpacing = parseInt(prefs.getString(KEY_GHOST_SPACING, null), DEFAULT_GHOST_SPACING);
+            bandPlan = parseInt(prefs.getString(KEY_BAND_PLAN, null), BandPlan.PLAN_US_EUROPE);
+            smartSeek = prefs.getBoolean(KEY_SMART_SEEK, false);
+            afFollowing = prefs.getBoolean(KEY_AF_FOLLOWING, false);
+            airplaneModeIgnored = prefs.getBoolean(KEY_IGNORE_AIRPLANE_MODE, false);
+            headsetRequired = !prefs.getBoolean(KEY_IGNORE_NO_HEADSET, false);
+            prevNextSwitchesPresets = !TextUtils.equals(
+                    prefs.getString(KEY_MEDIA_BUTTON_BEHAVIOUR, null), "seek");
+        }
+
+        private Config(Intent intent) {
+            seekSensitivity = intent.getIntExtra(EXTRA_CONFIG_PREFIX + KEY_SEEK_SENSITIVITY,
+                    DEFAULT_SENSITIVITY);
+            smartSeek = intent.getBooleanExtra(EXTRA_CONFIG_PREFIX + KEY_SMART_SEEK, false);
+            afFollowing = intent.getBooleanExtra(EXTRA_CONFIG_PREFIX + KEY_AF_FOLLOWING, false);
+            airplaneModeIgnored = intent.getBooleanExtra(
+                    EXTRA_CONFIG_PREFIX + KEY_IGNORE_AIRPLANE_MODE, false);
+            headsetRequired = !intent.getBooleanExtra(
+                    EXTRA_CONFIG_PREFIX + KEY_IGNORE_NO_HEADSET, false);
+            prevNextSwitchesPresets = intent.getBooleanExtra(
+                    EXTRA_CONFIG_PREFIX + KEY_MEDIA_BUTTON_BEHAVIOUR, true);
+            ghostSpacing = intent.getIntExtra(EXTRA_CONFIG_PREFIX + KEY_GHOST_SPACING,
+                    DEFAULT_GHOST_SPACING);
+            bandPlan = intent.getIntExtra(EXTRA_CONFIG_PREFIX + KEY_BAND_PLAN, BandPlan.PLAN_US_EUROPE);
+        }
+
+        /* attaches this configuration to an intent, for handing it to other processes */
+        public void writeTo(Intent intent) {
+            intent.putExtra(EXTRA_CONFIG_PREFIX + KEY_SEEK_SENSITIVITY, seekSensitivity);
+            intent.putExtra(EXTRA_CONFIG_PREFIX + KEY_SMART_SEEK, smartSeek);
+            intent.putExtra(EXTRA_CONFIG_PREFIX + KEY_AF_FOLLOWING, afFollowing);
+            intent.putExtra(EXTRA_CONFIG_PREFIX + KEY_IGNORE_AIRPLANE_MODE, airplaneModeIgnored);
+            intent.putExtra(EXTRA_CONFIG_PREFIX + KEY_IGNORE_NO_HEADSET, !headsetRequired);
+            intent.putExtra(EXTRA_CONFIG_PREFIX + KEY_MEDIA_BUTTON_BEHAVIOUR, prevNextSwitchesPresets);
+            intent.putExtra(EXTRA_CONFIG_PREFIX + KEY_GHOST_SPACING, ghostSpacing);
+            intent.putExtra(EXTRA_CONFIG_PREFIX + KEY_BAND_PLAN, bandPlan);
+        }
+
+        public static Config fromIntent(Intent intent) {
+            return new Config(intent);
+        }
+    }
+
+    public interface OnConfigChangeListener {
+        void onConfigChanged(Config oldConfig, Config newConfig);
+    }
+
+    private static volatile Config sConfig;
+    private static final CopyOnWriteArrayList<OnConfigChangeListener> sConfigListeners =
+            new CopyOnWriteArrayList<OnConfigChangeListener>();
+
+    /* SharedPreferences only keeps weak references to its listeners */
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sPrefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (TextUtils.equals(key, KEY_SEEK_SENSITIVITY)
+                    || TextUtils.equals(key, KEY_SMART_SEEK)
+                    || TextUtils.equals(key, KEY_AF_FOLLOWING)
+                    || TextUtils.equals(key, KEY_IGNORE_AIRPLANE_MODE)
+                    || TextUtils.equals(key, KEY_IGNORE_NO_HEADSET)
+                    || TextUtils.equals(key, KEY_MEDIA_BUTTON_BEHAVIOUR)
+                    || TextUtils.equals(key, KEY_GHOST_SPACING)
+                    || TextUtils.equals(key, KEY_BAND_PLAN)) {
+                updateConfig(new Config(prefs));
+            }
+        }
+    };
+
+    private static final HashMap<String, Object> sPendingWrites = new HashMap<String, Object>();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static Context sFlushContext;
+    /* uptime of the oldest write still pending */
+    private static long sOldestPendingWrite;
+
+    private static final Runnable sFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Context context;
+            synchronized (sPendingWrites) {
+                context = sFlushContext;
+            }
+            if (context != null) {
+                writePending(context, false);
+            }
+        }
+    };
 
     static public int getVolume(Context context) {
+        Integer pending = (Integer) getPending(KEY_VOLUME);
+        if (pending != null) {
+            return pending;
+        }
         return getPrefs(context).getInt(KEY_VOLUME, DEFAULT_VOLUME);
     }
     static public void setVolume(Context context, int volume) {
-        getPrefs(context).edit().putInt(KEY_VOLUME, volume).commit();
+        putPending(context, KEY_VOLUME, volume);
     }
 
     static public int getLastFrequency(Context context) {
+        Integer pending = (Integer) getPending(KEY_LAST_FREQUENCY);
+        if (pending != null) {
+            return pending;
+        }
         return getPrefs(context).getInt(KEY_LAST_FREQUENCY, DEFAULT_FREQUENCY);
     }
     static public void setLastFrequency(Context context, int frequency) {
         if (frequency > 0) {
-            getPrefs(context).edit().putInt(KEY_LAST_FREQUENCY, frequency).commit();
+            putPending(context, KEY_LAST_FREQUENCY, frequency);
         }
     }
 
@@ -45,31 +201,277 @@ public class Preferences {
         getPrefs(context).edit().putBoolean(KEY_SCANNED, scanned).commit();
     }
 
+    /* number of strongest stations a scan keeps, 0 keeps all stations in band order */
+    static public int getScanPresetLimit(Context context) {
+        return parseInt(getPrefs(context).getString(KEY_SCAN_MODE, null), DEFAULT_SCAN_PRESET_LIMIT);
+    }
+
+    /* whether scans measure every channel instead of using the hardware scan */
+    static public boolean useSweepScan(Context context) {
+        return getPrefs(context).getBoolean(KEY_SWEEP_SCAN, false);
+    }
+
+    static public BandPlan getBandPlan(Context context) {
+        return BandPlan.get(getConfig(context).bandPlan);
+    }
+    /*
+     * Used by the player service process when the radio can't tune the
+     * configured plan. The main process caches the settings as well and
+     * would write the old plan back, so it is told to re-read it.
+     */
+    static public void setBandPlan(Context context, int id) {
+        context.getSharedPreferences(context.getPackageName() + "_preferences", Context.MODE_MULTI_PROCESS)
+                .edit().putString(KEY_BAND_PLAN, String.valueOf(id)).commit();
+        reloadConfig(context);
+
+        Intent intent = new Intent(ACTION_RELOAD_SETTINGS);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_RELOAD, new String[] { KEY_BAND_PLAN });
+        context.sendBroadcast(intent, SettingsActivity.PERMISSION_SETTINGS);
+    }
+
+    static public boolean useSmartSeek(Context context) {
+        return getConfig(context).smartSeek;
+    }
+
+    static public boolean useAfFollowing(Context context) {
+        return getConfig(context).afFollowing;
+    }
+
+    static public int getGhostSpacing(Context context) {
+        return getConfig(context).ghostSpacing;
+    }
+
     static public int getSeekSensitivityThreshold(Context context) {
-        String value = getPrefs(context).getString(KEY_SEEK_SENSITIVITY, null);
-        if (value == null) {
-            return DEFAULT_SENSITIVITY;
-        }
-        return Integer.parseInt(value);
+        return getConfig(context).seekSensitivity;
     }
 
     static public boolean isAirplaneModeIgnored(Context context) {
-        return getPrefs(context).getBoolean(KEY_IGNORE_AIRPLANE_MODE, false);
+        return getConfig(context).airplaneModeIgnored;
     }
     static public boolean isHeadsetRequired(Context context) {
-        return !getPrefs(context).getBoolean(KEY_IGNORE_NO_HEADSET, false);
+        return getConfig(context).headsetRequired;
     }
 
     static public boolean mediaButtonPrevNextSwitchesPresets(Context context) {
-        String value = getPrefs(context).getString(KEY_MEDIA_BUTTON_BEHAVIOUR, null);
-        return !TextUtils.equals(value, "seek");
+        return getConfig(context).prevNextSwitchesPresets;
     }
 
     static public boolean useSpeakerAsOutput(Context context) {
+        Boolean pending = (Boolean) getPending(KEY_USE_LOUDSPEAKER);
+        if (pending != null) {
+            return pending;
+        }
         return getPrefs(context).getBoolean(KEY_USE_LOUDSPEAKER, false);
     }
     static public void setUseSpeaker(Context context, boolean useSpeaker) {
-        getPrefs(context).edit().putBoolean(KEY_USE_LOUDSPEAKER, useSpeaker).commit();
+        putPending(context, KEY_USE_LOUDSPEAKER, useSpeaker);
+    }
+
+    static public Config getConfig(Context context) {
+        Config config = sConfig;
+        if (config == null) {
+            synchronized (sConfigListeners) {
+                config = sConfig;
+                if (config == null) {
+                    SharedPreferences prefs = getPrefs(context);
+                    prefs.registerOnSharedPreferenceChangeListener(sPrefsListener);
+                    config = new Config(prefs);
+                    sConfig = config;
+                }
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Re-reads the settings from disk. Needed in processes that did not make
+     * the change themselves, as their preference cache is not updated.
+     */
+    static public void reloadConfig(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                context.getPackageName() + "_preferences", Context.MODE_MULTI_PROCESS);
+        updateConfig(new Config(prefs));
+    }
+
+    /**
+     * Replaces the current configuration, e.g. with one received from the
+     * settings screen running in another process, and informs listeners.
+     */
+    static public void updateConfig(Config config) {
+        Config oldConfig;
+        synchronized (sConfigListeners) {
+            oldConfig = sConfig;
+            sConfig = config;
+        }
+        for (OnConfigChangeListener listener : sConfigListeners) {
+            listener.onConfigChanged(oldConfig, config);
+        }
+    }
+
+    static public void registerConfigListener(OnConfigChangeListener listener) {
+        sConfigListeners.addIfAbsent(listener);
+    }
+    static public void unregisterConfigListener(OnConfigChangeListener listener) {
+        sConfigListeners.remove(listener);
+    }
+
+    /**
+     * Returns all stored settings for a state export. Reads from disk, as
+     * some values are written by the player service process.
+     */
+    static public Map<String, ?> getAllSettings(Context context) {
+        flush(context);
+        flushRemote(context);
+        return context.getSharedPreferences(context.getPackageName() + "_preferences",
+                Context.MODE_MULTI_PROCESS).getAll();
+    }
+
+    /* overwrites the settings with those of a state export */
+    static public void importSettings(Context context, Map<String, ?> settings) {
+        synchronized (sPendingWrites) {
+            sPendingWrites.keySet().removeAll(settings.keySet());
+        }
+
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, ?> entry : settings.entrySet()) {
+            final String key = entry.getKey();
+            final Object value = entry.getValue();
+            if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else if (value instanceof String) {
+                editor.putString(key, (String) value);
+            }
+        }
+        editor.commit();
+
+        Config config = new Config(prefs);
+        updateConfig(config);
+
+        /* the player service process still has the old values cached */
+        Intent intent = new Intent(SettingsActivity.ACTION_CONFIG_CHANGED);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_RELOAD, settings.keySet().toArray(new String[settings.size()]));
+        config.writeTo(intent);
+        context.sendBroadcast(intent, SettingsActivity.PERMISSION_SETTINGS);
+    }
+
+    /**
+     * Drops the values held back by the write-behind cache for the given
+     * keys and re-reads the settings from disk, after another process
+     * replaced them. Values of other keys are still written.
+     */
+    static public void reloadSettings(Context context, String[] keys) {
+        synchronized (sPendingWrites) {
+            for (String key : keys) {
+                sPendingWrites.remove(key);
+            }
+        }
+        reloadConfig(context);
+    }
+
+    /**
+     * Synchronously writes all values that are still held back by the
+     * write-behind cache. Call this before the process may go away.
+     */
+    static public void flush(Context context) {
+        sHandler.removeCallbacks(sFlushRunnable);
+        writePending(context, true);
+    }
+
+    /*
+     * Has the player service process write the values it holds back and
+     * waits for it. The reply arrives on the main thread, so this must be
+     * called from another one.
+     */
+    private static void flushRemote(Context context) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(TAG, "Not waiting for the player service on the main thread");
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Intent intent = new Intent(ACTION_FLUSH_SETTINGS);
+        intent.setPackage(context.getPackageName());
+        /* the result receiver also runs if the service isn't there to receive it */
+        context.sendOrderedBroadcast(intent, SettingsActivity.PERMISSION_SETTINGS, new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                done.countDown();
+            }
+        }, null, 0, null, null);
+
+        try {
+            if (!done.await(REMOTE_FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Player service did not flush its settings in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Object getPending(String key) {
+        synchronized (sPendingWrites) {
+            return sPendingWrites.get(key);
+        }
+    }
+
+    private static void putPending(Context context, String key, Object value) {
+        final long now = SystemClock.uptimeMillis();
+        final long delay;
+        synchronized (sPendingWrites) {
+            if (sPendingWrites.isEmpty()) {
+                sOldestPendingWrite = now;
+            }
+            sPendingWrites.put(key, value);
+            sFlushContext = context.getApplicationContext();
+            /* a steady stream of writes (volume ramp, scan) mustn't postpone the flush forever */
+            delay = Math.min(WRITE_BEHIND_DELAY, sOldestPendingWrite + MAX_WRITE_BEHIND_DELAY - now);
+        }
+        sHandler.removeCallbacks(sFlushRunnable);
+        sHandler.postDelayed(sFlushRunnable, Math.max(0, delay));
+    }
+
+    private static void writePending(Context context, boolean sync) {
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+
+        synchronized (sPendingWrites) {
+            if (sPendingWrites.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, Object> entry : sPendingWrites.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Integer) {
+                    editor.putInt(entry.getKey(), (Integer) value);
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(entry.getKey(), (Boolean) value);
+                }
+            }
+            sPendingWrites.clear();
+        }
+
+        if (sync) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return defaultValue;
     }
 
     static public SharedPreferences getPrefs(Context context) {
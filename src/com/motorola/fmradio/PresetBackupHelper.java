@@ -1,46 +1,168 @@
 package com.motorola.fmradio;
 
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.Bundle;
+import android.os.FileObserver;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Xml;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.motorola.fmradio.FMDataProvider.Channels;
+import com.motorola.fmradio.FMDataProvider.State;
+import com.motorola.fmradio.FMDataProvider.Stations;
 
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlSerializer;
 
 public class PresetBackupHelper {
     private static final String TAG = "PresetBackupHelper";
 
-    private static final String ROOT_ELEMENT = "fmradio";
-    private static final String PRESETS_ELEMENT = "presets";
-    private static final String PRESET_ELEMENT = "preset";
-    private static final String FREQUENCY_ELEMENT = "frequency";
-    private static final String NAME_ELEMENT = "name";
-    private static final String INDEX_ATTRIBUTE = "index";
+    static final String ROOT_ELEMENT = "fmradio";
+    static final String PRESETS_ELEMENT = "presets";
+    static final String PRESET_ELEMENT = "preset";
+    static final String FREQUENCY_ELEMENT = "frequency";
+    static final String NAME_ELEMENT = "name";
+    static final String INDEX_ATTRIBUTE = "index";
+
+    private static final String BACKUP_DIRECTORY = "backups";
+    private static final String BACKUP_PREFIX = "presets-";
+    private static final String BACKUP_SUFFIX = ".xml";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String SNAPSHOT_SUFFIX = ".fms";
+    private static final String STATE_PREFIX = "state-";
+
+    /* after this many chained incremental exports the next export is a full one again */
+    private static final int MAX_INCREMENTAL_EXPORTS = 16;
+
+    private static final int BACKUP_DIR_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    /* backup names are listed once and re-listed only after the directory changed */
+    private static final Object sBackupListLock = new Object();
+    private static String[] sBackupNames;
+    private static FileObserver sBackupDirObserver;
+
+    /* extras added to the restore result on top of the provider's diff counts */
+    public static final String EXTRA_RESTORED = "restored";
+    public static final String EXTRA_REJECTED = "rejected";
+    public static final String EXTRA_ERRORS = "errors";
+
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+        boolean isCanceled();
+    }
 
     private PresetBackupHelper() {
         /* this class is not supposed to be instantiated */
     }
 
+    public static File getBackupDirectory(Context context) {
+        File base = context.getExternalFilesDir(null);
+        if (base == null) {
+            return null;
+        }
+        return new File(base, BACKUP_DIRECTORY);
+    }
+
+    public static File getBackupFile(Context context, String name) {
+        File backupDir = getBackupDirectory(context);
+        if (backupDir == null) {
+            return null;
+        }
+        return new File(backupDir, BACKUP_PREFIX + name + BACKUP_SUFFIX);
+    }
+
+    /*
+     * Resolves the name of a state export in the backup directory. Returns
+     * null if there is no backup directory or the name is not one of a
+     * state export, so callers can't reach other files.
+     */
+    public static File getStateFile(Context context, String name) {
+        if (name == null || name.indexOf(File.separatorChar) >= 0
+                || !name.startsWith(STATE_PREFIX) || !name.endsWith(SNAPSHOT_SUFFIX)) {
+            return null;
+        }
+        File backupDir = getBackupDirectory(context);
+        if (backupDir == null) {
+            return null;
+        }
+        return new File(backupDir, name);
+    }
+
+    public static String[] getBackupNames(Context context) {
+        synchronized (sBackupListLock) {
+            if (sBackupNames != null) {
+                return sBackupNames;
+            }
+
+            final File backupDir = getBackupDirectory(context);
+            if (backupDir == null) {
+                return new String[0];
+            }
+            if (sBackupDirObserver == null) {
+                backupDir.mkdirs();
+                sBackupDirObserver = new FileObserver(backupDir.getAbsolutePath(), BACKUP_DIR_EVENTS) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        invalidateBackupNames((event & (DELETE_SELF | MOVE_SELF)) != 0);
+                    }
+                };
+                sBackupDirObserver.startWatching();
+            }
+
+            File[] files = backupDir.listFiles();
+            ArrayList<String> items = new ArrayList<String>();
+
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.isFile()) {
+                        continue;
+                    }
+                    final String name = file.getName();
+                    if (!name.startsWith(BACKUP_PREFIX) || !name.endsWith(BACKUP_SUFFIX)) {
+                        continue;
+                    }
+                    items.add(name.substring(BACKUP_PREFIX.length(),
+                            name.length() - BACKUP_SUFFIX.length()));
+                }
+            }
+
+            String[] names = items.toArray(new String[items.size()]);
+            Arrays.sort(names);
+            sBackupNames = names;
+            return names;
+        }
+    }
+
+    private static void invalidateBackupNames(boolean directoryGone) {
+        synchronized (sBackupListLock) {
+            sBackupNames = null;
+            if (directoryGone && sBackupDirObserver != null) {
+                sBackupDirObserver.stopWatching();
+                sBackupDirObserver = null;
+            }
+        }
+    }
+
     public static boolean backupPresets(Context context, File destination) {
+        return backupPresets(context, destination, null);
+    }
+
+    /*
+     * The backup is written to a temporary file first and renamed when
+     * complete, so a canceled or failed backup never leaves a truncated
+     * file behind.
+     */
+    public static boolean backupPresets(Context context, File destination, ProgressListener listener) {
         OutputStream os = null;
         boolean result = false;
 
@@ -50,11 +172,13 @@ public class PresetBackupHelper {
             return false;
         }
 
+        final File temp = new File(destination.getAbsolutePath() + TEMP_SUFFIX);
+
         try {
             final File dir = destination.getParentFile();
             dir.mkdirs();
 
-            os = new FileOutputStream(destination.getAbsolutePath());
+            os = new FileOutputStream(temp);
 
             XmlSerializer serializer = Xml.newSerializer();
             serializer.setOutput(os, "UTF-8");
@@ -65,32 +189,77 @@ public class PresetBackupHelper {
             serializer.startTag(null, ROOT_ELEMENT);
 
             serializer.startTag(null, PRESETS_ELEMENT);
-            exportPresets(serializer, cursor);
+            boolean complete = exportPresets(serializer, cursor, listener);
             serializer.endTag(null, PRESETS_ELEMENT);
 
             serializer.endTag(null, ROOT_ELEMENT);
             serializer.endDocument();
             serializer.flush();
 
-            result = true;
+            result = complete;
         } catch (IOException e) {
+            Log.w(TAG, "Could not write backup file", e);
         } finally {
             if (os != null) {
                 try {
                     os.close();
                 } catch (IOException e) {
+                    result = false;
                 }
             }
         }
 
         cursor.close();
 
+        if (result) {
+            result = temp.renameTo(destination);
+        }
+        if (!result) {
+            temp.delete();
+        }
+
+        /* the binary snapshot is only an accelerator, the XML file stays authoritative */
+        final File snapshot = getSnapshotFile(destination);
+        if (result && !SnapshotFile.write(context, snapshot)) {
+            snapshot.delete();
+        }
+
         return result;
     }
 
-    private static void exportPresets(XmlSerializer serializer, Cursor cursor) throws IOException {
+    private static File getSnapshotFile(File backup) {
+        String path = backup.getAbsolutePath();
+        if (path.endsWith(BACKUP_SUFFIX)) {
+            path = path.substring(0, path.length() - BACKUP_SUFFIX.length());
+        }
+        return new File(path + SNAPSHOT_SUFFIX);
+    }
+
+    /*
+     * Uses the binary snapshot written along with the XML backup if it is
+     * not older than the XML file, which might have been edited by hand.
+     */
+    private static SnapshotFile.Contents readSnapshot(File backup) {
+        final File snapshot = getSnapshotFile(backup);
+        if (!snapshot.isFile() || snapshot.lastModified() < backup.lastModified()) {
+            return null;
+        }
+        return SnapshotFile.read(snapshot);
+    }
+
+    private static boolean exportPresets(XmlSerializer serializer, Cursor cursor,
+            ProgressListener listener) throws IOException {
+        final int total = cursor.getCount();
+        int done = 0;
+
         cursor.moveToFirst();
         while (!cursor.isAfterLast()) {
+            if (listener != null) {
+                if (listener.isCanceled()) {
+                    return false;
+                }
+                listener.onProgress(done++, total);
+            }
             int frequency = cursor.getInt(FMUtil.CHANNEL_COLUMN_FREQ);
             if (frequency != 0) {
                 int id = cursor.getInt(FMUtil.CHANNEL_COLUMN_ID);
@@ -104,6 +273,8 @@ public class PresetBackupHelper {
             }
             cursor.moveToNext();
         }
+
+        return true;
     }
 
     private static void writeElement(XmlSerializer serializer, String name, String value)
@@ -115,184 +286,242 @@ public class PresetBackupHelper {
         }
     }
 
-    private static class PresetDescription {
-        public int index;
-        public int frequency;
-        public String name;
-
-        public boolean isValid() {
-            return index > 0 && frequency >= FMUtil.MIN_FREQUENCY && frequency <= FMUtil.MAX_FREQUENCY;
-        }
-        @Override
-        public String toString() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("Preset description for index ");
-            sb.append(index);
-            sb.append(": frequency ");
-            sb.append(frequency);
-            sb.append(", name ");
-            sb.append(TextUtils.isEmpty(name) ? "<empty>" : name);
-            return sb.toString();
+    public static int restorePresets(Context context, File source) {
+        Bundle result = restorePresets(context, source, false, null);
+        return result != null ? result.getInt(EXTRA_RESTORED) : -1;
+    }
+
+    /**
+     * Restores the given backup into the active preset bank in a single
+     * transaction. Returns null on failure or cancellation, otherwise the
+     * diff counts plus EXTRA_RESTORED, EXTRA_REJECTED and EXTRA_ERRORS.
+     */
+    public static Bundle restorePresets(Context context, File source, boolean merge,
+            ProgressListener listener) {
+        Bundle result = applyBackup(context, source, merge, false, listener);
+        if (result != null) {
+            int written = result.getInt(Channels.EXTRA_ADDED) + result.getInt(Channels.EXTRA_UPDATED);
+            /* when replacing, unchanged presets are rewritten as well */
+            result.putInt(EXTRA_RESTORED, merge ? written : written + result.getInt(Channels.EXTRA_SKIPPED));
         }
+        return result;
     }
 
-    public static int restorePresets(Context context, File source) {
-        InputStream is = null;
-        HashMap<Integer, PresetDescription> importResults = null;
+    /**
+     * Computes what restoring the given backup would change without
+     * touching the presets. The result carries the Channels.EXTRA_ADDED,
+     * EXTRA_UPDATED, EXTRA_REMOVED and EXTRA_SKIPPED counts.
+     */
+    public static Bundle previewRestore(Context context, File source, boolean merge) {
+        return applyBackup(context, source, merge, true, null);
+    }
 
-        try {
-            is = new FileInputStream(source);
-            importResults = parseBackup(is);
-        } catch (FileNotFoundException e) {
-            Log.w(TAG, "Preset backup " + source.getAbsolutePath() + " not found", e);
-        } catch (IOException e) {
-            Log.w(TAG, "Could not read from backup file", e);
-        } catch (XmlPullParserException e) {
-            Log.w(TAG, "Invalid XML in backup file", e);
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                }
-            }
+    private static Bundle applyBackup(Context context, File source, boolean merge, boolean dryRun,
+            ProgressListener listener) {
+        SnapshotFile.Contents snapshot = readSnapshot(source);
+        PresetBackupReader reader = null;
+        PresetSnapshot backup;
+
+        if (snapshot != null) {
+            backup = snapshot.presets;
+        } else {
+            reader = new PresetBackupReader(listener);
+            backup = reader.read(source);
         }
 
-        if (importResults == null) {
-            return -1;
+        if (backup == null || (listener != null && listener.isCanceled())) {
+            return null;
         }
 
-        /* flush DB */
-        ContentResolver cr = context.getContentResolver();
-        ContentValues cv = new ContentValues();
-        cv.put(Channels.FREQUENCY, 0);
-        cv.put(Channels.NAME, "");
-        cv.put(Channels.RDS_NAME, "");
-        cr.update(Channels.CONTENT_URI, cv, null, null);
+        Bundle args = backup.toBundle();
+        args.putBoolean(Channels.EXTRA_MERGE, merge);
+        args.putBoolean(Channels.EXTRA_DRY_RUN, dryRun);
 
-        /* save import results */
-        for (PresetDescription desc : importResults.values()) {
-            Log.d(TAG, "Importing preset " + desc);
-            cv = new ContentValues();
-            cv.put(Channels.FREQUENCY, desc.frequency);
-            cv.put(Channels.NAME, desc.name);
+        ContentResolver cr = context.getContentResolver();
+        Bundle result = cr.call(Channels.CONTENT_URI, Channels.METHOD_RESTORE_PRESETS, null, args);
 
-            Uri uri = Uri.withAppendedPath(Channels.CONTENT_URI, String.valueOf(desc.index - 1));
-            cr.update(uri, cv, null, null);
+        if (result != null && !dryRun && snapshot != null && snapshot.stations != null) {
+            cr.bulkInsert(Stations.CONTENT_URI, snapshot.stations);
+        }
+        if (result != null && reader != null) {
+            PresetBackupReader.ImportReport report = reader.getReport();
+            result.putInt(EXTRA_REJECTED, report.rejected);
+            result.putStringArray(EXTRA_ERRORS, report.errors.toArray(new String[report.errors.size()]));
         }
 
-        return importResults.size();
+        return result;
     }
 
-    private static HashMap<Integer, PresetDescription> parseBackup(InputStream is)
-            throws XmlPullParserException, IOException {
-        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-        XmlPullParser xpp = factory.newPullParser();
+    /**
+     * Exports the presets of all banks, the station catalog and the
+     * settings. An incremental export only holds what changed since the
+     * previous export and extends the chain of exports started by the last
+     * full one. A full export is made instead if there is no chain yet, it
+     * got too long or it doesn't end at the previous export. Returns the
+     * written file, or null on failure.
+     */
+    public static File exportState(Context context, boolean incremental) {
+        final File backupDir = getBackupDirectory(context);
+        if (backupDir == null) {
+            return null;
+        }
+        backupDir.mkdirs();
 
-        InputStreamReader reader = new InputStreamReader(is);
-        xpp.setInput(reader);
+        ArrayList<File> chain = getStateChain(backupDir);
+        if (chain.isEmpty() || chain.size() > MAX_INCREMENTAL_EXPORTS) {
+            incremental = false;
+        }
 
-        int eventType = xpp.getEventType();
-        while (eventType != XmlPullParser.END_DOCUMENT) {
-            if (eventType == XmlPullParser.START_TAG) {
-                if (TextUtils.equals(xpp.getName(), ROOT_ELEMENT)) {
-                    return parseRootElement(xpp);
-                }
+        File file = writeState(context, backupDir,
+                incremental ? chain.get(chain.size() - 1) : null);
+        if (file == null && incremental) {
+            incremental = false;
+            file = writeState(context, backupDir, null);
+        }
+        if (file != null && !incremental) {
+            /* the new full export starts a new chain, the old one is obsolete */
+            for (File old : chain) {
+                old.delete();
             }
-            eventType = xpp.next();
         }
-
-        return null;
+        return file;
     }
 
-    private static HashMap<Integer, PresetDescription> parseRootElement(XmlPullParser xpp)
-            throws XmlPullParserException, IOException {
-        HashMap<Integer, PresetDescription> result = new HashMap<Integer, PresetDescription>();
-        int eventType = xpp.next();
+    /*
+     * Writes a full export if previous is null, otherwise an incremental one
+     * continuing it. Returns null if writing failed or the export doesn't
+     * continue previous.
+     */
+    private static File writeState(Context context, File backupDir, File previous) {
+        final boolean incremental = previous != null;
+        final int expectedBase = incremental ? getStateSequence(previous) : 0;
+        final File temp = new File(backupDir, STATE_PREFIX + "new" + SNAPSHOT_SUFFIX);
+        Bundle args = new Bundle();
+        args.putBoolean(State.EXTRA_INCREMENTAL, incremental);
+
+        Bundle result = context.getContentResolver().call(State.CONTENT_URI,
+                State.METHOD_EXPORT, temp.getName(), args);
+        if (result == null) {
+            return null;
+        }
 
-        while (!(eventType == XmlPullParser.END_TAG && TextUtils.equals(xpp.getName(), ROOT_ELEMENT))) {
-            if (eventType == XmlPullParser.START_TAG) {
-                String element = xpp.getName();
-                if (TextUtils.equals(element, PRESETS_ELEMENT)) {
-                    parsePresets(xpp, result);
-                }
-            }
-            eventType = xpp.next();
+        final int base = result.getInt(State.EXTRA_BASE_SEQUENCE);
+        final int sequence = result.getInt(State.EXTRA_SEQUENCE);
+        if (incremental && base != expectedBase) {
+            Log.w(TAG, "State exports after " + expectedBase + " are missing, need a full export");
+            temp.delete();
+            return null;
+        }
+        if (incremental && base == sequence) {
+            /* nothing changed since the previous export */
+            temp.delete();
+            return previous;
         }
 
-        return result;
+        String name = STATE_PREFIX + (base > 0 ? base + "-" : "") + sequence + SNAPSHOT_SUFFIX;
+        File file = new File(backupDir, name);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return null;
+        }
+        return file;
     }
 
-    private static void parsePresets(XmlPullParser xpp, HashMap<Integer, PresetDescription> results)
-            throws XmlPullParserException, IOException {
-        int eventType = xpp.next();
-
-        while (!(eventType == XmlPullParser.END_TAG && TextUtils.equals(xpp.getName(), PRESETS_ELEMENT))) {
-            if (eventType == XmlPullParser.START_TAG) {
-                String element = xpp.getName();
-                if (TextUtils.equals(element, PRESET_ELEMENT)) {
-                    PresetDescription desc = parsePreset(xpp);
-                    if (desc != null && desc.isValid()) {
-                        results.put(desc.index, desc);
-                    }
-                }
+    /**
+     * Imports the newest full state export and all incremental exports
+     * chained to it. Returns the number of applied exports, or -1 if there
+     * is nothing to import or applying the full export failed.
+     */
+    public static int importState(Context context) {
+        final File backupDir = getBackupDirectory(context);
+        if (backupDir == null) {
+            return -1;
+        }
+
+        ContentResolver cr = context.getContentResolver();
+        int applied = 0;
+
+        for (File file : getStateChain(backupDir)) {
+            Bundle result = cr.call(State.CONTENT_URI, State.METHOD_IMPORT, file.getName(), null);
+            if (result == null) {
+                Log.w(TAG, "Could not import state from " + file);
+                break;
             }
-            eventType = xpp.next();
+            applied++;
         }
-    }
 
-    private static PresetDescription parsePreset(XmlPullParser xpp)
-            throws XmlPullParserException, IOException {
-        PresetDescription desc = new PresetDescription();
-        String index = xpp.getAttributeValue(null, INDEX_ATTRIBUTE);
+        return applied > 0 ? applied : -1;
+    }
 
-        try {
-            desc.index = Integer.valueOf(index);
-        } catch (NullPointerException e) {
-            skipToEndTag(xpp, PRESET_ELEMENT);
-            Log.w(TAG, "Preset description is missing the index attribute");
-            return null;
-        } catch (NumberFormatException e) {
-            skipToEndTag(xpp, PRESET_ELEMENT);
-            Log.w(TAG, "Preset description index '" + index + "' is not a valid number");
-            return null;
+    /*
+     * Returns the newest full state export followed by the incremental
+     * exports continuing it, in the order they need to be applied. State
+     * files are named state-<sequence>.fms for full exports and
+     * state-<base>-<sequence>.fms for incremental ones.
+     */
+    private static ArrayList<File> getStateChain(File backupDir) {
+        ArrayList<File> chain = new ArrayList<File>();
+        File[] files = backupDir.listFiles();
+        if (files == null) {
+            return chain;
         }
 
-        int eventType = xpp.next();
+        File full = null;
+        int sequence = -1;
+        for (File file : files) {
+            if (getStateBase(file) == 0 && getStateSequence(file) > sequence) {
+                full = file;
+                sequence = getStateSequence(file);
+            }
+        }
+        if (full == null) {
+            return chain;
+        }
 
-        while (!(eventType == XmlPullParser.END_TAG && TextUtils.equals(xpp.getName(), PRESET_ELEMENT))) {
-            if (eventType == XmlPullParser.START_TAG) {
-                String element = xpp.getName();
-                if (TextUtils.equals(element, FREQUENCY_ELEMENT)) {
-                    String value = getText(xpp);
-                    try {
-                        desc.frequency = Integer.valueOf(value);
-                    } catch (NumberFormatException e) {
-                    }
-                } else if (TextUtils.equals(element, NAME_ELEMENT)) {
-                    desc.name = getText(xpp);
+        chain.add(full);
+        for (boolean found = true; found; ) {
+            found = false;
+            for (File file : files) {
+                if (getStateBase(file) == sequence && getStateSequence(file) > sequence) {
+                    chain.add(file);
+                    sequence = getStateSequence(file);
+                    found = true;
+                    break;
                 }
             }
-            eventType = xpp.next();
         }
+        return chain;
+    }
+
+    /* base sequence of a state file, 0 for full exports or -1 if it is no state file */
+    private static int getStateBase(File file) {
+        String[] parts = parseStateName(file);
+        if (parts == null) {
+            return -1;
+        }
+        return parts.length == 1 ? 0 : parseSequence(parts[0]);
+    }
 
-        return desc;
+    private static int getStateSequence(File file) {
+        String[] parts = parseStateName(file);
+        return parts != null ? parseSequence(parts[parts.length - 1]) : -1;
     }
 
-    private static void skipToEndTag(XmlPullParser xpp, String tag)
-            throws XmlPullParserException, IOException {
-        int eventType = xpp.next();
-        while (!(eventType == XmlPullParser.END_TAG && TextUtils.equals(xpp.getName(), tag))) {
-            eventType = xpp.next();
+    private static String[] parseStateName(File file) {
+        final String name = file.getName();
+        if (!name.startsWith(STATE_PREFIX) || !name.endsWith(SNAPSHOT_SUFFIX)) {
+            return null;
         }
+        String[] parts = name.substring(STATE_PREFIX.length(),
+                name.length() - SNAPSHOT_SUFFIX.length()).split("-");
+        return parts.length <= 2 ? parts : null;
     }
 
-    private static String getText(XmlPullParser xpp)
-            throws XmlPullParserException, IOException {
-        int eventType = xpp.next();
-        if (eventType != XmlPullParser.TEXT) {
-            return "";
+    private static int parseSequence(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
         }
-        return xpp.getText();
     }
 }
@@ -0,0 +1,278 @@
+package com.motorola.fmradio;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.motorola.fmradio.FMDataProvider.Channels;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Streaming reader for XML preset backups. Memory use is bounded: the file
+ * size, element count, nesting depth and name length are limited, and
+ * accepted presets go into fixed arrays with one slot per preset number.
+ * Invalid entries are skipped and reported instead of failing the import.
+ */
+public class PresetBackupReader {
+    private static final String TAG = "PresetBackupReader";
+
+    /* a full bank takes roughly 150 kB, anything much larger is not a preset backup */
+    private static final long MAX_FILE_SIZE = 1024 * 1024;
+    private static final int MAX_ELEMENTS = Channels.MAX_PRESETS * 8;
+    private static final int MAX_DEPTH = 8;
+    private static final int MAX_NAME_LENGTH = 64;
+    private static final int MAX_REPORTED_ERRORS = 20;
+    /* progress and cancellation are checked once per batch of entries */
+    private static final int BATCH_SIZE = 32;
+
+    public static class ImportReport {
+        public int accepted;
+        public int rejected;
+        public final ArrayList<String> errors = new ArrayList<String>();
+
+        void reject(int line, String message) {
+            rejected++;
+            Log.w(TAG, "Rejecting preset at line " + line + ": " + message);
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(line + ": " + message);
+            }
+        }
+    }
+
+    private final PresetBackupHelper.ProgressListener mListener;
+    private final ImportReport mReport = new ImportReport();
+
+    private XmlPullParser mParser;
+    private FileInputStream mInput;
+    private long mFileSize;
+    private int mElements;
+
+    /* accepted presets, indexed by preset number */
+    private final int[] mFrequencies = new int[Channels.MAX_PRESETS];
+    private final String[] mNames = new String[Channels.MAX_PRESETS];
+
+    /* the entry currently being parsed */
+    private int mEntryLine;
+    private int mEntryIndex;
+    private int mEntryFrequency;
+    private String mEntryName;
+    private String mEntryError;
+
+    public PresetBackupReader(PresetBackupHelper.ProgressListener listener) {
+        mListener = listener;
+    }
+
+    public ImportReport getReport() {
+        return mReport;
+    }
+
+    /**
+     * Parses the given backup. Returns null if the file can't be read, is
+     * not a preset backup, exceeds the limits or the import was canceled.
+     */
+    public PresetSnapshot read(File source) {
+        mFileSize = source.length();
+        if (mFileSize > MAX_FILE_SIZE) {
+            Log.w(TAG, "Backup " + source + " is too large (" + mFileSize + " bytes)");
+            return null;
+        }
+
+        try {
+            mInput = new FileInputStream(source);
+            mParser = XmlPullParserFactory.newInstance().newPullParser();
+            mParser.setInput(new BufferedInputStream(mInput), "UTF-8");
+
+            if (!parseDocument()) {
+                return null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read from backup file", e);
+            return null;
+        } catch (XmlPullParserException e) {
+            Log.w(TAG, "Invalid XML in backup file", e);
+            return null;
+        } finally {
+            if (mInput != null) {
+                try {
+                    mInput.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        return buildSnapshot();
+    }
+
+    private boolean parseDocument() throws XmlPullParserException, IOException {
+        int eventType = mParser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG
+                    && TextUtils.equals(mParser.getName(), PresetBackupHelper.ROOT_ELEMENT)) {
+                return parseElement(PresetBackupHelper.ROOT_ELEMENT);
+            }
+            eventType = next();
+        }
+        return false;
+    }
+
+    /* returns false if the import was canceled */
+    private boolean parseElement(String tag) throws XmlPullParserException, IOException {
+        int eventType = next();
+
+        while (!(eventType == XmlPullParser.END_TAG && TextUtils.equals(mParser.getName(), tag))) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of document in " + tag);
+            }
+            if (eventType == XmlPullParser.START_TAG) {
+                final String element = mParser.getName();
+                if (TextUtils.equals(tag, PresetBackupHelper.ROOT_ELEMENT)
+                        && TextUtils.equals(element, PresetBackupHelper.PRESETS_ELEMENT)) {
+                    if (!parseElement(element)) {
+                        return false;
+                    }
+                } else if (TextUtils.equals(tag, PresetBackupHelper.PRESETS_ELEMENT)
+                        && TextUtils.equals(element, PresetBackupHelper.PRESET_ELEMENT)) {
+                    parsePreset();
+                    if (!onEntryDone()) {
+                        return false;
+                    }
+                }
+            }
+            eventType = next();
+        }
+
+        return true;
+    }
+
+    private void parsePreset() throws XmlPullParserException, IOException {
+        mEntryLine = mParser.getLineNumber();
+        mEntryIndex = 0;
+        mEntryFrequency = 0;
+        mEntryName = null;
+        mEntryError = null;
+
+        String index = mParser.getAttributeValue(null, PresetBackupHelper.INDEX_ATTRIBUTE);
+        if (index == null) {
+            mEntryError = "missing index";
+        } else {
+            mEntryIndex = parseNumber(index, "index");
+        }
+
+        int eventType = next();
+        while (!(eventType == XmlPullParser.END_TAG
+                && TextUtils.equals(mParser.getName(), PresetBackupHelper.PRESET_ELEMENT))) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of document in preset");
+            }
+            if (eventType == XmlPullParser.START_TAG) {
+                final String element = mParser.getName();
+                if (TextUtils.equals(element, PresetBackupHelper.FREQUENCY_ELEMENT)) {
+                    mEntryFrequency = parseNumber(getText(), "frequency");
+                } else if (TextUtils.equals(element, PresetBackupHelper.NAME_ELEMENT)) {
+                    mEntryName = getText();
+                }
+            }
+            eventType = next();
+        }
+
+        if (mEntryError != null) {
+            return;
+        }
+        if (mEntryIndex <= 0 || mEntryIndex > Channels.MAX_PRESETS) {
+            mEntryError = "index " + mEntryIndex + " out of range";
+        } else if (mEntryFrequency < BandPlan.LOWEST_FREQUENCY || mEntryFrequency > BandPlan.HIGHEST_FREQUENCY) {
+            mEntryError = "frequency " + mEntryFrequency + " out of range";
+        } else if (mEntryName != null && mEntryName.length() > MAX_NAME_LENGTH) {
+            mEntryError = "name longer than " + MAX_NAME_LENGTH + " characters";
+        } else if (mFrequencies[mEntryIndex - 1] != 0) {
+            mEntryError = "duplicate index " + mEntryIndex;
+        }
+    }
+
+    /* returns false if the import was canceled */
+    private boolean onEntryDone() {
+        if (mEntryError != null) {
+            mReport.reject(mEntryLine, mEntryError);
+        } else {
+            mFrequencies[mEntryIndex - 1] = mEntryFrequency;
+            mNames[mEntryIndex - 1] = mEntryName;
+            mReport.accepted++;
+        }
+
+        final int entries = mReport.accepted + mReport.rejected;
+        if (mListener != null && entries % BATCH_SIZE == 0) {
+            if (mListener.isCanceled()) {
+                return false;
+            }
+            reportProgress();
+        }
+        return true;
+    }
+
+    private void reportProgress() {
+        try {
+            long position = mInput.getChannel().position();
+            mListener.onProgress((int) (position / 1024), (int) (mFileSize / 1024));
+        } catch (IOException e) {
+            /* progress is best effort */
+        }
+    }
+
+    private int next() throws XmlPullParserException, IOException {
+        int eventType = mParser.next();
+        if (eventType == XmlPullParser.START_TAG) {
+            if (++mElements > MAX_ELEMENTS) {
+                throw new XmlPullParserException("Too many elements");
+            }
+            if (mParser.getDepth() > MAX_DEPTH) {
+                throw new XmlPullParserException("Elements nested too deeply");
+            }
+        }
+        return eventType;
+    }
+
+    private String getText() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType != XmlPullParser.TEXT) {
+            return "";
+        }
+        return mParser.getText();
+    }
+
+    private int parseNumber(String value, String what) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            if (mEntryError == null) {
+                mEntryError = what + " '" + value + "' is not a valid number";
+            }
+            return 0;
+        }
+    }
+
+    private PresetSnapshot buildSnapshot() {
+        final int count = mReport.accepted;
+        int[] ids = new int[count];
+        int[] frequencies = new int[count];
+        String[] names = new String[count];
+
+        for (int preset = 0, i = 0; preset < mFrequencies.length && i < count; preset++) {
+            if (mFrequencies[preset] != 0) {
+                ids[i] = preset;
+                frequencies[i] = mFrequencies[preset];
+                names[i] = mNames[preset];
+                i++;
+            }
+        }
+
+        return PresetSnapshot.fromArrays(ids, frequencies, names);
+    }
+}
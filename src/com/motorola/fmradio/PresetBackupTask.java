@@ -0,0 +1,148 @@
+package com.motorola.fmradio;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.widget.Toast;
+
+import java.io.File;
+
+/**
+ * Runs a preset backup, restore or restore preview, or a state export or
+ * import off the UI thread.
+ * Progress goes to the attached callbacks (if any), the result of a backup
+ * or restore is reported with a single toast so it is shown even if the
+ * activity was closed in the meantime.
+ */
+public class PresetBackupTask extends AsyncTask<File, Integer, Integer>
+        implements PresetBackupHelper.ProgressListener {
+    public static final int MODE_BACKUP = 0;
+    public static final int MODE_RESTORE = 1;
+    public static final int MODE_MERGE = 2;
+    public static final int MODE_PREVIEW = 3;
+    public static final int MODE_EXPORT_STATE = 4;
+    public static final int MODE_IMPORT_STATE = 5;
+
+    public interface Callbacks {
+        void onTaskProgress(int done, int total);
+        void onTaskFinished(PresetBackupTask task);
+    }
+
+    private final Context mContext;
+    private final int mMode;
+    private Callbacks mCallbacks;
+    private File mFile;
+    private Bundle mReplaceDiff;
+    private Bundle mMergeDiff;
+    private int mRejected;
+
+    public PresetBackupTask(Context context, int mode, Callbacks callbacks) {
+        mContext = context.getApplicationContext();
+        mMode = mode;
+        mCallbacks = callbacks;
+    }
+
+    /* may only be called from the UI thread */
+    public void setCallbacks(Callbacks callbacks) {
+        mCallbacks = callbacks;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /* results of MODE_PREVIEW, valid after the task finished */
+    public Bundle getReplaceDiff() {
+        return mReplaceDiff;
+    }
+
+    public Bundle getMergeDiff() {
+        return mMergeDiff;
+    }
+
+    @Override
+    protected Integer doInBackground(File... files) {
+        mFile = files[0];
+        switch (mMode) {
+            case MODE_BACKUP:
+                return PresetBackupHelper.backupPresets(mContext, mFile, this) ? 0 : -1;
+            case MODE_PREVIEW:
+                mReplaceDiff = PresetBackupHelper.previewRestore(mContext, mFile, false);
+                mMergeDiff = PresetBackupHelper.previewRestore(mContext, mFile, true);
+                return mReplaceDiff != null && mMergeDiff != null ? 0 : -1;
+            case MODE_EXPORT_STATE:
+                return PresetBackupHelper.exportState(mContext, true) != null ? 0 : -1;
+            case MODE_IMPORT_STATE:
+                return PresetBackupHelper.importState(mContext);
+        }
+        Bundle result = PresetBackupHelper.restorePresets(mContext, mFile, mMode == MODE_MERGE, this);
+        if (result == null) {
+            return -1;
+        }
+        mRejected = result.getInt(PresetBackupHelper.EXTRA_REJECTED);
+        return result.getInt(PresetBackupHelper.EXTRA_RESTORED);
+    }
+
+    @Override
+    public void onProgress(int done, int total) {
+        publishProgress(done, total);
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return isCancelled();
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (mCallbacks != null) {
+            mCallbacks.onTaskProgress(values[0], values[1]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Integer result) {
+        String message;
+
+        if (mMode == MODE_PREVIEW && result >= 0) {
+            /* the preview is shown by the activity, not as a toast */
+            message = null;
+        } else if (mMode == MODE_BACKUP) {
+            message = mContext.getString(result >= 0
+                    ? R.string.backup_presets_success_toast : R.string.backup_presets_failure_toast);
+        } else if (mMode == MODE_EXPORT_STATE) {
+            message = mContext.getString(result >= 0
+                    ? R.string.export_state_success_toast : R.string.export_state_failure_toast);
+        } else if (mMode == MODE_IMPORT_STATE) {
+            message = result >= 0
+                    ? mContext.getString(R.string.import_state_success_toast, result)
+                    : mContext.getString(R.string.import_state_failure_toast);
+        } else if (result >= 0 && mRejected > 0) {
+            message = mContext.getString(R.string.restore_presets_partial_toast, result, mRejected);
+        } else if (result >= 0) {
+            message = mContext.getString(R.string.restore_presets_success_toast, result);
+        } else {
+            message = mContext.getString(R.string.restore_presets_failure_toast);
+        }
+
+        finish(message);
+    }
+
+    @Override
+    protected void onCancelled() {
+        finish(mContext.getString(R.string.backup_restore_canceled_toast));
+    }
+
+    private void finish(String message) {
+        if (message != null) {
+            Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+        }
+        if (mCallbacks != null) {
+            mCallbacks.onTaskFinished(this);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.motorola.fmradio;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+import com.motorola.fmradio.FMDataProvider.Channels;
+
+/**
+ * Immutable copy of the preset table, kept in primitive arrays so it can be
+ * cached by the provider and shipped through a Bundle without a cursor.
+ * Presets are also indexed by the PI code of their station, so a station
+ * is found on whichever of its frequencies it is received.
+ */
+public class PresetSnapshot {
+    private static final String KEY_IDS = "ids";
+    private static final String KEY_FREQUENCIES = "frequencies";
+    private static final String KEY_NAMES = "names";
+    private static final String KEY_RDS_NAMES = "rds_names";
+    private static final String KEY_PIS = "pis";
+
+    private final int[] mIds;
+    private final int[] mFrequencies;
+    private final String[] mNames;
+    private final String[] mRdsNames;
+    private final int[] mPis;
+    /* PI code and frequency to the position of the lowest preset holding them */
+    private final SparseIntArray mPiIndex = new SparseIntArray();
+    private final SparseIntArray mFrequencyIndex;
+
+    private PresetSnapshot(int[] ids, int[] frequencies, String[] names, String[] rdsNames, int[] pis) {
+        mIds = ids;
+        mFrequencies = frequencies;
+        mNames = names;
+        mRdsNames = rdsNames;
+        mPis = pis != null ? pis : new int[ids.length];
+        mFrequencyIndex = new SparseIntArray(mFrequencies.length);
+        for (int i = mIds.length - 1; i >= 0; i--) {
+            if (mPis[i] != 0) {
+                mPiIndex.put(mPis[i], i);
+            }
+            if (mFrequencies[i] != 0) {
+                mFrequencyIndex.put(mFrequencies[i], i);
+            }
+        }
+    }
+
+    static PresetSnapshot fromCursor(Cursor cursor) {
+        int count = cursor != null ? cursor.getCount() : 0;
+        int[] ids = new int[count];
+        int[] frequencies = new int[count];
+        String[] names = new String[count];
+        String[] rdsNames = new String[count];
+        int[] pis = new int[count];
+
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getInt(FMUtil.CHANNEL_COLUMN_ID);
+            frequencies[i] = cursor.getInt(FMUtil.CHANNEL_COLUMN_FREQ);
+            names[i] = cursor.getString(FMUtil.CHANNEL_COLUMN_NAME);
+            rdsNames[i] = cursor.getString(FMUtil.CHANNEL_COLUMN_RDSNAME);
+            pis[i] = cursor.getInt(FMUtil.CHANNEL_COLUMN_PI);
+        }
+
+        return new PresetSnapshot(ids, frequencies, names, rdsNames, pis);
+    }
+
+    /* ids must be sorted in ascending order */
+    static PresetSnapshot fromArrays(int[] ids, int[] frequencies, String[] names) {
+        return new PresetSnapshot(ids, frequencies, names, new String[ids.length], null);
+    }
+
+    static PresetSnapshot fromArrays(int[] ids, int[] frequencies, String[] names, String[] rdsNames) {
+        return new PresetSnapshot(ids, frequencies, names, rdsNames, null);
+    }
+
+    /*
+     * Returns null if the bundle doesn't hold a valid snapshot: the ids and
+     * frequencies are required, the ids ascending and all arrays of the
+     * same length. Names and PI codes may be left out.
+     */
+    static PresetSnapshot fromBundle(Bundle bundle) {
+        if (bundle == null) {
+            return new PresetSnapshot(new int[0], new int[0], new String[0], new String[0], null);
+        }
+        final int[] ids = bundle.getIntArray(KEY_IDS);
+        final int[] frequencies = bundle.getIntArray(KEY_FREQUENCIES);
+        String[] names = bundle.getStringArray(KEY_NAMES);
+        String[] rdsNames = bundle.getStringArray(KEY_RDS_NAMES);
+        final int[] pis = bundle.getIntArray(KEY_PIS);
+
+        if (ids == null || frequencies == null || frequencies.length != ids.length
+                || (names != null && names.length != ids.length)
+                || (rdsNames != null && rdsNames.length != ids.length)
+                || (pis != null && pis.length != ids.length)) {
+            return null;
+        }
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] <= ids[i - 1]) {
+                return null;
+            }
+        }
+        if (names == null) {
+            names = new String[ids.length];
+        }
+        if (rdsNames == null) {
+            rdsNames = new String[ids.length];
+        }
+        return new PresetSnapshot(ids, frequencies, names, rdsNames, pis);
+    }
+
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putIntArray(KEY_IDS, mIds);
+        bundle.putIntArray(KEY_FREQUENCIES, mFrequencies);
+        bundle.putStringArray(KEY_NAMES, mNames);
+        bundle.putStringArray(KEY_RDS_NAMES, mRdsNames);
+        bundle.putIntArray(KEY_PIS, mPis);
+        return bundle;
+    }
+
+    public static PresetSnapshot query(Context context) {
+        Bundle result = context.getContentResolver().call(Channels.CONTENT_URI,
+                Channels.METHOD_GET_ALL_PRESETS, null, null);
+        PresetSnapshot snapshot = fromBundle(result);
+        return snapshot != null ? snapshot : fromBundle(null);
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    public int getId(int index) {
+        return mIds[index];
+    }
+
+    public int getFrequency(int index) {
+        return mFrequencies[index];
+    }
+
+    public String getName(int index) {
+        return mNames[index];
+    }
+
+    public String getRdsName(int index) {
+        return mRdsNames[index];
+    }
+
+    public int getPi(int index) {
+        return mPis[index];
+    }
+
+    /* returns the position of the lowest preset of the station, or -1 */
+    public int indexOfPi(int pi) {
+        return pi != 0 ? mPiIndex.get(pi, -1) : -1;
+    }
+
+    /* returns the position of the lowest preset on the frequency, or -1 */
+    public int indexOfFrequency(int frequency) {
+        return frequency != 0 ? mFrequencyIndex.get(frequency, -1) : -1;
+    }
+
+    /**
+     * Returns the position of the given preset number, relying on the
+     * snapshot being ordered by preset number.
+     */
+    public int indexOfPreset(int preset) {
+        int index = Arrays.binarySearch(mIds, preset);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Finds the closest non-empty preset after (or before) the given one,
+     * wrapping around the end of the list. Presets are sparse, so this is
+     * a search for the neighbouring preset number rather than an offset.
+     */
+    public int indexOfNextPreset(int preset, boolean searchUpward) {
+        final int count = mIds.length;
+        if (count == 0) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(mIds, preset);
+        if (searchUpward) {
+            index = index >= 0 ? index + 1 : -index - 1;
+            if (index >= count) {
+                index = 0;
+            }
+        } else {
+            index = index >= 0 ? index - 1 : -index - 2;
+            if (index < 0) {
+                index = count - 1;
+            }
+        }
+
+        return mIds[index] != preset ? index : -1;
+    }
+
+    /**
+     * Returns the lowest preset number not in use, or -1 if all presets
+     * below max are taken.
+     */
+    public int getFirstEmptyPreset(int max) {
+        int preset = 0;
+        for (int i = 0; i < mIds.length && mIds[i] == preset; i++) {
+            preset++;
+        }
+        return preset < max ? preset : -1;
+    }
+}
@@ -0,0 +1,80 @@
+package com.motorola.fmradio;
+
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+/**
+ * Inverted index from RDS program type to the stations heard broadcasting
+ * it, so a genre search needs no tuning once the index is filled. Program
+ * types are numbered as reported by the player service, RBDS types offset
+ * by 32. Each type keeps the set of its frequencies, the signal strength is
+ * kept per frequency, so a new measurement doesn't touch the sets. Must
+ * only be used from the thread owning the player service handler.
+ */
+public class PtyIndex {
+    public static final int PTY_COUNT = 64;
+
+    private final SparseBooleanArray[] mStations = new SparseBooleanArray[PTY_COUNT];
+    /* program type and latest signal strength by frequency */
+    private final SparseIntArray mTypes = new SparseIntArray();
+    private final SparseIntArray mRssi = new SparseIntArray();
+
+    /* stores the program type received on the frequency, 0 and unknown types are ignored */
+    public void putType(int frequency, int pty) {
+        if (pty <= 0 || pty >= PTY_COUNT) {
+            return;
+        }
+        final int old = mTypes.get(frequency, 0);
+        if (old == pty) {
+            return;
+        }
+        if (old > 0) {
+            /* another station took the frequency, or the station changed its format */
+            mStations[old].delete(frequency);
+        }
+        if (mStations[pty] == null) {
+            mStations[pty] = new SparseBooleanArray();
+        }
+        mStations[pty].put(frequency, true);
+        mTypes.put(frequency, pty);
+    }
+
+    public void putRssi(int frequency, int rssi) {
+        mRssi.put(frequency, rssi);
+    }
+
+    /**
+     * Returns the frequencies of the band plan known to carry the program
+     * type with at least the given signal strength, strongest first.
+     */
+    public int[] find(int pty, int minRssi, BandPlan plan) {
+        final SparseBooleanArray stations = pty > 0 && pty < PTY_COUNT ? mStations[pty] : null;
+        if (stations == null) {
+            return new int[0];
+        }
+
+        final int size = stations.size();
+        int[] frequencies = new int[size];
+        int[] strengths = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            final int frequency = stations.keyAt(i);
+            final int rssi = mRssi.get(frequency, 0);
+            if (rssi < minRssi || !plan.contains(frequency)) {
+                continue;
+            }
+            /* insertion sort, a type has a handful of stations at most */
+            int pos = count++;
+            for (; pos > 0 && strengths[pos - 1] < rssi; pos--) {
+                frequencies[pos] = frequencies[pos - 1];
+                strengths[pos] = strengths[pos - 1];
+            }
+            frequencies[pos] = frequency;
+            strengths[pos] = rssi;
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(frequencies, 0, result, 0, count);
+        return result;
+    }
+}
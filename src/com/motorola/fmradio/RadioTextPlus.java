@@ -0,0 +1,108 @@
+package com.motorola.fmradio;
+
+import android.text.TextUtils;
+
+/**
+ * Extracts the current song from RadioText using the RadioText Plus tags.
+ * The tuner reports the tags of an RT+ group as their field values in
+ * group order: item toggle, item running, then content type, start and
+ * length marker of both tags. As the tags point into the RadioText they
+ * are only parsed again when either of them changed. Must only be used
+ * from the thread owning the player service handler.
+ */
+public class RadioTextPlus {
+    private static final int CONTENT_ITEM_TITLE = 1;
+    private static final int CONTENT_ITEM_ARTIST = 4;
+
+    private static final int FIELD_COUNT = 8;
+
+    private final int[] mFields = new int[FIELD_COUNT];
+    private String mRadioText;
+    private String mTags;
+    private int mItemToggle = -1;
+    private String mArtist;
+    private String mTitle;
+
+    public void reset() {
+        mRadioText = null;
+        mTags = null;
+        mItemToggle = -1;
+        mArtist = null;
+        mTitle = null;
+    }
+
+    public String getArtist() {
+        return mArtist;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /* returns true if artist or title changed */
+    public boolean update(String radioText, String tags) {
+        if (TextUtils.equals(radioText, mRadioText) && TextUtils.equals(tags, mTags)) {
+            return false;
+        }
+        mRadioText = radioText;
+        mTags = tags;
+
+        final String oldArtist = mArtist;
+        final String oldTitle = mTitle;
+
+        if (radioText == null || !parseFields(tags)) {
+            /* nothing to go on, keep what was shown */
+            return false;
+        }
+        final int toggle = mFields[0];
+        final boolean running = mFields[1] != 0;
+        if (toggle != mItemToggle || !running) {
+            /* another item started, or the item is over */
+            mItemToggle = toggle;
+            mArtist = null;
+            mTitle = null;
+        }
+        if (running) {
+            applyTag(radioText, mFields[2], mFields[3], mFields[4]);
+            applyTag(radioText, mFields[5], mFields[6], mFields[7]);
+        }
+        return !TextUtils.equals(oldArtist, mArtist) || !TextUtils.equals(oldTitle, mTitle);
+    }
+
+    private void applyTag(String radioText, int type, int start, int lengthMarker) {
+        /* the marker holds the length minus one */
+        final int end = start + lengthMarker + 1;
+        if (end > radioText.length()) {
+            /* the text belonging to the tag wasn't received yet */
+            return;
+        }
+        final String value = radioText.substring(start, end).trim();
+        if (value.length() == 0) {
+            return;
+        }
+        if (type == CONTENT_ITEM_TITLE) {
+            mTitle = value;
+        } else if (type == CONTENT_ITEM_ARTIST) {
+            mArtist = value;
+        }
+    }
+
+    /* reads the numbers of the tag string into mFields, returns false if there are too few */
+    private boolean parseFields(String tags) {
+        if (tags == null) {
+            return false;
+        }
+        int count = 0;
+        int value = -1;
+        for (int i = 0; i <= tags.length() && count < FIELD_COUNT; i++) {
+            final int digit = i < tags.length() ? Character.digit(tags.charAt(i), 10) : -1;
+            if (digit >= 0) {
+                value = (value < 0 ? 0 : value * 10) + digit;
+            } else if (value >= 0) {
+                mFields[count++] = value;
+                value = -1;
+            }
+        }
+        return count == FIELD_COUNT;
+    }
+}
@@ -0,0 +1,65 @@
+package com.motorola.fmradio;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Last good RDS data of recently tuned frequencies, so a station's name
+ * can be shown right after tuning instead of after the seconds RDS takes
+ * to resync. Bounded, the least recently used frequency is dropped first.
+ * Must only be used from the thread owning the player service handler.
+ */
+public class RdsCache {
+    private static final int MAX_ENTRIES = 32;
+
+    public static final class Data {
+        /* 0 if not known */
+        public int pi;
+        public String stationName;
+        public String radioText;
+        public int pty;
+    }
+
+    private final LinkedHashMap<Integer, Data> mEntries =
+            new LinkedHashMap<Integer, Data>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Data> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /* returns the cached data of the frequency, or null */
+    public Data get(int frequency) {
+        return mEntries.get(frequency);
+    }
+
+    /*
+     * Stores live data received on the frequency. A PI code different from
+     * the cached one means another station, whose old data is dropped.
+     */
+    public void put(int frequency, int pi, String stationName, int pty) {
+        Data data = getOrCreate(frequency, pi);
+        if (pi != 0) {
+            data.pi = pi;
+        }
+        if (stationName != null && stationName.length() > 0) {
+            data.stationName = stationName;
+        }
+        data.pty = pty;
+    }
+
+    public void putRadioText(int frequency, String radioText) {
+        if (radioText != null && radioText.length() > 0) {
+            getOrCreate(frequency, 0).radioText = radioText;
+        }
+    }
+
+    private Data getOrCreate(int frequency, int pi) {
+        Data data = mEntries.get(frequency);
+        if (data == null || (pi != 0 && data.pi != 0 && data.pi != pi)) {
+            data = new Data();
+            mEntries.put(frequency, data);
+        }
+        return data;
+    }
+}
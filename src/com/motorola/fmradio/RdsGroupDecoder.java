@@ -0,0 +1,476 @@
+package com.motorola.fmradio;
+
+/**
+ * Decodes raw RDS groups, for backends that deliver the four 16 bit blocks
+ * instead of assembled strings, and for recorded group logs. Handles the
+ * basic tuning information (0A/0B: PS, AF, TA/TP), RadioText (2A/2B),
+ * clock time (4A), the programme type name (10A) and open data
+ * application registrations (3A). Decoding never allocates, strings are
+ * only built when they are read. Not thread safe.
+ */
+public class RdsGroupDecoder {
+    /* error flags per group, set for blocks that couldn't be corrected */
+    public static final int ERROR_A = 1;
+    public static final int ERROR_B = 2;
+    public static final int ERROR_C = 4;
+    public static final int ERROR_D = 8;
+
+    /* what a group changed, returned by decode() */
+    public static final int CHANGED_PI = 1;
+    public static final int CHANGED_PTY = 2;
+    public static final int CHANGED_FLAGS = 4;
+    public static final int CHANGED_PS = 8;
+    public static final int CHANGED_RT = 16;
+    public static final int CHANGED_AF = 32;
+    public static final int CHANGED_CT = 64;
+    public static final int CHANGED_PTYN = 128;
+    public static final int CHANGED_ODA = 256;
+
+    /* ints per group in a recorded log: blocks A to D and the error flags */
+    public static final int GROUP_SIZE = 5;
+
+    public static final int MAX_AF = 25;
+    public static final int MAX_ODA = 8;
+
+    private static final int PS_LENGTH = 8;
+    private static final int RT_LENGTH = 64;
+    private static final int PTYN_LENGTH = 8;
+
+    private static final int GROUP_0 = 0;
+    private static final int GROUP_2 = 2;
+    private static final int GROUP_3 = 3;
+    private static final int GROUP_4 = 4;
+    private static final int GROUP_10 = 10;
+
+    /* AF codes, frequencies are 87.5 MHz + code * 100 kHz */
+    private static final int AF_FIRST = 1;
+    private static final int AF_LAST = 204;
+    private static final int AF_BASE = 87500;
+    private static final int AF_STEP = 100;
+
+    private static final char END_OF_TEXT = '\r';
+
+    /* EBU Latin characters 0x80 - 0xff, IEC 62106 annex E */
+    private static final char[] CHARSET_HIGH = (
+            "\u00e1\u00e0\u00e9\u00e8\u00ed\u00ec\u00f3\u00f2" +
+            "\u00fa\u00f9\u00d1\u00c7\u015e\u00df\u00a1\u0132" +
+            "\u00e2\u00e4\u00ea\u00eb\u00ee\u00ef\u00f4\u00f6" +
+            "\u00fb\u00fc\u00f1\u00e7\u015f\u011f\u0131\u0133" +
+            "\u00aa\u03b1\u00a9\u2030\u011e\u011b\u0148\u0151" +
+            "\u03c0\u20ac\u00a3$\u2190\u2191\u2192\u2193" +
+            "\u00ba\u00b9\u00b2\u00b3\u00b1\u0130\u0144\u0171" +
+            "\u00b5\u00bf\u00f7\u00b0\u00bc\u00bd\u00be\u00a7" +
+            "\u00c1\u00c0\u00c9\u00c8\u00cd\u00cc\u00d3\u00d2" +
+            "\u00da\u00d9\u0158\u010c\u0160\u017d\u00d0\u013f" +
+            "\u00c2\u00c4\u00ca\u00cb\u00ce\u00cf\u00d4\u00d6" +
+            "\u00db\u00dc\u0159\u010d\u0161\u017e\u0111\u0140" +
+            "\u00c3\u00c5\u00c6\u0152\u0177\u00dd\u00d5\u00d8" +
+            "\u00de\u014a\u0154\u0106\u015a\u0179\u0166\u00f0" +
+            "\u00e3\u00e5\u00e6\u0153\u0175\u00fd\u00f5\u00f8" +
+            "\u00fe\u014b\u0155\u0107\u015b\u017a\u0167 ")
+            .toCharArray();
+
+    private int mPi;
+    private int mPty;
+    private boolean mTrafficProgram;
+    private boolean mTrafficAnnouncement;
+    private boolean mMusic;
+
+    /* characters being received and the last complete string */
+    private final char[] mPsBuffer = new char[PS_LENGTH];
+    private final char[] mPs = new char[PS_LENGTH];
+    private int mPsSegments;
+    private boolean mPsValid;
+
+    private final char[] mRtBuffer = new char[RT_LENGTH];
+    private final char[] mRt = new char[RT_LENGTH];
+    private int mRtSegments;
+    private int mRtFlag = -1;
+    private int mRtLength;
+
+    private final char[] mPtynBuffer = new char[PTYN_LENGTH];
+    private final char[] mPtyn = new char[PTYN_LENGTH];
+    private int mPtynSegments;
+    private int mPtynFlag = -1;
+    private boolean mPtynValid;
+
+    /* alternative frequencies in kHz, in the order they were first received */
+    private final int[] mAf = new int[MAX_AF];
+    private int mAfCount;
+
+    /* clock time: modified julian day, UTC hour and minute, local offset in half hours */
+    private int mMjd = -1;
+    private int mHour;
+    private int mMinute;
+    private int mLocalOffset;
+
+    /* open data applications: group type (type << 1 | version B) and application id */
+    private final int[] mOdaGroups = new int[MAX_ODA];
+    private final int[] mOdaAids = new int[MAX_ODA];
+    private int mOdaCount;
+
+    /* forgets everything, e.g. after tuning */
+    public void reset() {
+        mPi = 0;
+        mPty = 0;
+        mTrafficProgram = false;
+        mTrafficAnnouncement = false;
+        mMusic = false;
+        mPsSegments = 0;
+        mPsValid = false;
+        mRtSegments = 0;
+        mRtFlag = -1;
+        mRtLength = 0;
+        mPtynSegments = 0;
+        mPtynFlag = -1;
+        mPtynValid = false;
+        mAfCount = 0;
+        mMjd = -1;
+        mOdaCount = 0;
+    }
+
+    /**
+     * Decodes a group given as its four blocks and the error flags of
+     * them. Returns the CHANGED_* flags of what the group changed.
+     */
+    public int decode(int blockA, int blockB, int blockC, int blockD, int errors) {
+        if ((errors & ERROR_B) != 0) {
+            /* the group type is unknown */
+            return 0;
+        }
+        final int type = (blockB >> 12) & 0xf;
+        final boolean versionB = (blockB & 0x800) != 0;
+        int changed = 0;
+
+        /* version B groups repeat the PI code in block C */
+        int pi = -1;
+        if ((errors & ERROR_A) == 0) {
+            pi = blockA & 0xffff;
+        } else if (versionB && (errors & ERROR_C) == 0) {
+            pi = blockC & 0xffff;
+        }
+        if (pi >= 0 && pi != mPi) {
+            if (mPi != 0) {
+                /* another station, nothing received so far belongs to it */
+                reset();
+            }
+            mPi = pi;
+            changed |= CHANGED_PI;
+        }
+
+        final boolean tp = (blockB & 0x400) != 0;
+        final int pty = (blockB >> 5) & 0x1f;
+        if (tp != mTrafficProgram) {
+            mTrafficProgram = tp;
+            changed |= CHANGED_FLAGS;
+        }
+        if (pty != mPty) {
+            mPty = pty;
+            changed |= CHANGED_PTY;
+        }
+
+        switch (type) {
+            case GROUP_0:
+                changed |= decodeBasicTuning(blockB, blockC, blockD, errors, versionB);
+                break;
+            case GROUP_2:
+                changed |= decodeRadioText(blockB, blockC, blockD, errors, versionB);
+                break;
+            case GROUP_3:
+                if (!versionB) {
+                    changed |= decodeOda(blockB, blockD, errors);
+                }
+                break;
+            case GROUP_4:
+                if (!versionB) {
+                    changed |= decodeClockTime(blockB, blockC, blockD, errors);
+                }
+                break;
+            case GROUP_10:
+                if (!versionB) {
+                    changed |= decodeProgramTypeName(blockB, blockC, blockD, errors);
+                }
+                break;
+        }
+        return changed;
+    }
+
+    /* decodes count groups of a recorded log, GROUP_SIZE ints each; returns the combined changes */
+    public int decode(int[] groups, int offset, int count) {
+        int changed = 0;
+        final int end = offset + count * GROUP_SIZE;
+        for (int i = offset; i < end; i += GROUP_SIZE) {
+            changed |= decode(groups[i], groups[i + 1], groups[i + 2], groups[i + 3], groups[i + 4]);
+        }
+        return changed;
+    }
+
+    private int decodeBasicTuning(int blockB, int blockC, int blockD, int errors, boolean versionB) {
+        int changed = 0;
+        final boolean ta = (blockB & 0x10) != 0;
+        final boolean music = (blockB & 0x8) != 0;
+        if (ta != mTrafficAnnouncement || music != mMusic) {
+            mTrafficAnnouncement = ta;
+            mMusic = music;
+            changed |= CHANGED_FLAGS;
+        }
+
+        if (!versionB && (errors & ERROR_C) == 0) {
+            changed |= addAf((blockC >> 8) & 0xff);
+            changed |= addAf(blockC & 0xff);
+        }
+
+        if ((errors & ERROR_D) == 0) {
+            final int segment = blockB & 0x3;
+            mPsBuffer[segment * 2] = toChar(blockD >> 8);
+            mPsBuffer[segment * 2 + 1] = toChar(blockD);
+            mPsSegments |= 1 << segment;
+            if (mPsSegments == 0xf) {
+                mPsSegments = 0;
+                if (!mPsValid || !equals(mPs, mPsBuffer, PS_LENGTH)) {
+                    System.arraycopy(mPsBuffer, 0, mPs, 0, PS_LENGTH);
+                    mPsValid = true;
+                    changed |= CHANGED_PS;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private int addAf(int code) {
+        if (code < AF_FIRST || code > AF_LAST || mAfCount >= MAX_AF) {
+            /* filler, count and LF/MF codes carry no frequency */
+            return 0;
+        }
+        final int frequency = AF_BASE + code * AF_STEP;
+        for (int i = 0; i < mAfCount; i++) {
+            if (mAf[i] == frequency) {
+                return 0;
+            }
+        }
+        mAf[mAfCount++] = frequency;
+        return CHANGED_AF;
+    }
+
+    private int decodeRadioText(int blockB, int blockC, int blockD, int errors, boolean versionB) {
+        final int flag = (blockB >> 4) & 1;
+        if (flag != mRtFlag) {
+            /* the A/B flag toggles when a new text starts */
+            mRtFlag = flag;
+            mRtSegments = 0;
+        }
+
+        final int segment = blockB & 0xf;
+        final int chars = versionB ? 2 : 4;
+        final int maxLength = versionB ? RT_LENGTH / 2 : RT_LENGTH;
+        int pos = segment * chars;
+        if (versionB) {
+            if ((errors & ERROR_D) != 0) {
+                return 0;
+            }
+            mRtBuffer[pos++] = toChar(blockD >> 8);
+            mRtBuffer[pos] = toChar(blockD);
+        } else {
+            if ((errors & (ERROR_C | ERROR_D)) != 0) {
+                return 0;
+            }
+            mRtBuffer[pos++] = toChar(blockC >> 8);
+            mRtBuffer[pos++] = toChar(blockC);
+            mRtBuffer[pos++] = toChar(blockD >> 8);
+            mRtBuffer[pos] = toChar(blockD);
+        }
+        mRtSegments |= 1 << segment;
+
+        /* the text ends at a carriage return or with the last segment */
+        int length = maxLength;
+        for (int i = 0; i < maxLength; i++) {
+            if ((mRtSegments & (1 << (i / chars))) != 0 && mRtBuffer[i] == END_OF_TEXT) {
+                length = i;
+                break;
+            }
+        }
+        final int required = (1 << (Math.min(length, maxLength - 1) / chars + 1)) - 1;
+        if ((mRtSegments & required) != required) {
+            return 0;
+        }
+
+        while (length > 0 && mRtBuffer[length - 1] == ' ') {
+            length--;
+        }
+        if (length == mRtLength && equals(mRt, mRtBuffer, length)) {
+            return 0;
+        }
+        System.arraycopy(mRtBuffer, 0, mRt, 0, length);
+        mRtLength = length;
+        return CHANGED_RT;
+    }
+
+    private int decodeOda(int blockB, int blockD, int errors) {
+        if ((errors & ERROR_D) != 0) {
+            return 0;
+        }
+        final int group = blockB & 0x1f;
+        final int aid = blockD & 0xffff;
+        for (int i = 0; i < mOdaCount; i++) {
+            if (mOdaGroups[i] == group) {
+                if (mOdaAids[i] == aid) {
+                    return 0;
+                }
+                mOdaAids[i] = aid;
+                return CHANGED_ODA;
+            }
+        }
+        if (mOdaCount >= MAX_ODA) {
+            return 0;
+        }
+        mOdaGroups[mOdaCount] = group;
+        mOdaAids[mOdaCount] = aid;
+        mOdaCount++;
+        return CHANGED_ODA;
+    }
+
+    private int decodeClockTime(int blockB, int blockC, int blockD, int errors) {
+        if ((errors & (ERROR_C | ERROR_D)) != 0) {
+            return 0;
+        }
+        final int mjd = ((blockB & 0x3) << 15) | ((blockC >> 1) & 0x7fff);
+        final int hour = ((blockC & 1) << 4) | ((blockD >> 12) & 0xf);
+        final int minute = (blockD >> 6) & 0x3f;
+        final int offset = (blockD & 0x20) != 0 ? -(blockD & 0x1f) : blockD & 0x1f;
+        if (hour > 23 || minute > 59) {
+            return 0;
+        }
+        mMjd = mjd;
+        mHour = hour;
+        mMinute = minute;
+        mLocalOffset = offset;
+        return CHANGED_CT;
+    }
+
+    private int decodeProgramTypeName(int blockB, int blockC, int blockD, int errors) {
+        if ((errors & (ERROR_C | ERROR_D)) != 0) {
+            return 0;
+        }
+        final int flag = (blockB >> 4) & 1;
+        if (flag != mPtynFlag) {
+            mPtynFlag = flag;
+            mPtynSegments = 0;
+        }
+        final int segment = blockB & 1;
+        int pos = segment * 4;
+        mPtynBuffer[pos++] = toChar(blockC >> 8);
+        mPtynBuffer[pos++] = toChar(blockC);
+        mPtynBuffer[pos++] = toChar(blockD >> 8);
+        mPtynBuffer[pos] = toChar(blockD);
+        mPtynSegments |= 1 << segment;
+        if (mPtynSegments != 0x3) {
+            return 0;
+        }
+        mPtynSegments = 0;
+        if (mPtynValid && equals(mPtyn, mPtynBuffer, PTYN_LENGTH)) {
+            return 0;
+        }
+        System.arraycopy(mPtynBuffer, 0, mPtyn, 0, PTYN_LENGTH);
+        mPtynValid = true;
+        return CHANGED_PTYN;
+    }
+
+    private static char toChar(int code) {
+        code &= 0xff;
+        if (code >= 0x80) {
+            return CHARSET_HIGH[code - 0x80];
+        }
+        if (code == END_OF_TEXT) {
+            return END_OF_TEXT;
+        }
+        if (code < 0x20 || code == 0x7f) {
+            return ' ';
+        }
+        return (char) code;
+    }
+
+    private static boolean equals(char[] a, char[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getPi() {
+        return mPi;
+    }
+
+    public int getPty() {
+        return mPty;
+    }
+
+    public boolean isTrafficProgram() {
+        return mTrafficProgram;
+    }
+
+    public boolean isTrafficAnnouncement() {
+        return mTrafficAnnouncement;
+    }
+
+    public boolean isMusic() {
+        return mMusic;
+    }
+
+    /* null until all segments were received */
+    public String getStationName() {
+        return mPsValid ? new String(mPs, 0, PS_LENGTH) : null;
+    }
+
+    /* null until a complete text was received */
+    public String getRadioText() {
+        return mRtLength > 0 ? new String(mRt, 0, mRtLength) : null;
+    }
+
+    public String getProgramTypeName() {
+        return mPtynValid ? new String(mPtyn, 0, PTYN_LENGTH).trim() : null;
+    }
+
+    public int getAfCount() {
+        return mAfCount;
+    }
+
+    /* alternative frequency in kHz */
+    public int getAf(int index) {
+        return mAf[index];
+    }
+
+    public boolean hasClockTime() {
+        return mMjd >= 0;
+    }
+
+    /* the date of the last clock time as modified julian day */
+    public int getModifiedJulianDay() {
+        return mMjd;
+    }
+
+    /* UTC hour of the last clock time */
+    public int getHour() {
+        return mHour;
+    }
+
+    public int getMinute() {
+        return mMinute;
+    }
+
+    /* offset of the local time from UTC in half hours */
+    public int getLocalOffset() {
+        return mLocalOffset;
+    }
+
+    /* returns the application id carried in the group (type << 1 | version B), 0 if none */
+    public int getOdaAid(int group) {
+        for (int i = 0; i < mOdaCount; i++) {
+            if (mOdaGroups[i] == group) {
+                return mOdaAids[i];
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,94 @@
+package com.motorola.fmradio;
+
+/**
+ * Filters RDS texts received with bit errors. Every character position
+ * holds a majority vote over the received variants, a text is only taken
+ * once its length and all of its characters were confirmed often enough.
+ * Confirmed texts are interned, so repeated publications share a single
+ * instance. Must only be used from the thread owning the player service
+ * handler.
+ */
+public class RdsTextStabilizer {
+    private final int mConfirmations;
+    private final char[] mCandidates;
+    private final int[] mCounts;
+    private int mLengthCandidate = -1;
+    private int mLengthCount;
+
+    private String mText;
+    private boolean mPending;
+
+    public RdsTextStabilizer(int maxLength, int confirmations) {
+        mConfirmations = confirmations;
+        mCandidates = new char[maxLength];
+        mCounts = new int[maxLength];
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mLengthCandidate = -1;
+        mLengthCount = 0;
+        mText = null;
+        mPending = false;
+    }
+
+    /* the last confirmed text, null if none was confirmed yet */
+    public String getText() {
+        return mText;
+    }
+
+    /* true if texts were received that are neither confirmed nor rejected yet */
+    public boolean isPending() {
+        return mPending;
+    }
+
+    /* adds a received text, returns true if the confirmed text changed */
+    public boolean add(String text) {
+        if (text == null || text.length() == 0) {
+            return false;
+        }
+        final int length = Math.min(text.length(), mCandidates.length);
+        if (length == mLengthCandidate) {
+            mLengthCount = Math.min(mLengthCount + 1, mConfirmations);
+        } else if (--mLengthCount <= 0) {
+            mLengthCandidate = length;
+            mLengthCount = 1;
+        }
+
+        boolean confirmed = mLengthCount >= mConfirmations;
+        for (int i = 0; i < mCandidates.length; i++) {
+            /* positions past the end vote for padding, so a shorter text can win */
+            final char c = i < length ? text.charAt(i) : ' ';
+            if (mCounts[i] > 0 && mCandidates[i] == c) {
+                mCounts[i] = Math.min(mCounts[i] + 1, mConfirmations);
+            } else if (--mCounts[i] <= 0) {
+                mCandidates[i] = c;
+                mCounts[i] = 1;
+            }
+            if (i < mLengthCandidate && mCounts[i] < mConfirmations) {
+                confirmed = false;
+            }
+        }
+
+        mPending = !confirmed;
+        if (!confirmed || matches(mText, mLengthCandidate)) {
+            return false;
+        }
+        mText = new String(mCandidates, 0, mLengthCandidate).intern();
+        return true;
+    }
+
+    private boolean matches(String text, int length) {
+        if (text == null || text.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) != mCandidates[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
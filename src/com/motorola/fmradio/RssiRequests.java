@@ -0,0 +1,119 @@
+package com.motorola.fmradio;
+
+/**
+ * Outstanding RSSI requests. The tuner's replies don't say what they were
+ * requested for, but arrive in the order of the requests, so each reply
+ * is matched with the oldest request left. A request remembers who made it
+ * and the frequency the tuner was on. Requests without a reply for longer
+ * than MAX_AGE are taken as lost, so a missing reply doesn't shift the
+ * matching for good. Must only be used from the service handler thread.
+ */
+public class RssiRequests {
+    /* the reply is of no use anymore */
+    public static final int STALE = 0;
+    /* signal of a station the tuner locked to */
+    public static final int STATION = 1;
+    /* signal of a scan hit */
+    public static final int SCAN_HIT = 2;
+    /* engines taking over the tuner; their requests go stale when another one starts */
+    public static final int CALIBRATION = 3;
+    public static final int SWEEP = 4;
+    public static final int SMART_SEEK = 5;
+    public static final int INSTANT_SEEK = 6;
+    public static final int AF_SAMPLE = 7;
+    public static final int AF_CANDIDATE = 8;
+
+    private static final int CAPACITY = 16;
+    private static final long MAX_AGE = 2000;
+
+    private final int[] mOwners = new int[CAPACITY];
+    private final int[] mFrequencies = new int[CAPACITY];
+    private final int[] mIds = new int[CAPACITY];
+    private final long[] mTimes = new long[CAPACITY];
+    private int mHead;
+    private int mCount;
+    private int mLastId;
+
+    /* the request matched by the last call to poll() */
+    private int mOwner;
+    private int mFrequency;
+    private int mId;
+
+    public static boolean isEngine(int owner) {
+        return owner >= CALIBRATION;
+    }
+
+    /* returns the id of the request, which is never 0 */
+    public int add(int owner, int frequency, long now) {
+        if (mCount == CAPACITY) {
+            /* the oldest request can only be lost by now */
+            mHead = (mHead + 1) % CAPACITY;
+            mCount--;
+        }
+        if (++mLastId == 0) {
+            mLastId = 1;
+        }
+        final int pos = (mHead + mCount) % CAPACITY;
+        mOwners[pos] = owner;
+        mFrequencies[pos] = frequency;
+        mIds[pos] = mLastId;
+        mTimes[pos] = now;
+        mCount++;
+        return mLastId;
+    }
+
+    /* forgets the latest request, e.g. because it couldn't be sent */
+    public void removeLast() {
+        if (mCount > 0) {
+            mCount--;
+        }
+    }
+
+    /* the replies to all outstanding engine requests will be dropped */
+    public void invalidate() {
+        for (int i = 0; i < mCount; i++) {
+            final int pos = (mHead + i) % CAPACITY;
+            if (isEngine(mOwners[pos])) {
+                mOwners[pos] = STALE;
+            }
+        }
+    }
+
+    /**
+     * Matches a reply with the oldest request that isn't lost. Returns false
+     * if no request is outstanding, otherwise the request is available via
+     * getOwner(), getFrequency() and getId().
+     */
+    public boolean poll(long now) {
+        while (mCount > 0 && now - mTimes[mHead] > MAX_AGE) {
+            mHead = (mHead + 1) % CAPACITY;
+            mCount--;
+        }
+        if (mCount == 0) {
+            return false;
+        }
+        mOwner = mOwners[mHead];
+        mFrequency = mFrequencies[mHead];
+        mId = mIds[mHead];
+        mHead = (mHead + 1) % CAPACITY;
+        mCount--;
+        return true;
+    }
+
+    public int getOwner() {
+        return mOwner;
+    }
+
+    public int getFrequency() {
+        return mFrequency;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+}
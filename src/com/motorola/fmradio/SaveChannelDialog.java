@@ -4,7 +4,6 @@ import android.app.AlertDialog;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.TextUtils;
@@ -28,6 +27,7 @@ public class SaveChannelDialog extends AlertDialog
     private CheckBox mUseRdsName;
     private Spinner mPresetSpinner;
     private EditText mNameField;
+    private int[] mPresetIds;
 
     public interface OnSaveListener {
         void onPresetSaved(int preset);
@@ -60,8 +60,6 @@ public class SaveChannelDialog extends AlertDialog
         setButton(DialogInterface.BUTTON_POSITIVE, context.getString(android.R.string.ok), this);
         setButton(DialogInterface.BUTTON_NEGATIVE, context.getString(android.R.string.cancel), this);
 
-        initPresetSpinner();
-
         super.onCreate(savedInstanceState);
     }
 
@@ -72,14 +70,14 @@ public class SaveChannelDialog extends AlertDialog
         mNameField.setText(initialName);
         mUseRdsName.setChecked(TextUtils.isEmpty(initialName));
 
-        mPresetSpinner.setSelection(initialPreset);
+        mPresetSpinner.setSelection(initPresetSpinner(initialPreset));
     }
 
     @Override
     public void onClick(DialogInterface dialog, int which) {
         if (which == DialogInterface.BUTTON_POSITIVE) {
             ContentValues cv = new ContentValues();
-            int id = mPresetSpinner.getSelectedItemPosition();
+            int id = mPresetIds[mPresetSpinner.getSelectedItemPosition()];
             final Uri uri = Uri.withAppendedPath(Channels.CONTENT_URI, String.valueOf(id));
 
             cv.put(Channels.FREQUENCY, mFrequency);
@@ -103,26 +101,40 @@ public class SaveChannelDialog extends AlertDialog
         mNameField.setVisibility(isChecked ? View.GONE : View.VISIBLE);
     }
 
-    private void initPresetSpinner() {
+    /*
+     * Offers the stored presets plus one free slot; with hundreds of presets
+     * per bank listing every empty slot would make the spinner unusable.
+     */
+    private int initPresetSpinner(int initialPreset) {
         Context context = getContext();
-        Cursor cursor = context.getContentResolver().query(Channels.CONTENT_URI, FMUtil.PROJECTION, null, null, null);
-        if (cursor != null) {
-            ArrayList<String> results = new ArrayList<String>();
-            int i = 1;
-
-            cursor.moveToFirst();
-            while (!cursor.isAfterLast()) {
-                results.add(FMUtil.getPresetUiString(context, cursor, i));
-                cursor.moveToNext();
+        PresetSnapshot presets = PresetSnapshot.query(context);
+        ArrayList<String> results = new ArrayList<String>();
+        int emptyPreset = presets.indexOfPreset(initialPreset) < 0
+                ? initialPreset : presets.getFirstEmptyPreset(Channels.MAX_PRESETS);
+        int count = presets.size();
+        int selection = 0;
+
+        mPresetIds = new int[emptyPreset >= 0 ? count + 1 : count];
+        for (int i = 0, pos = 0; pos < mPresetIds.length; pos++) {
+            if (i < count && (emptyPreset < 0 || presets.getId(i) < emptyPreset)) {
+                mPresetIds[pos] = presets.getId(i);
+                results.add(FMUtil.getPresetUiString(context, presets, i));
                 i++;
+            } else {
+                mPresetIds[pos] = emptyPreset;
+                results.add(FMUtil.getPresetUiString(context, 0, null, emptyPreset + 1));
+                emptyPreset = -1;
+            }
+            if (mPresetIds[pos] == initialPreset) {
+                selection = pos;
             }
-            cursor.close();
+        }
 
-            ArrayAdapter<String> adapter = new ArrayAdapter<String>(context,
-                    android.R.layout.simple_spinner_item, results);
-            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        ArrayAdapter<String> adapter = new ArrayAdapter<String>(context,
+                android.R.layout.simple_spinner_item, results);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
 
-            mPresetSpinner.setAdapter(adapter);
-        }
+        mPresetSpinner.setAdapter(adapter);
+        return selection;
     }
 }
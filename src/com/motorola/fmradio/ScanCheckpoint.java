@@ -0,0 +1,153 @@
+package com.motorola.fmradio;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Progress of an interrupted scan: the frequency it got to and the hits
+ * found so far. Kept in a small file, so a scan can be resumed after the
+ * service was restarted. Checkpoints older than a day are ignored, the
+ * reception may have changed since.
+ */
+public class ScanCheckpoint {
+    private static final String TAG = "ScanCheckpoint";
+
+    private static final String FILE_NAME = "scan_checkpoint";
+    private static final int VERSION = 1;
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private final File mFile;
+
+    public ScanCheckpoint(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public void save(ScanResults results) {
+        final File temp = new File(mFile.getAbsolutePath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            synchronized (results) {
+                final int count = results.getCount();
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(results.getReached());
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeInt(results.getFrequency(i));
+                    out.writeInt(results.getRssi(i));
+                }
+            }
+            out.close();
+            out = null;
+            written = temp.renameTo(mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write scan checkpoint", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!written) {
+                temp.delete();
+            }
+        }
+    }
+
+    public void clear() {
+        mFile.delete();
+    }
+
+    /* returns the frequency the interrupted scan got to, or 0 if there is nothing to resume */
+    public int getFrequency() {
+        DataInputStream in = open();
+        if (in == null) {
+            return 0;
+        }
+        try {
+            return readFrequency(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read scan checkpoint", e);
+            return 0;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Starts the given results with the hits of the interrupted scan.
+     * Returns the frequency to continue at, or 0 if there is nothing to
+     * resume.
+     */
+    public int restore(ScanResults results) {
+        DataInputStream in = open();
+        if (in == null) {
+            return 0;
+        }
+        try {
+            final int frequency = readFrequency(in);
+            if (frequency == 0) {
+                return 0;
+            }
+            final int count = in.readInt();
+            results.start();
+            for (int i = 0; i < count; i++) {
+                final int hit = in.readInt();
+                final int rssi = in.readInt();
+                if (hit >= BandPlan.LOWEST_FREQUENCY && hit <= frequency) {
+                    results.addMeasuredHit(hit, rssi);
+                }
+            }
+            results.setReached(frequency);
+            return frequency;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read scan checkpoint", e);
+            results.stop();
+            return 0;
+        } finally {
+            close(in);
+        }
+    }
+
+    private DataInputStream open() {
+        try {
+            return new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private int readFrequency(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION) {
+            return 0;
+        }
+        final long age = System.currentTimeMillis() - in.readLong();
+        final int frequency = in.readInt();
+        if (age < 0 || age > MAX_AGE
+                || frequency < BandPlan.LOWEST_FREQUENCY || frequency > BandPlan.HIGHEST_FREQUENCY) {
+            return 0;
+        }
+        return frequency;
+    }
+
+    private static void close(DataInputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.motorola.fmradio;
+
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+/**
+ * Stations found during a scan together with their signal strength, which
+ * is assigned by the frequency it was requested on. Once the scan is
+ * finished, ghosts of strong stations on neighbouring channels are
+ * removed. Accessed from the service handler and from binder threads.
+ */
+public class ScanResults {
+    private static final int MAX_HITS = BandPlan.MAX_CHANNELS;
+    private static final int NO_RSSI = Integer.MIN_VALUE;
+
+    private final int[] mFrequencies = new int[MAX_HITS];
+    private final int[] mRssi = new int[MAX_HITS];
+    private final int[] mPi = new int[MAX_HITS];
+    private int mCount;
+    /* highest frequency the scan got to */
+    private int mReached;
+    private boolean mActive;
+
+    /* outcome of the ghost suppression */
+    private int mMerged;
+    private int mDiscarded;
+
+    public synchronized void start() {
+        mCount = 0;
+        mReached = 0;
+        mMerged = 0;
+        mDiscarded = 0;
+        mActive = true;
+    }
+
+    /* no more hits are accepted, pending RSSI replies still are */
+    public synchronized void stop() {
+        mActive = false;
+    }
+
+    public synchronized boolean isActive() {
+        return mActive;
+    }
+
+    public synchronized boolean hasPendingRssi() {
+        for (int i = 0; i < mCount; i++) {
+            if (mRssi[i] == NO_RSSI) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* number of stations that absorbed at least one ghost */
+    public synchronized int getMergedCount() {
+        return mMerged;
+    }
+
+    /* number of hits dropped as ghosts */
+    public synchronized int getDiscardedCount() {
+        return mDiscarded;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized int getFrequency(int index) {
+        return mFrequencies[index];
+    }
+
+    public synchronized int getRssi(int index) {
+        return mRssi[index];
+    }
+
+    public synchronized int getReached() {
+        return mReached;
+    }
+
+    public synchronized void setReached(int frequency) {
+        mReached = Math.max(mReached, frequency);
+    }
+
+    /* returns false if the hit wasn't recorded, no RSSI must be requested for it then */
+    public synchronized boolean addHit(int frequency) {
+        if (!mActive || mCount >= MAX_HITS) {
+            return false;
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (mFrequencies[i] == frequency) {
+                /* the scan wrapped around */
+                return false;
+            }
+        }
+        mFrequencies[mCount] = frequency;
+        mRssi[mCount] = NO_RSSI;
+        mPi[mCount] = 0;
+        mCount++;
+        mReached = Math.max(mReached, frequency);
+        return true;
+    }
+
+    /* adds a hit whose strength is already known, e.g. from an interrupted scan */
+    public synchronized boolean addMeasuredHit(int frequency, int rssi) {
+        if (!addHit(frequency)) {
+            return false;
+        }
+        mRssi[mCount - 1] = rssi;
+        return true;
+    }
+
+    /* returns false if no hit on the frequency is waiting for its RSSI */
+    public synchronized boolean onRssi(int frequency, int rssi) {
+        for (int i = 0; i < mCount; i++) {
+            if (mFrequencies[i] == frequency && mRssi[i] == NO_RSSI) {
+                mRssi[i] = rssi;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops hits lying within spacing kHz of a stronger hit, strongest hits
+     * first. RDS PI codes (frequency to PI, may be null) decide where they
+     * are known for both hits: equal codes confirm a ghost, different codes
+     * mark two separate stations that are both kept. A spacing of 0 turns
+     * the suppression off.
+     */
+    public synchronized void suppressGhosts(int spacing, SparseIntArray piCodes) {
+        mActive = false;
+        if (spacing <= 0 || mCount < 2) {
+            return;
+        }
+
+        if (piCodes != null) {
+            for (int i = 0; i < mCount; i++) {
+                mPi[i] = piCodes.get(mFrequencies[i], 0);
+            }
+        }
+
+        /* hit indices, strongest first */
+        int[] order = new int[mCount];
+        for (int i = 0; i < mCount; i++) {
+            int pos = i;
+            while (pos > 0 && isStronger(i, order[pos - 1])) {
+                order[pos] = order[pos - 1];
+                pos--;
+            }
+            order[pos] = i;
+        }
+
+        boolean[] kept = new boolean[mCount];
+        boolean[] absorbing = new boolean[mCount];
+        for (int hit : order) {
+            int peak = -1;
+            for (int other = 0; other < mCount && peak < 0; other++) {
+                if (kept[other] && isGhostOf(hit, other, spacing)) {
+                    peak = other;
+                }
+            }
+            if (peak < 0) {
+                kept[hit] = true;
+            } else {
+                absorbing[peak] = true;
+                mDiscarded++;
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (absorbing[i]) {
+                mMerged++;
+            }
+            if (kept[i]) {
+                mFrequencies[count] = mFrequencies[i];
+                mRssi[count] = mRssi[i];
+                mPi[count] = mPi[i];
+                count++;
+            }
+        }
+        mCount = count;
+    }
+
+    private boolean isGhostOf(int hit, int peak, int spacing) {
+        if (Math.abs(mFrequencies[hit] - mFrequencies[peak]) > spacing) {
+            return false;
+        }
+        return mPi[hit] == 0 || mPi[peak] == 0 || mPi[hit] == mPi[peak];
+    }
+
+    /**
+     * Returns the frequencies of the count strongest hits in ascending
+     * order. Hits are ranked through a min-heap bounded to count entries,
+     * hits without a measurement rank below all others.
+     */
+    public synchronized int[] getStrongest(int count) {
+        if (count <= 0 || count > mCount) {
+            count = mCount;
+        }
+
+        int[] heap = new int[count];
+        int size = 0;
+
+        for (int i = 0; i < mCount; i++) {
+            if (size < count) {
+                heap[size] = i;
+                siftUp(heap, size++);
+            } else if (isStronger(i, heap[0])) {
+                heap[0] = i;
+                siftDown(heap, size);
+            }
+        }
+
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = mFrequencies[heap[i]];
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /* on equal strength the lower frequency wins, like it did when filling presets in scan order */
+    private boolean isStronger(int a, int b) {
+        if (mRssi[a] != mRssi[b]) {
+            return mRssi[a] > mRssi[b];
+        }
+        return mFrequencies[a] < mFrequencies[b];
+    }
+
+    private void siftUp(int[] heap, int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (!isStronger(heap[parent], heap[pos])) {
+                break;
+            }
+            swap(heap, parent, pos);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int size) {
+        int pos = 0;
+        while (true) {
+            int weakest = pos;
+            int left = 2 * pos + 1;
+            int right = left + 1;
+            if (left < size && isStronger(heap[weakest], heap[left])) {
+                weakest = left;
+            }
+            if (right < size && isStronger(heap[weakest], heap[right])) {
+                weakest = right;
+            }
+            if (weakest == pos) {
+                break;
+            }
+            swap(heap, pos, weakest);
+            pos = weakest;
+        }
+    }
+
+    private static void swap(int[] heap, int a, int b) {
+        int tmp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = tmp;
+    }
+}
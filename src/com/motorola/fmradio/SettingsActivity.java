@@ -2,11 +2,10 @@ package com.motorola.fmradio;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.Context;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Environment;
 import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
@@ -16,26 +15,36 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
-import android.widget.Toast;
+
+import com.motorola.fmradio.FMDataProvider.Channels;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Date;
 
-public class SettingsActivity extends PreferenceActivity implements OnPreferenceChangeListener {
-    public static final String ACTION_RSSI_UPDATED = "com.motorola.fmradio.action.RSSI_SETTING_UPDATED";
-    public static final String EXTRA_RSSI = "rssi";
+public class SettingsActivity extends PreferenceActivity implements OnPreferenceChangeListener,
+        Preferences.OnConfigChangeListener, PresetBackupTask.Callbacks {
+    public static final String ACTION_CONFIG_CHANGED = "com.motorola.fmradio.action.CONFIG_CHANGED";
+    /* held by senders and receivers of the settings broadcasts, only the app itself gets it */
+    public static final String PERMISSION_SETTINGS = "com.motorola.fmradio.permission.SETTINGS";
 
     private static final int DIALOG_WARN_AIRPLANE = 0;
     private static final int DIALOG_INFO_HEADSET = 1;
+    private static final int DIALOG_BACKUP_PROGRESS = 2;
+    private static final int DIALOG_RESTORE_PREVIEW = 3;
+    private static final int DIALOG_CONFIRM_IMPORT = 4;
 
-    private static final String BACKUP_PREFIX = "presets-";
+    private static final String ARG_FILE = "file";
+    private static final String ARG_MESSAGE = "message";
 
     private CheckBoxPreference mIgnoreAirplanePref;
     private CheckBoxPreference mIgnoreNoHeadsetPref;
-    private ListPreference mSeekSensitivityPref;
     private EditTextPreference mBackupPresetsPref;
     private ListPreference mRestorePresetsPref;
+    private Preference mExportStatePref;
+    private Preference mImportStatePref;
+    private ProgressDialog mProgressDialog;
+    private PresetBackupTask mBackupTask;
+    private File mRestoreFile;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -48,25 +57,103 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
         mIgnoreAirplanePref.setOnPreferenceChangeListener(this);
         mIgnoreNoHeadsetPref = (CheckBoxPreference) prefs.findPreference("ignore_no_headset");
         mIgnoreNoHeadsetPref.setOnPreferenceChangeListener(this);
-        mSeekSensitivityPref = (ListPreference) prefs.findPreference("seek_sensitivity");
-        mSeekSensitivityPref.setOnPreferenceChangeListener(this);
         mBackupPresetsPref = (EditTextPreference) prefs.findPreference("backup_presets");
         mBackupPresetsPref.setOnPreferenceChangeListener(this);
         mBackupPresetsPref.setText(DateFormat.format("yyyy-MM-dd", new Date()).toString());
         mRestorePresetsPref = (ListPreference) prefs.findPreference("restore_presets");
         mRestorePresetsPref.setOnPreferenceChangeListener(this);
+        mExportStatePref = prefs.findPreference("export_state");
+        mImportStatePref = prefs.findPreference("import_state");
+
+        mBackupTask = (PresetBackupTask) getLastNonConfigurationInstance();
+        if (mBackupTask != null) {
+            mBackupTask.setCallbacks(this);
+        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        Preferences.getConfig(this);
+        Preferences.registerConfigListener(this);
+        if (mBackupTask == null) {
+            /* the task may have finished while we were recreated */
+            removeDialog(DIALOG_BACKUP_PROGRESS);
+        }
+        updatePresetBackupList();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mBackupTask != null) {
+            mBackupTask.setCallbacks(null);
+        }
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mBackupTask;
+    }
+
+    @Override
+    public void onTaskProgress(int done, int total) {
+        if (mProgressDialog != null) {
+            mProgressDialog.setMax(total);
+            mProgressDialog.setProgress(done);
+        }
+    }
+
+    @Override
+    public void onTaskFinished(PresetBackupTask task) {
+        mBackupTask = null;
+        removeDialog(DIALOG_BACKUP_PROGRESS);
         updatePresetBackupList();
+
+        if (task.getMode() == PresetBackupTask.MODE_PREVIEW && task.getReplaceDiff() != null
+                && task.getMergeDiff() != null && !task.isCancelled()) {
+            Bundle replace = task.getReplaceDiff();
+            Bundle merge = task.getMergeDiff();
+            Bundle args = new Bundle();
+            args.putString(ARG_FILE, task.getFile().getAbsolutePath());
+            args.putString(ARG_MESSAGE, getString(R.string.restore_preview_message,
+                    replace.getInt(Channels.EXTRA_ADDED), replace.getInt(Channels.EXTRA_UPDATED),
+                    replace.getInt(Channels.EXTRA_REMOVED), merge.getInt(Channels.EXTRA_ADDED),
+                    merge.getInt(Channels.EXTRA_UPDATED), merge.getInt(Channels.EXTRA_SKIPPED)));
+            int rejected = replace.getInt(PresetBackupHelper.EXTRA_REJECTED);
+            if (rejected > 0) {
+                args.putString(ARG_MESSAGE, args.getString(ARG_MESSAGE) + "\n\n"
+                        + getString(R.string.restore_preview_rejected, rejected));
+            }
+            showDialog(DIALOG_RESTORE_PREVIEW, args);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        Preferences.unregisterConfigListener(this);
+    }
+
+    @Override
+    public void onConfigChanged(Preferences.Config oldConfig, Preferences.Config newConfig) {
+        /* the player service lives in another process, hand the new settings over */
+        Intent i = new Intent(ACTION_CONFIG_CHANGED);
+        i.setPackage(getPackageName());
+        newConfig.writeTo(i);
+        sendBroadcast(i, PERMISSION_SETTINGS);
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen screen, Preference preference) {
         if (preference == mRestorePresetsPref) {
             updatePresetBackupList();
+        } else if (preference == mExportStatePref) {
+            startBackupTask(PresetBackupTask.MODE_EXPORT_STATE, null);
+            return true;
+        } else if (preference == mImportStatePref) {
+            showDialog(DIALOG_CONFIRM_IMPORT);
+            return true;
         }
 
         return false;
@@ -85,39 +172,19 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
             if (value) {
                 showDialog(DIALOG_INFO_HEADSET);
             }
-        } else if (preference == mSeekSensitivityPref) {
-            final int value = Integer.parseInt((String) newValue);
-            Intent i = new Intent(ACTION_RSSI_UPDATED);
-            i.putExtra(EXTRA_RSSI, value);
-            sendBroadcast(i);
         } else if (preference == mBackupPresetsPref) {
             final String value = (String) newValue;
             if (!TextUtils.isEmpty(value)) {
-                File backup = buildBackupFileFromName(this, value);
+                File backup = PresetBackupHelper.getBackupFile(this, value);
                 if (backup != null) {
-                    int resId;
-                    if (PresetBackupHelper.backupPresets(this, backup)) {
-                        resId = R.string.backup_presets_success_toast;
-                        updatePresetBackupList();
-                    } else {
-                        resId = R.string.backup_presets_failure_toast;
-                    }
-                    Toast.makeText(this, resId, Toast.LENGTH_SHORT).show();
+                    startBackupTask(PresetBackupTask.MODE_BACKUP, backup);
                 }
             }
         } else if (preference == mRestorePresetsPref) {
             final String fileName = (String) newValue;
-            final File restore = buildBackupFileFromName(this, fileName);
+            final File restore = PresetBackupHelper.getBackupFile(this, fileName);
             if (restore != null && restore.exists()) {
-                int presets = PresetBackupHelper.restorePresets(this, restore);
-                String message;
-
-                if (presets >= 0) {
-                    message = getString(R.string.restore_presets_success_toast, presets);
-                } else {
-                    message = getString(R.string.restore_presets_failure_toast);
-                }
-                Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+                startBackupTask(PresetBackupTask.MODE_PREVIEW, restore);
             }
             return false;
         }
@@ -146,54 +213,76 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
                         .setMessage(R.string.no_headset_ignore_message)
                         .setPositiveButton(android.R.string.ok, null)
                         .create();
+            case DIALOG_BACKUP_PROGRESS:
+                mProgressDialog = new ProgressDialog(this);
+                mProgressDialog.setTitle(R.string.backup_restore_title);
+                mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+                mProgressDialog.setCancelable(true);
+                mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        if (mBackupTask != null) {
+                            mBackupTask.cancel(false);
+                        }
+                    }
+                });
+                return mProgressDialog;
+            case DIALOG_RESTORE_PREVIEW:
+                return new AlertDialog.Builder(this)
+                        .setTitle(R.string.restore_presets_title)
+                        .setMessage("")
+                        .setPositiveButton(R.string.restore_mode_replace, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                startBackupTask(PresetBackupTask.MODE_RESTORE, mRestoreFile);
+                            }
+                        })
+                        .setNeutralButton(R.string.restore_mode_merge, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                startBackupTask(PresetBackupTask.MODE_MERGE, mRestoreFile);
+                            }
+                        })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .create();
+            case DIALOG_CONFIRM_IMPORT:
+                return new AlertDialog.Builder(this)
+                        .setTitle(R.string.import_state_title)
+                        .setMessage(R.string.import_state_confirm_message)
+                        .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                startBackupTask(PresetBackupTask.MODE_IMPORT_STATE, null);
+                            }
+                        })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .create();
         }
 
         return null;
     }
 
-    private void updatePresetBackupList() {
-        File backupDir = getPresetBackupDirectory(this);
-        File[] files = backupDir != null ? backupDir.listFiles() : null;
-        ArrayList<String> items = new ArrayList<String>();
-
-        if (files != null) {
-            for (File file : files) {
-                if (!file.isFile()) {
-                    continue;
-                }
-                final String name = file.getName();
-                if (!name.startsWith(BACKUP_PREFIX) || !name.endsWith(".xml")) {
-                    continue;
-                }
-                items.add(name.substring(BACKUP_PREFIX.length(), name.length() - 4));
-            }
+    @Override
+    protected void onPrepareDialog(int id, Dialog dialog, Bundle args) {
+        if (id == DIALOG_RESTORE_PREVIEW) {
+            mRestoreFile = new File(args.getString(ARG_FILE));
+            ((AlertDialog) dialog).setMessage(args.getString(ARG_MESSAGE));
         }
-
-        final String[] itemArray = items.toArray(new String[items.size()]);
-        mRestorePresetsPref.setEntries(itemArray);
-        mRestorePresetsPref.setEntryValues(itemArray);
-        mRestorePresetsPref.setValue(null);
     }
 
-    private static File getPresetBackupDirectory(Context context) {
-        File base = context.getExternalFilesDir(null);
-        if (base == null) {
-            return null;
+    private void startBackupTask(int mode, File file) {
+        if (mBackupTask != null) {
+            return;
         }
-        return new File(base, "backups");
+        showDialog(DIALOG_BACKUP_PROGRESS);
+        mBackupTask = new PresetBackupTask(this, mode, this);
+        mBackupTask.execute(file);
     }
 
-    private static File buildBackupFileFromName(Context context, String name) {
-        File backupDir = getPresetBackupDirectory(context);
-        if (backupDir == null) {
-            return null;
-        }
-
-        final StringBuilder fileName = new StringBuilder();
-        fileName.append(BACKUP_PREFIX);
-        fileName.append(name);
-        fileName.append(".xml");
-
-        return new File(backupDir, fileName.toString());
+    private void updatePresetBackupList() {
+        final String[] itemArray = PresetBackupHelper.getBackupNames(this);
+        mRestorePresetsPref.setEntries(itemArray);
+        mRestorePresetsPref.setEntryValues(itemArray);
+        mRestorePresetsPref.setValue(null);
     }
 }
@@ -0,0 +1,22 @@
+package com.motorola.fmradio;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/*
+ * Runs in the main process. Re-reads settings the player service process
+ * changed on disk, so the cached ones aren't shown or written back.
+ */
+public class SettingsReloadReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Preferences.ACTION_RELOAD_SETTINGS.equals(intent.getAction())) {
+            return;
+        }
+        String[] keys = intent.getStringArrayExtra(Preferences.EXTRA_RELOAD);
+        if (keys != null) {
+            Preferences.reloadSettings(context, keys);
+        }
+    }
+}
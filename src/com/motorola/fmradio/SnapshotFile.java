@@ -0,0 +1,656 @@
+package com.motorola.fmradio;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.motorola.fmradio.FMDataProvider.Banks;
+import com.motorola.fmradio.FMDataProvider.Channels;
+import com.motorola.fmradio.FMDataProvider.Stations;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of the presets and the station catalog, written
+ * next to the XML backups as a fast path for restoring them. The same
+ * format carries the full or incremental state exports of FMDataProvider.
+ *
+ * Layout (big endian): magic, version, then a list of sections. Each
+ * section is a type, the payload length, the payload and the CRC32 of the
+ * payload. Unknown section types are skipped, so newer files stay readable
+ * as long as the version is unchanged. Strings are stored as an unsigned
+ * 16 bit length followed by UTF-8 bytes.
+ */
+public class SnapshotFile {
+    private static final String TAG = "SnapshotFile";
+
+    private static final int MAGIC = 0x464d5331; /* "FMS1" */
+    private static final int VERSION = 1;
+
+    private static final int SECTION_PRESETS = 1;
+    private static final int SECTION_STATIONS = 2;
+    private static final int SECTION_STATE = 3;
+    private static final int SECTION_BANKS = 4;
+    private static final int SECTION_CHANNELS = 5;
+    private static final int SECTION_DELETIONS = 6;
+    private static final int SECTION_SETTINGS = 7;
+
+    private static final int SETTING_INT = 1;
+    private static final int SETTING_LONG = 2;
+    private static final int SETTING_BOOLEAN = 3;
+    private static final int SETTING_FLOAT = 4;
+    private static final int SETTING_STRING = 5;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_STRING_LENGTH = 0xffff;
+    /* smaller files are read into the heap, mapping them costs more than reading */
+    private static final long MAP_THRESHOLD = 256 * 1024;
+
+    static final String[] STATION_PROJECTION = new String[] {
+        Stations.FREQUENCY, Stations.RSSI, Stations.PI, Stations.PS, Stations.PTY,
+        Stations.STEREO, Stations.FIRST_SEEN, Stations.LAST_SEEN
+    };
+
+    public static class Contents {
+        public PresetSnapshot presets;
+        public ContentValues[] stations;
+
+        /* only present in state exports; a base sequence of 0 marks a full export */
+        public boolean state;
+        public int baseSequence;
+        public int sequence;
+        public int activeBank = -1;
+        public ContentValues[] banks;
+        public ContentValues[] channels;
+        public ContentValues[] deletions;
+        public HashMap<String, Object> settings;
+    }
+
+    private SnapshotFile() {
+        /* this class is not supposed to be instantiated */
+    }
+
+    public static boolean write(Context context, File destination) {
+        PresetSnapshot presets = PresetSnapshot.query(context);
+        Cursor stations = context.getContentResolver().query(Stations.CONTENT_URI,
+                STATION_PROJECTION, null, null, null);
+        final File temp = new File(destination.getAbsolutePath() + ".tmp");
+        FileOutputStream os = null;
+        boolean result = false;
+
+        try {
+            os = new FileOutputStream(temp);
+            SectionWriter writer = new SectionWriter(os.getChannel());
+
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+
+            writer.beginSection(SECTION_PRESETS);
+            writer.putInt(presets.size());
+            for (int i = 0; i < presets.size(); i++) {
+                writer.putInt(presets.getId(i));
+                writer.putInt(presets.getFrequency(i));
+                writer.putString(presets.getName(i));
+                writer.putString(presets.getRdsName(i));
+            }
+            writer.endSection();
+
+            if (stations != null) {
+                writeStations(writer, stations);
+            }
+
+            writer.flush();
+            result = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write snapshot " + destination, e);
+        } finally {
+            result = close(os, result);
+            if (stations != null) {
+                stations.close();
+            }
+        }
+
+        return commit(temp, destination, result);
+    }
+
+    /**
+     * Writes a state export. The cursors must return the columns in the
+     * order written below; deletions is null for a full export. Cursors are
+     * left open for the caller, which usually holds a transaction around
+     * this call so all tables are read consistently.
+     */
+    public static boolean writeState(File destination, int baseSequence, int sequence,
+            int activeBank, Cursor banks, Cursor channels, Cursor stations, Cursor deletions,
+            Map<String, ?> settings) {
+        final File temp = new File(destination.getAbsolutePath() + ".tmp");
+        FileOutputStream os = null;
+        boolean result = false;
+
+        try {
+            os = new FileOutputStream(temp);
+            SectionWriter writer = new SectionWriter(os.getChannel());
+
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+
+            writer.beginSection(SECTION_STATE);
+            writer.putInt(baseSequence);
+            writer.putInt(sequence);
+            writer.putInt(activeBank);
+            writer.endSection();
+
+            /* _id, name */
+            writer.beginSection(SECTION_BANKS);
+            writer.putInt(banks.getCount());
+            while (banks.moveToNext()) {
+                writer.putInt(banks.getInt(0));
+                writer.putString(banks.getString(1));
+            }
+            writer.endSection();
+
+            /* bank, _id, frequency, name, rds_name */
+            writer.beginSection(SECTION_CHANNELS);
+            writer.putInt(channels.getCount());
+            while (channels.moveToNext()) {
+                writer.putInt(channels.getInt(0));
+                writer.putInt(channels.getInt(1));
+                writer.putInt(channels.getInt(2));
+                writer.putString(channels.getString(3));
+                writer.putString(channels.getString(4));
+            }
+            writer.endSection();
+
+            writeStations(writer, stations);
+
+            /* table_name, bank, _id */
+            if (deletions != null) {
+                writer.beginSection(SECTION_DELETIONS);
+                writer.putInt(deletions.getCount());
+                while (deletions.moveToNext()) {
+                    writer.putString(deletions.getString(0));
+                    writer.putInt(deletions.getInt(1));
+                    writer.putInt(deletions.getInt(2));
+                }
+                writer.endSection();
+            }
+
+            if (settings != null) {
+                writeSettings(writer, settings);
+            }
+
+            writer.flush();
+            result = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write state " + destination, e);
+        } finally {
+            result = close(os, result);
+        }
+
+        return commit(temp, destination, result);
+    }
+
+    /* STATION_PROJECTION order */
+    private static void writeStations(SectionWriter writer, Cursor stations) throws IOException {
+        writer.beginSection(SECTION_STATIONS);
+        writer.putInt(stations.getCount());
+        while (stations.moveToNext()) {
+            writer.putInt(stations.getInt(0));
+            writer.putInt(stations.getInt(1));
+            writer.putInt(stations.isNull(2) ? 0 : stations.getInt(2));
+            writer.putString(stations.getString(3));
+            writer.putInt(stations.isNull(4) ? 0 : stations.getInt(4));
+            writer.putInt(stations.getInt(5));
+            writer.putLong(stations.getLong(6));
+            writer.putLong(stations.getLong(7));
+        }
+        writer.endSection();
+    }
+
+    /* settings of types not listed here (string sets) are not exported */
+    private static void writeSettings(SectionWriter writer, Map<String, ?> settings)
+            throws IOException {
+        int count = 0;
+        for (Object value : settings.values()) {
+            if (getSettingType(value) != 0) {
+                count++;
+            }
+        }
+
+        writer.beginSection(SECTION_SETTINGS);
+        writer.putInt(count);
+        for (Map.Entry<String, ?> entry : settings.entrySet()) {
+            final Object value = entry.getValue();
+            final int type = getSettingType(value);
+            if (type == 0) {
+                continue;
+            }
+            writer.putString(entry.getKey());
+            writer.putInt(type);
+            switch (type) {
+                case SETTING_INT:
+                    writer.putInt((Integer) value);
+                    break;
+                case SETTING_LONG:
+                    writer.putLong((Long) value);
+                    break;
+                case SETTING_BOOLEAN:
+                    writer.putInt((Boolean) value ? 1 : 0);
+                    break;
+                case SETTING_FLOAT:
+                    writer.putInt(Float.floatToIntBits((Float) value));
+                    break;
+                case SETTING_STRING:
+                    writer.putString((String) value);
+                    break;
+            }
+        }
+        writer.endSection();
+    }
+
+    private static int getSettingType(Object value) {
+        if (value instanceof Integer) {
+            return SETTING_INT;
+        } else if (value instanceof Long) {
+            return SETTING_LONG;
+        } else if (value instanceof Boolean) {
+            return SETTING_BOOLEAN;
+        } else if (value instanceof Float) {
+            return SETTING_FLOAT;
+        } else if (value instanceof String) {
+            return SETTING_STRING;
+        }
+        return 0;
+    }
+
+    private static boolean close(FileOutputStream os, boolean result) {
+        if (os != null) {
+            try {
+                os.close();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return result;
+    }
+
+    /* moves a completely written temporary file into place, or drops it */
+    private static boolean commit(File temp, File destination, boolean result) {
+        if (result) {
+            result = temp.renameTo(destination);
+        }
+        if (!result) {
+            temp.delete();
+        }
+        return result;
+    }
+
+    /**
+     * Reads and verifies a snapshot. Returns null if the file is missing,
+     * truncated, has a bad checksum or an unknown version.
+     */
+    public static Contents read(File source) {
+        FileInputStream is = null;
+
+        try {
+            is = new FileInputStream(source);
+            FileChannel channel = is.getChannel();
+            final long size = channel.size();
+            ByteBuffer buffer;
+
+            if (size > Integer.MAX_VALUE) {
+                Log.w(TAG, "Snapshot " + source + " is too large");
+                return null;
+            } else if (size >= MAP_THRESHOLD) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    /* keep reading */
+                }
+                buffer.flip();
+            }
+
+            return parse(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read snapshot " + source, e);
+        } catch (RuntimeException e) {
+            /* BufferUnderflowException, IllegalArgumentException for corrupt data */
+            Log.w(TAG, "Snapshot " + source + " is corrupt", e);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Contents parse(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+            Log.w(TAG, "Not a snapshot file");
+            return null;
+        }
+        final int version = buffer.getInt();
+        if (version != VERSION) {
+            Log.w(TAG, "Unsupported snapshot version " + version);
+            return null;
+        }
+
+        Contents contents = new Contents();
+        byte[] scratch = new byte[BUFFER_SIZE];
+
+        while (buffer.hasRemaining()) {
+            final int type = buffer.getInt();
+            final int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() - 4) {
+                Log.w(TAG, "Truncated snapshot section " + type);
+                return null;
+            }
+
+            ByteBuffer section = buffer.slice();
+            section.limit(length);
+            buffer.position(buffer.position() + length);
+            final int checksum = buffer.getInt();
+
+            if (checksum != checksum(section.duplicate(), scratch)) {
+                Log.w(TAG, "Checksum mismatch in snapshot section " + type);
+                return null;
+            }
+
+            switch (type) {
+                case SECTION_PRESETS:
+                    contents.presets = readPresets(section, scratch);
+                    break;
+                case SECTION_STATIONS:
+                    contents.stations = readStations(section, scratch);
+                    break;
+                case SECTION_STATE:
+                    contents.state = true;
+                    contents.baseSequence = section.getInt();
+                    contents.sequence = section.getInt();
+                    contents.activeBank = section.getInt();
+                    break;
+                case SECTION_BANKS:
+                    contents.banks = readBanks(section, scratch);
+                    break;
+                case SECTION_CHANNELS:
+                    contents.channels = readChannels(section, scratch);
+                    break;
+                case SECTION_DELETIONS:
+                    contents.deletions = readDeletions(section, scratch);
+                    break;
+                case SECTION_SETTINGS:
+                    contents.settings = readSettings(section, scratch);
+                    break;
+                default:
+                    Log.d(TAG, "Skipping unknown snapshot section " + type);
+                    break;
+            }
+        }
+
+        if (contents.presets == null && !contents.state) {
+            Log.w(TAG, "Snapshot has no preset section");
+            return null;
+        }
+        return contents;
+    }
+
+    private static PresetSnapshot readPresets(ByteBuffer section, byte[] scratch) throws IOException {
+        final int count = readCount(section, 8);
+        int[] ids = new int[count];
+        int[] frequencies = new int[count];
+        String[] names = new String[count];
+        String[] rdsNames = new String[count];
+
+        for (int i = 0; i < count; i++) {
+            ids[i] = section.getInt();
+            frequencies[i] = section.getInt();
+            names[i] = readString(section, scratch);
+            rdsNames[i] = readString(section, scratch);
+            if (i > 0 && ids[i] <= ids[i - 1]) {
+                throw new IllegalArgumentException("Presets not in ascending order");
+            }
+            if (ids[i] < 0 || ids[i] >= Channels.MAX_PRESETS
+                    || frequencies[i] < BandPlan.LOWEST_FREQUENCY || frequencies[i] > BandPlan.HIGHEST_FREQUENCY) {
+                throw new IllegalArgumentException("Invalid preset " + ids[i] + " at " + frequencies[i]);
+            }
+        }
+
+        return PresetSnapshot.fromArrays(ids, frequencies, names, rdsNames);
+    }
+
+    private static ContentValues[] readStations(ByteBuffer section, byte[] scratch) throws IOException {
+        final int count = readCount(section, 34);
+        ContentValues[] stations = new ContentValues[count];
+
+        for (int i = 0; i < count; i++) {
+            ContentValues cv = new ContentValues();
+            cv.put(Stations.FREQUENCY, section.getInt());
+            cv.put(Stations.RSSI, section.getInt());
+            int pi = section.getInt();
+            if (pi != 0) {
+                cv.put(Stations.PI, pi);
+            }
+            cv.put(Stations.PS, readString(section, scratch));
+            int pty = section.getInt();
+            if (pty != 0) {
+                cv.put(Stations.PTY, pty);
+            }
+            cv.put(Stations.STEREO, section.getInt() != 0);
+            cv.put(Stations.FIRST_SEEN, section.getLong());
+            cv.put(Stations.LAST_SEEN, section.getLong());
+            stations[i] = cv;
+        }
+
+        return stations;
+    }
+
+    private static ContentValues[] readBanks(ByteBuffer section, byte[] scratch) throws IOException {
+        final int count = readCount(section, 6);
+        ContentValues[] banks = new ContentValues[count];
+
+        for (int i = 0; i < count; i++) {
+            ContentValues cv = new ContentValues();
+            cv.put(Banks.ID, section.getInt());
+            String name = readString(section, scratch);
+            cv.put(Banks.NAME, name != null ? name : "");
+            banks[i] = cv;
+        }
+
+        return banks;
+    }
+
+    private static ContentValues[] readChannels(ByteBuffer section, byte[] scratch) throws IOException {
+        final int count = readCount(section, 16);
+        ContentValues[] channels = new ContentValues[count];
+
+        for (int i = 0; i < count; i++) {
+            ContentValues cv = new ContentValues();
+            cv.put(Channels.BANK, section.getInt());
+            final int id = section.getInt();
+            final int frequency = section.getInt();
+            if (id < 0 || id >= Channels.MAX_PRESETS
+                    || frequency < BandPlan.LOWEST_FREQUENCY || frequency > BandPlan.HIGHEST_FREQUENCY) {
+                throw new IllegalArgumentException("Invalid preset " + id + " at " + frequency);
+            }
+            cv.put(Channels.ID, id);
+            cv.put(Channels.FREQUENCY, frequency);
+            cv.put(Channels.NAME, readString(section, scratch));
+            cv.put(Channels.RDS_NAME, readString(section, scratch));
+            channels[i] = cv;
+        }
+
+        return channels;
+    }
+
+    /* keys as in the deletions table of FMDataProvider */
+    private static ContentValues[] readDeletions(ByteBuffer section, byte[] scratch) throws IOException {
+        final int count = readCount(section, 10);
+        ContentValues[] deletions = new ContentValues[count];
+
+        for (int i = 0; i < count; i++) {
+            ContentValues cv = new ContentValues();
+            cv.put("table_name", readString(section, scratch));
+            cv.put("bank", section.getInt());
+            cv.put("_id", section.getInt());
+            deletions[i] = cv;
+        }
+
+        return deletions;
+    }
+
+    private static HashMap<String, Object> readSettings(ByteBuffer section, byte[] scratch)
+            throws IOException {
+        final int count = readCount(section, 7);
+        HashMap<String, Object> settings = new HashMap<String, Object>();
+
+        for (int i = 0; i < count; i++) {
+            final String key = readString(section, scratch);
+            final int type = section.getInt();
+            Object value;
+            switch (type) {
+                case SETTING_INT:
+                    value = section.getInt();
+                    break;
+                case SETTING_LONG:
+                    value = section.getLong();
+                    break;
+                case SETTING_BOOLEAN:
+                    value = section.getInt() != 0;
+                    break;
+                case SETTING_FLOAT:
+                    value = Float.intBitsToFloat(section.getInt());
+                    break;
+                case SETTING_STRING:
+                    value = readString(section, scratch);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown setting type " + type);
+            }
+            if (key != null && value != null) {
+                settings.put(key, value);
+            }
+        }
+
+        return settings;
+    }
+
+    /* validates an entry count against the smallest possible entry size before allocating */
+    private static int readCount(ByteBuffer section, int minEntrySize) {
+        final int count = section.getInt();
+        if (count < 0 || count > section.remaining() / minEntrySize) {
+            throw new IllegalArgumentException("Invalid entry count " + count);
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] scratch)
+            throws UnsupportedEncodingException {
+        final int length = buffer.getShort() & 0xffff;
+        if (length == 0) {
+            return null;
+        }
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, "UTF-8");
+    }
+
+    private static int checksum(ByteBuffer data, byte[] scratch) {
+        CRC32 crc = new CRC32();
+        while (data.hasRemaining()) {
+            int chunk = Math.min(data.remaining(), scratch.length);
+            data.get(scratch, 0, chunk);
+            crc.update(scratch, 0, chunk);
+        }
+        return (int) crc.getValue();
+    }
+
+    /*
+     * Streams sections through a fixed size buffer. The section length is
+     * written as a placeholder and patched once the payload is complete.
+     */
+    private static class SectionWriter {
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 mCrc = new CRC32();
+        private long mSectionStart = -1;
+        private int mSectionLength;
+
+        SectionWriter(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        void beginSection(int type) throws IOException {
+            putInt(type);
+            putInt(0);
+            flush();
+            mSectionStart = mChannel.position();
+            mSectionLength = 0;
+            mCrc.reset();
+        }
+
+        void endSection() throws IOException {
+            flush();
+            ByteBuffer length = ByteBuffer.allocate(4);
+            length.putInt(mSectionLength);
+            length.flip();
+            mChannel.write(length, mSectionStart - 4);
+
+            final int checksum = (int) mCrc.getValue();
+            mSectionStart = -1;
+            putInt(checksum);
+        }
+
+        void putInt(int value) throws IOException {
+            ensureSpace(4);
+            mBuffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensureSpace(8);
+            mBuffer.putLong(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = TextUtils.isEmpty(value) ? null : value.getBytes("UTF-8");
+            int length = bytes != null ? Math.min(bytes.length, MAX_STRING_LENGTH) : 0;
+
+            ensureSpace(2 + length);
+            mBuffer.putShort((short) length);
+            if (length > 0) {
+                mBuffer.put(bytes, 0, length);
+            }
+        }
+
+        void flush() throws IOException {
+            mBuffer.flip();
+            if (mSectionStart >= 0) {
+                mCrc.update(mBuffer.array(), 0, mBuffer.limit());
+                mSectionLength += mBuffer.limit();
+            }
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        private void ensureSpace(int bytes) throws IOException {
+            if (mBuffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+}
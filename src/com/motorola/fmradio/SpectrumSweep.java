@@ -0,0 +1,117 @@
+package com.motorola.fmradio;
+
+/**
+ * Software scan that measures the signal strength on every channel of the
+ * band. Channels standing out from the noise floor as local maxima are
+ * reported as stations, which finds weak stations the hardware scan with
+ * its fixed threshold misses. The noise floor is the median of the samples
+ * taken so far; samples are kept in a histogram, so it is found without
+ * sorting. A sample is judged once its upper neighbour has been measured.
+ */
+public class SpectrumSweep {
+    /* samples are clamped into the histogram range */
+    private static final int MAX_RSSI = 127;
+    /* samples taken before the noise floor is trusted */
+    private static final int WARMUP = 16;
+    /* how far a station has to rise above the noise floor */
+    private static final int PEAK_MARGIN = 6;
+
+    private final BandPlan mPlan;
+    private final int[] mSpectrum;
+    private final int[] mHistogram = new int[MAX_RSSI + 1];
+    private int mCount;
+    private int mJudged;
+
+    private final int[] mPeaks;
+    private int mPeakCount;
+
+    public SpectrumSweep(BandPlan plan) {
+        mPlan = plan;
+        mSpectrum = new int[plan.getChannelCount()];
+        mPeaks = new int[plan.getChannelCount()];
+    }
+
+    /* frequency to measure next, 0 once the whole band was measured */
+    public int getNextFrequency() {
+        if (mCount >= mSpectrum.length) {
+            return 0;
+        }
+        return mPlan.getFrequency(mCount);
+    }
+
+    /* stores the measurement for the frequency returned by getNextFrequency() */
+    public void record(int rssi) {
+        if (mCount >= mSpectrum.length) {
+            return;
+        }
+        rssi = Math.max(0, Math.min(MAX_RSSI, rssi));
+        mSpectrum[mCount++] = rssi;
+        mHistogram[rssi]++;
+    }
+
+    /**
+     * Judges all samples whose neighbours are known. With last set, the
+     * remaining samples are judged as well, regardless of the warmup.
+     */
+    public void detect(boolean last) {
+        if (!last && mCount < WARMUP) {
+            return;
+        }
+        final int end = last ? mCount : mCount - 1;
+        final int threshold = getNoiseFloor() + PEAK_MARGIN;
+
+        for (; mJudged < end; mJudged++) {
+            final int rssi = mSpectrum[mJudged];
+            final int lower = mJudged > 0 ? mSpectrum[mJudged - 1] : 0;
+            final int upper = mJudged + 1 < mCount ? mSpectrum[mJudged + 1] : 0;
+            /* on a plateau the upper end counts */
+            if (rssi >= threshold && rssi >= lower && rssi > upper) {
+                mPeaks[mPeakCount++] = mPlan.getFrequency(mJudged);
+            }
+        }
+    }
+
+    public int getNoiseFloor() {
+        int remaining = mCount / 2;
+        for (int rssi = 0; rssi <= MAX_RSSI; rssi++) {
+            remaining -= mHistogram[rssi];
+            if (remaining < 0) {
+                return rssi;
+            }
+        }
+        return 0;
+    }
+
+    /* copies the samples below the detection threshold, i.e. the empty channels, and returns their count */
+    public int getNoise(int[] samples) {
+        final int threshold = getNoiseFloor() + PEAK_MARGIN;
+        int count = 0;
+        for (int i = 0; i < mCount && count < samples.length; i++) {
+            if (mSpectrum[i] < threshold) {
+                samples[count++] = mSpectrum[i];
+            }
+        }
+        return count;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    public int getPeakCount() {
+        return mPeakCount;
+    }
+
+    public int getPeak(int index) {
+        return mPeaks[index];
+    }
+
+    /* returns the measurement of the given frequency, or 0 if it wasn't measured */
+    public int getSample(int frequency) {
+        final int index = mPlan.getIndex(frequency);
+        if (index < 0 || index >= mCount) {
+            return 0;
+        }
+        return mSpectrum[index];
+    }
+}
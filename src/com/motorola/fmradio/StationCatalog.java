@@ -0,0 +1,317 @@
+package com.motorola.fmradio;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.motorola.fmradio.FMDataProvider.Stations;
+
+import java.util.Arrays;
+
+/**
+ * Collects what the tuner learns about stations and merges it into the
+ * station catalog of FMDataProvider. Observations are coalesced per
+ * frequency and written in one batch, so a scan costs a single transaction
+ * instead of one write per station. Stations recently received with a
+ * measured signal are also kept in memory, sorted by frequency, so seeks
+ * can jump to them directly, and indexed by program type for genre
+ * searches. Must only be used from the thread owning the handler.
+ */
+public class StationCatalog {
+    private static final String TAG = "StationCatalog";
+
+    private static final int FLUSH_DELAY = 5000;
+    /* stations seen within this time are considered for instant seeks */
+    private static final long RECENT_WINDOW = 24 * 60 * 60 * 1000L;
+    private static final int MAX_RECENT = BandPlan.MAX_CHANNELS;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final SparseArray<ContentValues> mPending = new SparseArray<ContentValues>();
+
+    /* recently received stations, sorted by frequency; loaded on first use */
+    private final int[] mRecentFrequencies = new int[MAX_RECENT];
+    private final int[] mRecentRssi = new int[MAX_RECENT];
+    private final long[] mRecentSeen = new long[MAX_RECENT];
+    private int mRecentCount = -1;
+
+    /* stations received within the last day by program type; loaded on first use */
+    private PtyIndex mPtyIndex;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public StationCatalog(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    public void recordLock(int frequency) {
+        getPending(frequency);
+    }
+
+    public void recordRssi(int frequency, int rssi) {
+        ContentValues cv = getPending(frequency);
+        if (cv == null) {
+            return;
+        }
+        Integer best = cv.getAsInteger(Stations.RSSI);
+        if (best == null || rssi > best) {
+            cv.put(Stations.RSSI, rssi);
+        }
+        updateRecent(frequency, rssi, cv.getAsLong(Stations.LAST_SEEN));
+        if (mPtyIndex != null) {
+            mPtyIndex.putRssi(frequency, rssi);
+        }
+    }
+
+    /**
+     * Returns the nearest channel of the band plan above (or below) the
+     * given frequency with a station received within the last day with at
+     * least the given signal strength, wrapping around at the band edges.
+     * Returns 0 if there is none.
+     */
+    public int getNextRecent(int frequency, boolean upward, int minRssi, BandPlan plan) {
+        loadRecent();
+        if (mRecentCount == 0) {
+            return 0;
+        }
+
+        final long oldest = System.currentTimeMillis() - RECENT_WINDOW;
+        int pos = Arrays.binarySearch(mRecentFrequencies, 0, mRecentCount, frequency);
+        if (pos < 0) {
+            /* insertion point, step back so the first step lands on it */
+            pos = upward ? -pos - 2 : -pos - 1;
+        }
+
+        for (int i = 0; i < mRecentCount; i++) {
+            pos = upward ? pos + 1 : pos - 1;
+            if (pos >= mRecentCount) {
+                pos = 0;
+            } else if (pos < 0) {
+                pos = mRecentCount - 1;
+            }
+            if (mRecentFrequencies[pos] != frequency && mRecentSeen[pos] >= oldest
+                    && mRecentRssi[pos] >= minRssi && plan.contains(mRecentFrequencies[pos])) {
+                return mRecentFrequencies[pos];
+            }
+        }
+        return 0;
+    }
+
+    /* whether a station was received within the last day within spacing kHz of the frequency */
+    public boolean isNearRecent(int frequency, int spacing) {
+        loadRecent();
+        final long oldest = System.currentTimeMillis() - RECENT_WINDOW;
+        int pos = Arrays.binarySearch(mRecentFrequencies, 0, mRecentCount, frequency - spacing);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        for (; pos < mRecentCount && mRecentFrequencies[pos] <= frequency + spacing; pos++) {
+            if (mRecentSeen[pos] >= oldest) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* drops a station that could not be received any more from the instant seek candidates */
+    public void forgetRecent(int frequency) {
+        if (mRecentCount <= 0) {
+            return;
+        }
+        int pos = Arrays.binarySearch(mRecentFrequencies, 0, mRecentCount, frequency);
+        if (pos >= 0) {
+            mRecentCount--;
+            System.arraycopy(mRecentFrequencies, pos + 1, mRecentFrequencies, pos, mRecentCount - pos);
+            System.arraycopy(mRecentRssi, pos + 1, mRecentRssi, pos, mRecentCount - pos);
+            System.arraycopy(mRecentSeen, pos + 1, mRecentSeen, pos, mRecentCount - pos);
+        }
+    }
+
+    private void updateRecent(int frequency, int rssi, long seen) {
+        loadRecent();
+        int pos = Arrays.binarySearch(mRecentFrequencies, 0, mRecentCount, frequency);
+        if (pos < 0) {
+            if (mRecentCount >= MAX_RECENT) {
+                return;
+            }
+            pos = -pos - 1;
+            System.arraycopy(mRecentFrequencies, pos, mRecentFrequencies, pos + 1, mRecentCount - pos);
+            System.arraycopy(mRecentRssi, pos, mRecentRssi, pos + 1, mRecentCount - pos);
+            System.arraycopy(mRecentSeen, pos, mRecentSeen, pos + 1, mRecentCount - pos);
+            mRecentCount++;
+            mRecentFrequencies[pos] = frequency;
+        }
+        /* the latest measurement counts, a station may have faded since */
+        mRecentRssi[pos] = rssi;
+        mRecentSeen[pos] = seen;
+    }
+
+    private void loadRecent() {
+        if (mRecentCount >= 0) {
+            return;
+        }
+        mRecentCount = 0;
+
+        final long oldest = System.currentTimeMillis() - RECENT_WINDOW;
+        Cursor c = mContext.getContentResolver().query(Stations.CONTENT_URI,
+                new String[] { Stations.FREQUENCY, Stations.RSSI, Stations.LAST_SEEN },
+                Stations.LAST_SEEN + ">=" + oldest, null, Stations.FREQUENCY);
+        if (c == null) {
+            return;
+        }
+        while (c.moveToNext() && mRecentCount < MAX_RECENT) {
+            mRecentFrequencies[mRecentCount] = c.getInt(0);
+            mRecentRssi[mRecentCount] = c.getInt(1);
+            mRecentSeen[mRecentCount] = c.getLong(2);
+            mRecentCount++;
+        }
+        c.close();
+    }
+
+    public void recordStereo(int frequency, boolean stereo) {
+        ContentValues cv = getPending(frequency);
+        if (cv != null && stereo) {
+            cv.put(Stations.STEREO, true);
+        }
+    }
+
+    public void recordRds(int frequency, int pi, String ps, int pty) {
+        ContentValues cv = getPending(frequency);
+        if (cv == null) {
+            return;
+        }
+        if (pi != 0) {
+            cv.put(Stations.PI, pi);
+        }
+        if (!TextUtils.isEmpty(ps)) {
+            cv.put(Stations.PS, ps.trim());
+        }
+        if (pty > 0) {
+            cv.put(Stations.PTY, pty);
+            if (mPtyIndex != null) {
+                mPtyIndex.putType(frequency, pty);
+            }
+        }
+    }
+
+    /**
+     * Returns the channels of the band plan with a station of the given
+     * program type received within the last day with at least the given
+     * signal strength, strongest first.
+     */
+    public int[] getStationsByPty(int pty, int minRssi, BandPlan plan) {
+        loadPtyIndex();
+        return mPtyIndex.find(pty, minRssi, plan);
+    }
+
+    private void loadPtyIndex() {
+        if (mPtyIndex != null) {
+            return;
+        }
+        /* observations are added as they come in once the index exists */
+        flush();
+        mPtyIndex = new PtyIndex();
+
+        final long oldest = System.currentTimeMillis() - RECENT_WINDOW;
+        Cursor c = mContext.getContentResolver().query(Stations.CONTENT_URI,
+                new String[] { Stations.FREQUENCY, Stations.PTY, Stations.RSSI },
+                Stations.PTY + ">0 AND " + Stations.LAST_SEEN + ">=" + oldest, null, null);
+        if (c == null) {
+            return;
+        }
+        while (c.moveToNext()) {
+            mPtyIndex.putType(c.getInt(0), c.getInt(1));
+            mPtyIndex.putRssi(c.getInt(0), c.getInt(2));
+        }
+        c.close();
+    }
+
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+
+        final int count = mPending.size();
+        if (count == 0) {
+            return;
+        }
+
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = mPending.valueAt(i);
+        }
+        mPending.clear();
+
+        try {
+            mContext.getContentResolver().bulkInsert(Stations.CONTENT_URI, values);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not update station catalog", e);
+        }
+    }
+
+    /* RDS PI codes of all catalogued stations by frequency, including pending observations */
+    public SparseIntArray getPiCodes() {
+        flush();
+
+        SparseIntArray codes = new SparseIntArray();
+        Cursor c = mContext.getContentResolver().query(Stations.CONTENT_URI,
+                new String[] { Stations.FREQUENCY, Stations.PI }, Stations.PI + " IS NOT NULL",
+                null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                codes.put(c.getInt(0), c.getInt(1));
+            }
+            c.close();
+        }
+        return codes;
+    }
+
+    /* other frequencies the station was received on, strongest first */
+    public int[] getAlternativeFrequencies(int pi, int frequency, int max) {
+        flush();
+
+        int[] frequencies = new int[0];
+        Cursor c = mContext.getContentResolver().query(Stations.CONTENT_URI,
+                new String[] { Stations.FREQUENCY },
+                Stations.PI + "=? AND " + Stations.FREQUENCY + "!=?",
+                new String[] { String.valueOf(pi), String.valueOf(frequency) },
+                Stations.RSSI + " DESC");
+        if (c != null) {
+            frequencies = new int[Math.min(c.getCount(), max)];
+            for (int i = 0; i < frequencies.length && c.moveToNext(); i++) {
+                frequencies[i] = c.getInt(0);
+            }
+            c.close();
+        }
+        return frequencies;
+    }
+
+    private ContentValues getPending(int frequency) {
+        if (frequency <= 0) {
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        ContentValues cv = mPending.get(frequency);
+        if (cv == null) {
+            cv = new ContentValues();
+            cv.put(Stations.FREQUENCY, frequency);
+            cv.put(Stations.FIRST_SEEN, now);
+            mPending.put(frequency, cv);
+        }
+        cv.put(Stations.LAST_SEEN, now);
+
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+        return cv;
+    }
+}
@@ -0,0 +1,27 @@
+#!/bin/sh
+#
+# Runs the host checks against the classes of an app build.
+#
+#   ANDROID_JAR   android.jar of the target platform
+#   APP_CLASSES   classes directory or jar of the MotoFM build
+#   KXML_JAR      kxml2 jar, the pull parser the platform ships
+#   JUNIT_JAR     junit 3.8 jar
+#
+# The shims replace the android.jar stubs of Log, TextUtils and SparseIntArray,
+# so they and kxml must come before android.jar on the class path.
+
+set -e
+
+: ${ANDROID_JAR:?} ${APP_CLASSES:?} ${KXML_JAR:?} ${JUNIT_JAR:?}
+
+HOST_DIR=$(cd "$(dirname "$0")" && pwd)
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+CP="$OUT:$KXML_JAR:$JUNIT_JAR:$APP_CLASSES:$ANDROID_JAR"
+
+javac -nowarn -d "$OUT" -cp "$CP" $(find "$HOST_DIR/shims" "$HOST_DIR/src" -name '*.java')
+for TEST in PresetBackupReaderTest RdsGroupDecoderTest; do
+    java -cp "$CP" -Dfixtures.dir="$HOST_DIR/fixtures" junit.textui.TestRunner \
+            com.motorola.fmradio.$TEST
+done
@@ -0,0 +1,18 @@
+package android.text;
+
+/* Host stand-in for the parts of the framework TextUtils the checked code uses. */
+public final class TextUtils {
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+
+    public static boolean equals(CharSequence a, CharSequence b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.length() != b.length()) {
+            return false;
+        }
+        return a.toString().equals(b.toString());
+    }
+}
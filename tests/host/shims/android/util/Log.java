@@ -0,0 +1,60 @@
+package android.util;
+
+/**
+ * Host stand-in for the framework logger. The SDK's android.jar only
+ * carries stubs that throw, so host checks put this class first on the
+ * class path. Warnings and errors go to stderr with -Dlog.verbose=true,
+ * everything else is dropped.
+ */
+public final class Log {
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int v(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return println(tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(tag, msg, tr);
+    }
+
+    public static int w(String tag, Throwable tr) {
+        return println(tag, null, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(tag, msg, tr);
+    }
+
+    private static int println(String tag, String msg, Throwable tr) {
+        if (Boolean.getBoolean("log.verbose")) {
+            System.err.println(tag + ": " + msg + (tr != null ? " (" + tr + ")" : ""));
+        }
+        return 0;
+    }
+}
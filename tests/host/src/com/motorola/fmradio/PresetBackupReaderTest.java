@@ -0,0 +1,261 @@
+package com.motorola.fmradio;
+
+import com.motorola.fmradio.FMDataProvider.Channels;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the limits of PresetBackupReader against hostile backups. Runs on
+ * the host, see run.sh. The fixtures live in the directory given by the
+ * fixtures.dir system property; large and random inputs are generated.
+ */
+public class PresetBackupReaderTest extends TestCase {
+    private static final int FUZZ_ROUNDS = 2000;
+    private static final long FUZZ_SEED = 0x46d4L;
+
+    private File mFixtures;
+    private File mTemp;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFixtures = new File(System.getProperty("fixtures.dir", "fixtures"));
+        mTemp = File.createTempFile("backup", ".xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTemp.delete();
+    }
+
+    public void testValidBackup() {
+        PresetBackupReader reader = new PresetBackupReader(null);
+        PresetSnapshot snapshot = reader.read(fixture("valid.xml"));
+
+        assertNotNull(snapshot);
+        assertEquals(3, snapshot.size());
+        assertEquals(0, reader.getReport().rejected);
+        assertEquals(0, snapshot.getId(0));
+        assertEquals(87500, snapshot.getFrequency(0));
+        assertEquals("Morning FM", snapshot.getName(0));
+        assertEquals(4, snapshot.getId(2));
+        assertEquals("Radio & More", snapshot.getName(2));
+        assertEquals(0, snapshot.indexOfFrequency(87500));
+        assertEquals(-1, snapshot.indexOfFrequency(87600));
+    }
+
+    public void testDeepNestingIsRefused() {
+        assertNull(new PresetBackupReader(null).read(fixture("deep_nesting.xml")));
+    }
+
+    public void testLongNameIsRejected() {
+        PresetBackupReader reader = new PresetBackupReader(null);
+        PresetSnapshot snapshot = reader.read(fixture("long_name.xml"));
+
+        /* 64 characters are fine, 65 are not */
+        assertNotNull(snapshot);
+        assertEquals(1, snapshot.size());
+        assertEquals(87500, snapshot.getFrequency(0));
+        assertEquals(1, reader.getReport().rejected);
+        assertTrue(reader.getReport().errors.get(0).contains("name longer"));
+    }
+
+    public void testDuplicateIndexKeepsFirst() {
+        PresetBackupReader reader = new PresetBackupReader(null);
+        PresetSnapshot snapshot = reader.read(fixture("duplicate_index.xml"));
+
+        assertNotNull(snapshot);
+        assertEquals(1, snapshot.size());
+        assertEquals(90100, snapshot.getFrequency(0));
+        assertEquals(1, reader.getReport().rejected);
+        assertTrue(reader.getReport().errors.get(0).contains("duplicate index 3"));
+    }
+
+    public void testBadValuesAreSkipped() {
+        PresetBackupReader reader = new PresetBackupReader(null);
+        PresetSnapshot snapshot = reader.read(fixture("bad_values.xml"));
+
+        assertNotNull(snapshot);
+        assertEquals(1, snapshot.size());
+        assertEquals("Kept", snapshot.getName(0));
+        assertEquals(8, reader.getReport().rejected);
+    }
+
+    public void testTruncatedFileIsRefused() {
+        assertNull(new PresetBackupReader(null).read(fixture("truncated.xml")));
+    }
+
+    public void testOtherDocumentIsRefused() {
+        assertNull(new PresetBackupReader(null).read(fixture("wrong_root.xml")));
+    }
+
+    public void testEntitiesAreNotExpanded() {
+        final long start = System.nanoTime();
+        PresetSnapshot snapshot = new PresetBackupReader(null).read(fixture("entity_expansion.xml"));
+        final long millis = (System.nanoTime() - start) / 1000000;
+
+        assertNull(snapshot);
+        assertTrue("took " + millis + " ms", millis < 1000);
+    }
+
+    public void testOversizedFileIsRefused() throws IOException {
+        Writer out = open(mTemp);
+        out.write("<fmradio><presets>");
+        for (int i = 0; i <= 1024 * 1024 / 16; i++) {
+            out.write("<!-- padding -->");
+        }
+        out.write("</presets></fmradio>");
+        out.close();
+
+        assertTrue(mTemp.length() > 1024 * 1024);
+        assertNull(new PresetBackupReader(null).read(mTemp));
+    }
+
+    public void testTooManyElementsAreRefused() throws IOException {
+        Writer out = open(mTemp);
+        out.write("<fmradio><presets>");
+        for (int i = 0; i < Channels.MAX_PRESETS * 8; i++) {
+            out.write("<x/>");
+        }
+        out.write("</presets></fmradio>");
+        out.close();
+
+        assertTrue(mTemp.length() < 1024 * 1024);
+        assertNull(new PresetBackupReader(null).read(mTemp));
+    }
+
+    public void testCancel() throws IOException {
+        writeFullBank(mTemp);
+        PresetBackupReader reader = new PresetBackupReader(new PresetBackupHelper.ProgressListener() {
+            @Override
+            public void onProgress(int done, int total) {
+            }
+
+            @Override
+            public boolean isCanceled() {
+                return true;
+            }
+        });
+        assertNull(reader.read(mTemp));
+    }
+
+    /* reports the parse rate of a full bank; only the result is asserted, timing varies by host */
+    public void testFullBankThroughput() throws IOException {
+        writeFullBank(mTemp);
+
+        final int rounds = 20;
+        PresetSnapshot snapshot = null;
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            snapshot = new PresetBackupReader(null).read(mTemp);
+        }
+        final long micros = (System.nanoTime() - start) / 1000 / rounds;
+
+        assertNotNull(snapshot);
+        assertEquals(Channels.MAX_PRESETS, snapshot.size());
+        System.out.println("Full bank (" + mTemp.length() / 1024 + " kB): " + micros + " us per read, "
+                + (mTemp.length() * 1000000L / Math.max(1, micros) / 1024) + " kB/s");
+    }
+
+    /* random corruption must end in a snapshot or null, never in an exception */
+    public void testFuzz() throws IOException {
+        final byte[] seed = readFully(fixture("valid.xml"));
+        final Random random = new Random(FUZZ_SEED);
+
+        for (int round = 0; round < FUZZ_ROUNDS; round++) {
+            byte[] data = mutate(seed, random);
+            FileOutputStream out = new FileOutputStream(mTemp);
+            out.write(data);
+            out.close();
+            try {
+                new PresetBackupReader(null).read(mTemp);
+            } catch (RuntimeException e) {
+                throw new AssertionError("round " + round + ": " + e + "\n" + new String(data, "ISO-8859-1"));
+            }
+        }
+    }
+
+    private static byte[] mutate(byte[] seed, Random random) {
+        byte[] data = seed.clone();
+        final int edits = 1 + random.nextInt(8);
+        for (int i = 0; i < edits; i++) {
+            final int pos = random.nextInt(data.length);
+            switch (random.nextInt(4)) {
+                case 0:
+                    data[pos] = (byte) random.nextInt(256);
+                    break;
+                case 1:
+                    /* markup characters break structure more often than random bytes */
+                    data[pos] = (byte) "<>/&;=\"'!?-"
+                            .charAt(random.nextInt(11));
+                    break;
+                case 2: {
+                    byte[] shorter = new byte[data.length - 1];
+                    System.arraycopy(data, 0, shorter, 0, pos);
+                    System.arraycopy(data, pos + 1, shorter, pos, shorter.length - pos);
+                    data = shorter;
+                    break;
+                }
+                default: {
+                    /* duplicate a slice, which repeats elements and attributes */
+                    final int length = Math.min(data.length - pos, 1 + random.nextInt(64));
+                    byte[] longer = new byte[data.length + length];
+                    System.arraycopy(data, 0, longer, 0, pos + length);
+                    System.arraycopy(data, pos, longer, pos + length, data.length - pos);
+                    data = longer;
+                    break;
+                }
+            }
+            if (data.length == 0) {
+                return seed.clone();
+            }
+        }
+        return data;
+    }
+
+    private static void writeFullBank(File file) throws IOException {
+        Writer out = open(file);
+        out.write("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>\n<fmradio>\n  <presets>\n");
+        for (int i = 1; i <= Channels.MAX_PRESETS; i++) {
+            out.write("    <preset index=\"" + i + "\">\n");
+            out.write("      <frequency>" + (87500 + (i % 200) * 100) + "</frequency>\n");
+            out.write("      <name>Station number " + i + "</name>\n");
+            out.write("    </preset>\n");
+        }
+        out.write("  </presets>\n</fmradio>\n");
+        out.close();
+    }
+
+    private static Writer open(File file) throws IOException {
+        return new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int done = 0;
+            while (done < data.length) {
+                final int read = in.read(data, done, data.length - done);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                done += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private File fixture(String name) {
+        return new File(mFixtures, name);
+    }
+}
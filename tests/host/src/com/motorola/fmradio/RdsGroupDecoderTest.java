@@ -0,0 +1,158 @@
+package com.motorola.fmradio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds the group log in rds_groups.txt through RdsGroupDecoder and checks
+ * the PS, RT, AF and CT it carries, including groups with uncorrectable
+ * blocks. Also reports the decoding rate and checks that decoding doesn't
+ * allocate. Runs on the host, see run.sh.
+ */
+public class RdsGroupDecoderTest extends TestCase {
+    private static final int BENCHMARK_GROUPS = 2000000;
+
+    private int[] mLog;
+    private int mCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        File fixtures = new File(System.getProperty("fixtures.dir", "fixtures"));
+        readLog(new File(fixtures, "rds_groups.txt"));
+    }
+
+    public void testGroupLog() {
+        RdsGroupDecoder decoder = new RdsGroupDecoder();
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> texts = new ArrayList<String>();
+
+        for (int i = 0; i < mCount; i++) {
+            final int changed = decoder.decode(mLog, i * RdsGroupDecoder.GROUP_SIZE, 1);
+            if ((changed & RdsGroupDecoder.CHANGED_PS) != 0) {
+                names.add(decoder.getStationName());
+            }
+            if ((changed & RdsGroupDecoder.CHANGED_RT) != 0) {
+                texts.add(decoder.getRadioText());
+            }
+        }
+
+        assertEquals(0xd318, decoder.getPi());
+        assertEquals(10, decoder.getPty());
+        assertTrue(decoder.isTrafficProgram());
+        assertTrue(decoder.isMusic());
+
+        /* the PS cycle with a broken block D is skipped, not merged */
+        assertEquals(1, names.size());
+        assertEquals("RADIO 21", names.get(0));
+
+        /* the segment with a broken block C is taken from its repetition */
+        assertEquals(2, texts.size());
+        assertEquals("Caf\u00e9 del Mar - Sunset Sessions", texts.get(0));
+        assertEquals("Traffic news at the top of the hour", texts.get(1));
+
+        /* the count code and filler are no frequencies */
+        assertEquals(3, decoder.getAfCount());
+        assertEquals(94300, decoder.getAf(0));
+        assertEquals(100700, decoder.getAf(1));
+        assertEquals(105200, decoder.getAf(2));
+
+        /* 2026-10-19 14:38 UTC, CEST */
+        assertTrue(decoder.hasClockTime());
+        assertEquals(61332, decoder.getModifiedJulianDay());
+        assertEquals(14, decoder.getHour());
+        assertEquals(38, decoder.getMinute());
+        assertEquals(4, decoder.getLocalOffset());
+
+        /* RadioText+ in group 11A */
+        assertEquals(0x4bd7, decoder.getOdaAid(11 << 1));
+    }
+
+    public void testOtherStationResets() {
+        RdsGroupDecoder decoder = new RdsGroupDecoder();
+        decoder.decode(mLog, 0, mCount);
+        assertNotNull(decoder.getStationName());
+
+        final int changed = decoder.decode(0xd319, 0x0548, 0xe344, 0x5241, 0);
+        assertTrue((changed & RdsGroupDecoder.CHANGED_PI) != 0);
+        assertNull(decoder.getStationName());
+        assertNull(decoder.getRadioText());
+        assertEquals(1, decoder.getAfCount());
+        assertFalse(decoder.hasClockTime());
+    }
+
+    /* reports the decoding rate; only the allocation check is asserted, timing varies by host */
+    public void testThroughput() {
+        RdsGroupDecoder decoder = new RdsGroupDecoder();
+        final int rounds = BENCHMARK_GROUPS / mCount;
+
+        /* warm up, so the measurement sees compiled code */
+        for (int i = 0; i < rounds / 10; i++) {
+            decoder.decode(mLog, 0, mCount);
+        }
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long allocated = getAllocatedBytes(threads);
+        final long start = System.nanoTime();
+        int changed = 0;
+        for (int i = 0; i < rounds; i++) {
+            changed |= decoder.decode(mLog, 0, mCount);
+        }
+        final long nanos = System.nanoTime() - start;
+        final long garbage = getAllocatedBytes(threads) - allocated;
+
+        assertTrue(changed != 0);
+        System.out.println("RDS groups: " + (nanos / ((long) rounds * mCount)) + " ns per group, "
+                + ((long) rounds * mCount * 1000L / Math.max(1, nanos / 1000000)) + " groups/s, "
+                + (garbage < 0 ? "allocation not measured" : garbage + " bytes allocated"));
+        if (garbage >= 0) {
+            /* a few bytes of slack for the measurement itself */
+            assertTrue(garbage + " bytes allocated", garbage < 1024);
+        }
+    }
+
+    /* returns -1 if the JVM can't tell */
+    private static long getAllocatedBytes(ThreadMXBean threads) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void readLog(File file) throws IOException {
+        ArrayList<int[]> groups = new ArrayList<int[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                int[] group = new int[RdsGroupDecoder.GROUP_SIZE];
+                for (int i = 0; i < 4; i++) {
+                    group[i] = Integer.parseInt(fields[i], 16);
+                }
+                group[4] = Integer.parseInt(fields[4]);
+                groups.add(group);
+            }
+        } finally {
+            reader.close();
+        }
+
+        mCount = groups.size();
+        mLog = new int[mCount * RdsGroupDecoder.GROUP_SIZE];
+        for (int i = 0; i < mCount; i++) {
+            System.arraycopy(groups.get(i), 0, mLog, i * RdsGroupDecoder.GROUP_SIZE,
+                    RdsGroupDecoder.GROUP_SIZE);
+        }
+    }
+}